@@ -0,0 +1,237 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.w3c.dom.Element;
+
+import xseq.services.DocumentVisitor;
+
+/**
+ * Accumulate the columns of a ProcedureModel as elements are opened and
+ * closed in document order. This can be driven directly off a stream of
+ * parser events, or registered with an Annotator as it walks a DOM.
+ *
+ * <P>
+ * The builder is also where canonical numbers are worked out: sections
+ * number I, II, III, ...; steps number consecutively across the entire
+ * procedure document (they don't restart across section boundaries); and
+ * tasks number a, b, c, ... restarting at each <name>. When run over a DOM,
+ * those numbers are also written out as num attributes.
+ *
+ * @author Andrew Cowie
+ */
+class ModelBuilder implements DocumentVisitor
+{
+    private int size;
+
+    private int[] parent;
+
+    private int[] firstChild;
+
+    private int[] nextSibling;
+
+    private int[] lastChild;
+
+    private byte[] tag;
+
+    private int[] who;
+
+    private int[] number;
+
+    private byte[] status;
+
+    private ArrayList<String> people;
+
+    private HashMap<String, Integer> peopleIndex;
+
+    /*
+     * the currently open element, ie the parent of the next one.
+     */
+    private int current;
+
+    private int sections;
+
+    private int steps;
+
+    private int tasks;
+
+    private int names;
+
+    ModelBuilder() {
+        final int initial = 256;
+
+        parent = new int[initial];
+        firstChild = new int[initial];
+        nextSibling = new int[initial];
+        lastChild = new int[initial];
+        tag = new byte[initial];
+        who = new int[initial];
+        number = new int[initial];
+        status = new byte[initial];
+
+        people = new ArrayList<String>();
+        peopleIndex = new HashMap<String, Integer>();
+
+        current = -1;
+    }
+
+    private void grow() {
+        int capacity = parent.length * 2;
+
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        lastChild = Arrays.copyOf(lastChild, capacity);
+        tag = Arrays.copyOf(tag, capacity);
+        who = Arrays.copyOf(who, capacity);
+        number = Arrays.copyOf(number, capacity);
+        status = Arrays.copyOf(status, capacity);
+    }
+
+    /**
+     * Open an element.
+     *
+     * @param tagName
+     *            the element's name
+     * @param person
+     *            the value of its who attribute, or null / "" if none.
+     * @param state
+     *            the value of its status attribute, or null / "" if none.
+     * @return the node number assigned.
+     */
+    int open(String tagName, String person, String state) {
+        if (size == parent.length) {
+            grow();
+        }
+        final int node = size++;
+        final byte code = ProcedureModel.tagCode(tagName);
+
+        parent[node] = current;
+        firstChild[node] = -1;
+        nextSibling[node] = -1;
+        lastChild[node] = -1;
+        tag[node] = code;
+        status[node] = (byte) State.fromStatus(state);
+
+        if (current != -1) {
+            if (lastChild[current] == -1) {
+                firstChild[current] = node;
+            } else {
+                nextSibling[lastChild[current]] = node;
+            }
+            lastChild[current] = node;
+        }
+
+        if ((person == null) || (person.length() == 0)) {
+            who[node] = -1;
+        } else {
+            Integer i = peopleIndex.get(person);
+            if (i == null) {
+                i = Integer.valueOf(people.size());
+                people.add(person);
+                peopleIndex.put(person, i);
+            }
+            who[node] = i.intValue();
+        }
+
+        switch (code) {
+        case ProcedureModel.SECTION:
+            number[node] = ++sections;
+            break;
+        case ProcedureModel.STEP:
+            number[node] = ++steps;
+            break;
+        case ProcedureModel.NAME:
+            names++;
+            tasks = 0;
+            number[node] = 0;
+            break;
+        case ProcedureModel.TASK:
+            number[node] = (names > 0) ? ++tasks : 0;
+            break;
+        default:
+            number[node] = 0;
+        }
+
+        current = node;
+        return node;
+    }
+
+    /**
+     * Close the most recently opened element.
+     */
+    void close() {
+        if (tag[current] == ProcedureModel.NAME) {
+            names--;
+        }
+        current = parent[current];
+    }
+
+    /**
+     * @return the tag code of a node opened so far.
+     */
+    byte getTag(int node) {
+        return tag[node];
+    }
+
+    /**
+     * @return the canonical number of a node opened so far, formatted, or ""
+     *         if it isn't numbered.
+     */
+    String getNum(int node) {
+        return ProcedureModel.format(tag[node], number[node]);
+    }
+
+    /**
+     * @return the currently open node, or -1 if none.
+     */
+    int getCurrent() {
+        return current;
+    }
+
+    public void startElement(Element element, int ordinal) {
+        int node = open(element.getTagName(), element.getAttribute("who"), element.getAttribute("status"));
+
+        if (number[node] != 0) {
+            element.setAttribute("num", ProcedureModel.format(tag[node], number[node]));
+        }
+    }
+
+    public void endElement(Element element, int ordinal) {
+        close();
+    }
+
+    /**
+     * Trim the columns to size and hand them over to a new (immutable)
+     * model.
+     */
+    ProcedureModel toModel() {
+        if (current != -1) {
+            throw new IllegalStateException("Elements still open");
+        }
+
+        return new ProcedureModel(size, Arrays.copyOf(parent, size), Arrays.copyOf(firstChild, size),
+                Arrays.copyOf(nextSibling, size), Arrays.copyOf(tag, size), Arrays.copyOf(who, size),
+                Arrays.copyOf(number, size), Arrays.copyOf(status, size), people.toArray(new String[people.size()]));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+/**
+ * Where each Element falls in the sequence of its peers: the 3rd section,
+ * the 12th step, the 40th task. This is what IdIndex does for a single tag
+ * name and String IDs, done for every level of a procedure at once and in
+ * terms of node numbers.
+ *
+ * <P>
+ * rank() goes from a node to its position among the nodes with the same tag,
+ * select() from a position back to the node, and next() and prev() step
+ * between peers; all are array reads. Positions count from 0.
+ *
+ * @author Andrew Cowie
+ */
+public class OrdinalIndex
+{
+    private final ProcedureModel model;
+
+    /*
+     * position of each node among those with the same tag.
+     */
+    private final int[] ranks;
+
+    /*
+     * for each tag code, the nodes with that tag in document order.
+     */
+    private final int[][] nodes;
+
+    OrdinalIndex(ProcedureModel model) {
+        final int size = model.getSize();
+        final int[] counts = new int[ProcedureModel.tagNames.length];
+
+        this.model = model;
+        this.ranks = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            ranks[i] = counts[model.getTag(i)]++;
+        }
+
+        this.nodes = new int[counts.length][];
+        for (int t = 0; t < counts.length; t++) {
+            nodes[t] = new int[counts[t]];
+        }
+        for (int i = 0; i < size; i++) {
+            nodes[model.getTag(i)][ranks[i]] = i;
+        }
+    }
+
+    /**
+     * @return the position of node among the Elements with the same tag as
+     *         it.
+     */
+    public int rank(int node) {
+        return ranks[node];
+    }
+
+    /**
+     * Get the position of the Element with the given tag that is, or
+     * encloses, node. This is how to go from a step or task to the number of
+     * the section it is in.
+     *
+     * @return the position, or -1 if node neither has that tag nor is inside
+     *         an Element that does.
+     */
+    public int rank(byte tagCode, int node) {
+        if (model.getTag(node) != tagCode) {
+            node = model.getAncestor(node, tagCode);
+            if (node == -1) {
+                return -1;
+            }
+        }
+        return ranks[node];
+    }
+
+    /**
+     * @return the node at the given position among Elements with tagCode,
+     *         or -1 if there aren't that many.
+     */
+    public int select(byte tagCode, int rank) {
+        final int[] peers = nodes[tagCode];
+
+        if ((rank < 0) || (rank >= peers.length)) {
+            return -1;
+        }
+        return peers[rank];
+    }
+
+    /**
+     * @return the next Element with the same tag as node, in document order
+     *         and regardless of nesting, or -1 if node is the last.
+     */
+    public int next(int node) {
+        return select(model.getTag(node), ranks[node] + 1);
+    }
+
+    /**
+     * @return the previous Element with the same tag as node, or -1 if node
+     *         is the first.
+     */
+    public int prev(int node) {
+        return select(model.getTag(node), ranks[node] - 1);
+    }
+
+    /**
+     * Count the Elements with tagCode that come before node in document
+     * order. This is the position the first such Element at or after node
+     * has, so together with a SubtreeIntervals it gives the range of, say,
+     * the tasks under a step.
+     */
+    public int countBefore(byte tagCode, int node) {
+        final int[] peers = nodes[tagCode];
+        int low = 0;
+        int high = peers.length;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (peers[mid] < node) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return how many Elements have the given tag.
+     */
+    public int count(byte tagCode) {
+        return nodes[tagCode].length;
+    }
+}
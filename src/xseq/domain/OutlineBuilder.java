@@ -0,0 +1,154 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.util.Arrays;
+
+import org.w3c.dom.Element;
+
+import xseq.services.DocumentVisitor;
+import xseq.services.XmlUtils;
+
+/**
+ * Gather a ProcedureOutline as part of the Annotator's traversal of a DOM.
+ * This is where the two ways of giving a title are made one: whether the
+ * procedure, a section or a step has a title attribute (as in the older
+ * fixtures) or a <title> child Element (as the DTD and the 0.4 examples
+ * have it), the normalized text ends up in the same slot, and is read from
+ * there rather than searched for each time it is shown. An attribute wins if
+ * there are both.
+ *
+ * @author Andrew Cowie
+ */
+class OutlineBuilder implements DocumentVisitor
+{
+    private String[] titles;
+
+    private int[] sections;
+
+    private String[] precis;
+
+    private int numSections;
+
+    /*
+     * tag codes of the open Elements, and their node numbers.
+     */
+    private byte[] codes;
+
+    private int[] nodes;
+
+    private int depth;
+
+    OutlineBuilder() {
+        titles = new String[256];
+        sections = new int[16];
+        precis = new String[16];
+        codes = new byte[16];
+        nodes = new int[16];
+    }
+
+    public void startElement(Element element, int ordinal) {
+        final byte code = ProcedureModel.tagCode(element.getTagName());
+
+        if (ordinal >= titles.length) {
+            titles = Arrays.copyOf(titles, Math.max(titles.length * 2, ordinal + 1));
+        }
+
+        switch (code) {
+        case ProcedureModel.SECTION:
+            addSection(ordinal);
+            titleAttribute(element, ordinal);
+            break;
+
+        case ProcedureModel.PROCEDURE:
+        case ProcedureModel.STEP:
+            titleAttribute(element, ordinal);
+            break;
+
+        case ProcedureModel.TITLE:
+            if (depth > 0) {
+                byte parentCode = codes[depth - 1];
+                int parent = nodes[depth - 1];
+
+                if (((parentCode == ProcedureModel.PROCEDURE) || (parentCode == ProcedureModel.SECTION) || (parentCode == ProcedureModel.STEP))
+                        && (titles[parent] == null)) {
+                    titles[parent] = XmlUtils.normalizeText(element.getTextContent());
+                }
+            }
+            break;
+
+        case ProcedureModel.PRECIS:
+            if ((depth > 0) && (codes[depth - 1] == ProcedureModel.SECTION)
+                    && (precis[numSections - 1] == null)) {
+                precis[numSections - 1] = element.getTextContent();
+            }
+            break;
+
+        default:
+            // nothing for the outline
+        }
+
+        if (depth == codes.length) {
+            codes = Arrays.copyOf(codes, depth * 2);
+            nodes = Arrays.copyOf(nodes, depth * 2);
+        }
+        codes[depth] = code;
+        nodes[depth] = ordinal;
+        depth++;
+    }
+
+    /*
+     * The older way of giving something a title; a title child Element only
+     * counts if this wasn't used.
+     */
+    private void titleAttribute(Element element, int ordinal) {
+        String title = element.getAttribute("title");
+        if (title.length() > 0) {
+            titles[ordinal] = XmlUtils.normalizeText(title);
+        }
+    }
+
+    public void endElement(Element element, int ordinal) {
+        depth--;
+    }
+
+    /*
+     * Record a section without having its Element, as for a model only
+     * Procedure, which has sections but no titles.
+     */
+    void addSection(int node) {
+        if (numSections == sections.length) {
+            sections = Arrays.copyOf(sections, numSections * 2);
+            precis = Arrays.copyOf(precis, numSections * 2);
+        }
+        sections[numSections++] = node;
+    }
+
+    /**
+     * @param size
+     *            the number of Elements in the procedure.
+     */
+    ProcedureOutline toOutline(int size) {
+        int[] offsets = new int[numSections];
+        Arrays.fill(offsets, -1);
+
+        return new ProcedureOutline(Arrays.copyOf(sections, numSections), offsets, offsets, Arrays.copyOf(titles,
+                size), Arrays.copyOf(precis, numSections));
+    }
+}
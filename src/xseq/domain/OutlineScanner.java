@@ -0,0 +1,711 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import xseq.services.ElementIndex;
+import xseq.services.NamespaceScope;
+import xseq.services.XmlStreamLoader;
+import xseq.services.XmlUtils;
+
+/**
+ * A quick pass over the raw bytes of a procedure which builds the complete
+ * ProcedureModel and the ProcedureOutline, but only builds DOM Elements for
+ * what lies outside the <section>s. Each section is represented in the
+ * Document by an empty placeholder Element carrying its attributes, and its
+ * byte offsets are noted so that it can be parsed properly later.
+ *
+ * <P>
+ * This is not a general XML parser. It tokenizes tags, comments, CDATA, and
+ * processing instructions, checks that tags nest, and expands the
+ * predefined and character entities; it skips the DOCTYPE (and so can't
+ * expand entities declared in a DTD). Text inside sections isn't even
+ * looked at unless it's a title or precis. The encoding must be one where
+ * markup is plain ASCII bytes, ie UTF-8 or one of the single byte
+ * encodings, so that byte offsets found here are byte offsets to the
+ * parser that later reads a section.
+ *
+ * @author Andrew Cowie
+ */
+class OutlineScanner
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buf;
+
+    private final int limit;
+
+    private int pos;
+
+    private Charset charset;
+
+    private final ModelBuilder builder;
+
+    private final Document dom;
+
+    private final ElementIndex index;
+
+    /*
+     * the DOM Node being built into, while outside sections.
+     */
+    private Node current;
+
+    /*
+     * depth within the section currently being skipped, counting the
+     * section itself; 0 if outside all sections.
+     */
+    private int sectionDepth;
+
+    private String[] open;
+
+    private int depth;
+
+    private boolean rooted;
+
+    private int[] sections;
+
+    private int[] starts;
+
+    private int[] ends;
+
+    private String[] precis;
+
+    private int numSections;
+
+    private String[] titles;
+
+    /*
+     * the node whose text is being gathered for the outline, or -1.
+     */
+    private int capture;
+
+    private boolean capturePrecis;
+
+    private StringBuilder captured;
+
+    private String[] attrNames;
+
+    private String[] attrValues;
+
+    private int numAttrs;
+
+    /*
+     * Normalize the skeleton's text and the precis, to match sections that
+     * will be built in normalizing mode.
+     */
+    private final boolean normalize;
+
+    private final NamespaceScope scope;
+
+    OutlineScanner(ByteBuffer source, boolean normalize) {
+        this.normalize = normalize;
+        buf = source;
+        pos = source.position();
+        limit = source.limit();
+        charset = UTF8;
+
+        builder = new ModelBuilder();
+        dom = XmlStreamLoader.newDocument();
+        index = new ElementIndex();
+        current = dom;
+
+        open = new String[16];
+
+        sections = new int[16];
+        starts = new int[16];
+        ends = new int[16];
+        precis = new String[16];
+        titles = new String[256];
+
+        capture = -1;
+        captured = new StringBuilder();
+
+        attrNames = new String[8];
+        attrValues = new String[8];
+
+        scope = new NamespaceScope();
+    }
+
+    /**
+     * Run the scan.
+     *
+     * @throws IllegalArgumentException
+     *             if the source isn't well formed, or is something this
+     *             scanner can't handle.
+     */
+    void scan() {
+        if (startsWith(new byte[] {
+                (byte) 0xEF, (byte) 0xBB, (byte) 0xBF
+        })) {
+            pos += 3;
+        } else if ((limit - pos >= 2)
+                && (((buf.get(pos) == (byte) 0xFE) && (buf.get(pos + 1) == (byte) 0xFF)) || ((buf.get(pos) == (byte) 0xFF) && (buf
+                        .get(pos + 1) == (byte) 0xFE)))) {
+            throw error("Procedures encoded as UTF-16 can't be loaded lazily");
+        }
+
+        while (pos < limit) {
+            if (buf.get(pos) == '<') {
+                markup();
+            } else {
+                text();
+            }
+        }
+
+        if (depth != 0) {
+            throw error("Document ended with <" + open[depth - 1] + "> still open");
+        }
+        if (!rooted) {
+            throw error("No root element");
+        }
+
+        if (normalize) {
+            XmlUtils.stripWhitespace(dom);
+        }
+    }
+
+    ProcedureModel getModel() {
+        return builder.toModel();
+    }
+
+    Document getDocument() {
+        return dom;
+    }
+
+    ElementIndex getIndex() {
+        return index;
+    }
+
+    String getEncoding() {
+        return charset.name();
+    }
+
+    ProcedureOutline getOutline(int size) {
+        return new ProcedureOutline(Arrays.copyOf(sections, numSections), Arrays.copyOf(starts, numSections),
+                Arrays.copyOf(ends, numSections), Arrays.copyOf(titles, size), Arrays.copyOf(precis,
+                        numSections));
+    }
+
+    /*
+     * Markup
+     */
+
+    private void markup() {
+        if (startsWith("<?")) {
+            processingInstruction();
+        } else if (startsWith("<!--")) {
+            pos = indexOf("-->", pos + 4) + 3;
+        } else if (startsWith("<![CDATA[")) {
+            int end = indexOf("]]>", pos + 9);
+            characters(pos + 9, end, false);
+            pos = end + 3;
+        } else if (startsWith("<!DOCTYPE")) {
+            doctype();
+        } else if (startsWith("</")) {
+            endTag();
+        } else {
+            startTag();
+        }
+    }
+
+    /*
+     * Skip a PI, but if it's the XML declaration pick up the encoding.
+     */
+    private void processingInstruction() {
+        int start = pos;
+        int end = indexOf("?>", pos + 2);
+        pos = end + 2;
+
+        if (!rooted && startsWith("<?xml", start) && isSpace(buf.get(start + 5))) {
+            String decl = string(start, end);
+            int i = decl.indexOf("encoding");
+            if (i == -1) {
+                return;
+            }
+            i = decl.indexOf('=', i);
+            int quote = i + 1;
+            while (isSpace((byte) decl.charAt(quote))) {
+                quote++;
+            }
+            int close = decl.indexOf(decl.charAt(quote), quote + 1);
+            if (close == -1) {
+                throw error("Malformed XML declaration");
+            }
+            setEncoding(decl.substring(quote + 1, close));
+        }
+    }
+
+    private void setEncoding(String name) {
+        Charset cs;
+        try {
+            cs = Charset.forName(name);
+        } catch (IllegalCharsetNameException icne) {
+            throw error("Unknown encoding " + name);
+        } catch (UnsupportedCharsetException uce) {
+            throw error("Unsupported encoding " + name);
+        }
+
+        byte[] lt = "<".getBytes(cs);
+        if (!cs.equals(UTF8) && ((cs.newEncoder().maxBytesPerChar() != 1.0f) || (lt.length != 1) || (lt[0] != '<'))) {
+            throw error("Procedures encoded as " + name + " can't be loaded lazily");
+        }
+        charset = cs;
+    }
+
+    /*
+     * Skip the DOCTYPE, including any internal subset. Within it a quoted
+     * literal, a comment, or a PI can contain anything, ] and > and stray
+     * quotes included, so each is skipped whole rather than looked into.
+     */
+    private void doctype() {
+        boolean subset = false;
+
+        pos += 9;
+        while (pos < limit) {
+            byte b = buf.get(pos);
+            if ((b == '"') || (b == '\'')) {
+                int close = indexOf(b, pos + 1);
+                if (close == -1) {
+                    throw error("Unterminated literal in DOCTYPE");
+                }
+                pos = close + 1;
+            } else if (subset && startsWith("<!--")) {
+                pos = indexOf("-->", pos + 4) + 3;
+            } else if (subset && startsWith("<?")) {
+                pos = indexOf("?>", pos + 2) + 2;
+            } else if (b == '[') {
+                subset = true;
+                pos++;
+            } else if ((b == ']') && subset) {
+                subset = false;
+                pos++;
+            } else if ((b == '>') && !subset) {
+                pos++;
+                return;
+            } else {
+                pos++;
+            }
+        }
+        throw error("Unterminated DOCTYPE");
+    }
+
+    private void startTag() {
+        final int start = pos;
+        boolean empty = false;
+
+        pos++;
+        String name = readName();
+
+        numAttrs = 0;
+        while (true) {
+            skipSpace();
+            byte b = get();
+            if (b == '>') {
+                pos++;
+                break;
+            }
+            if (b == '/') {
+                pos++;
+                if (get() != '>') {
+                    throw error("Expected > after / in <" + name + ">");
+                }
+                pos++;
+                empty = true;
+                break;
+            }
+
+            String attr = readName();
+            skipSpace();
+            if (get() != '=') {
+                throw error("Expected = after attribute " + attr + " in <" + name + ">");
+            }
+            pos++;
+            skipSpace();
+            byte quote = get();
+            if ((quote != '"') && (quote != '\'')) {
+                throw error("Expected quoted value for attribute " + attr + " in <" + name + ">");
+            }
+            int end = indexOf(quote, pos + 1);
+            if (end == -1) {
+                throw error("Unterminated value for attribute " + attr + " in <" + name + ">");
+            }
+            addAttribute(attr, decode(pos + 1, end, true));
+            pos = end + 1;
+        }
+
+        openElement(name, start);
+        if (empty) {
+            closeElement(pos);
+        }
+    }
+
+    private void endTag() {
+        pos += 2;
+        String name = readName();
+        skipSpace();
+        if (get() != '>') {
+            throw error("Expected > to end </" + name);
+        }
+        pos++;
+
+        if (depth == 0) {
+            throw error("End tag </" + name + "> with nothing open");
+        }
+        if (!name.equals(open[depth - 1])) {
+            throw error("End tag </" + name + "> doesn't match <" + open[depth - 1] + ">");
+        }
+        closeElement(pos);
+    }
+
+    private void addAttribute(String name, String value) {
+        if (numAttrs == attrNames.length) {
+            attrNames = Arrays.copyOf(attrNames, numAttrs * 2);
+            attrValues = Arrays.copyOf(attrValues, numAttrs * 2);
+        }
+        attrNames[numAttrs] = name;
+        attrValues[numAttrs] = value;
+        numAttrs++;
+    }
+
+    private String attribute(String name) {
+        for (int i = 0; i < numAttrs; i++) {
+            if (attrNames[i].equals(name)) {
+                return attrValues[i];
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Structure
+     */
+
+    private void openElement(String name, int start) {
+        if ((depth == 0) && rooted) {
+            throw error("More than one root element");
+        }
+        rooted = true;
+
+        for (int i = 0; i < numAttrs; i++) {
+            scope.declare(attrNames[i], attrValues[i], depth + 1);
+        }
+        final String unified = scope.unify(name);
+
+        final int parent = builder.getCurrent();
+        final int node = builder.open(unified, attribute("who"), attribute("status"));
+        final byte code = builder.getTag(node);
+
+        if (depth == open.length) {
+            open = Arrays.copyOf(open, depth * 2);
+        }
+        open[depth++] = name;
+
+        if (node == titles.length) {
+            titles = Arrays.copyOf(titles, node * 2);
+        }
+        if ((code == ProcedureModel.PROCEDURE) || (code == ProcedureModel.SECTION) || (code == ProcedureModel.STEP)) {
+            String title = attribute("title");
+            if (title != null) {
+                titles[node] = XmlUtils.normalizeText(title);
+            }
+        }
+
+        if ((capture == -1) && (parent != -1)) {
+            byte parentCode = builder.getTag(parent);
+
+            if ((code == ProcedureModel.TITLE) && (titles[parent] == null)
+                    && ((parentCode == ProcedureModel.PROCEDURE) || (parentCode == ProcedureModel.SECTION) || (parentCode == ProcedureModel.STEP))) {
+                capture = node;
+                capturePrecis = false;
+            } else if ((code == ProcedureModel.PRECIS) && (parentCode == ProcedureModel.SECTION)
+                    && (precis[numSections - 1] == null)) {
+                capture = node;
+                capturePrecis = true;
+            }
+        }
+
+        if (sectionDepth > 0) {
+            sectionDepth++;
+            return;
+        }
+
+        Element element = dom.createElement(unified);
+        for (int i = 0; i < numAttrs; i++) {
+            element.setAttribute(attrNames[i], attrValues[i]);
+        }
+        element.setAttribute("id", ProcedureModel.toId(node));
+        String num = builder.getNum(node);
+        if (num.length() > 0) {
+            element.setAttribute("num", num);
+        }
+
+        current.appendChild(element);
+        index.startElement(element, node);
+
+        if (code == ProcedureModel.SECTION) {
+            if (numSections == sections.length) {
+                sections = Arrays.copyOf(sections, numSections * 2);
+                starts = Arrays.copyOf(starts, numSections * 2);
+                ends = Arrays.copyOf(ends, numSections * 2);
+                precis = Arrays.copyOf(precis, numSections * 2);
+            }
+            sections[numSections] = node;
+            starts[numSections] = start;
+            numSections++;
+
+            sectionDepth = 1;
+        } else {
+            current = element;
+        }
+    }
+
+    private void closeElement(int end) {
+        final int node = builder.getCurrent();
+
+        builder.close();
+        scope.close(depth);
+        depth--;
+
+        if (node == capture) {
+            String text = captured.toString();
+            captured.setLength(0);
+            capture = -1;
+
+            if (capturePrecis) {
+                precis[numSections - 1] = normalize ? XmlUtils.normalizeText(text) : text;
+            } else {
+                titles[builder.getCurrent()] = XmlUtils.normalizeText(text);
+            }
+        }
+
+        if (sectionDepth > 0) {
+            sectionDepth--;
+            if (sectionDepth == 0) {
+                ends[numSections - 1] = end;
+            }
+        } else {
+            current = current.getParentNode();
+        }
+    }
+
+    /*
+     * Text
+     */
+
+    private void text() {
+        int start = pos;
+        int end = indexOf((byte) '<', pos);
+        if (end == -1) {
+            end = limit;
+        }
+        characters(start, end, true);
+        pos = end;
+    }
+
+    private void characters(int start, int end, boolean entities) {
+        if (depth == 0) {
+            for (int i = start; i < end; i++) {
+                if (!isSpace(buf.get(i))) {
+                    throw error("Text outside the root element");
+                }
+            }
+            return;
+        }
+
+        if ((sectionDepth > 0) && (capture == -1)) {
+            // not needed for the outline; leave it for the real parse
+            return;
+        }
+
+        String text = entities ? decode(start, end, false) : string(start, end);
+
+        if (capture != -1) {
+            captured.append(text);
+        }
+        if (sectionDepth == 0) {
+            current.appendChild(dom.createTextNode(text));
+        }
+    }
+
+    /*
+     * Convert bytes to a String, normalizing whitespace in attribute values
+     * and expanding entities as XML requires.
+     */
+    private String decode(int start, int end, boolean attribute) {
+        String str = string(start, end);
+
+        if (attribute) {
+            str = str.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        }
+
+        int amp = str.indexOf('&');
+        if (amp == -1) {
+            return str;
+        }
+
+        StringBuilder result = new StringBuilder(str.length());
+        int from = 0;
+        while (amp != -1) {
+            result.append(str, from, amp);
+            int semi = str.indexOf(';', amp);
+            if (semi == -1) {
+                throw error("Unterminated entity reference");
+            }
+            String entity = str.substring(amp + 1, semi);
+
+            if (entity.equals("lt")) {
+                result.append('<');
+            } else if (entity.equals("gt")) {
+                result.append('>');
+            } else if (entity.equals("amp")) {
+                result.append('&');
+            } else if (entity.equals("quot")) {
+                result.append('"');
+            } else if (entity.equals("apos")) {
+                result.append('\'');
+            } else if (entity.startsWith("#x")) {
+                result.appendCodePoint(parseCodePoint(entity.substring(2), 16));
+            } else if (entity.startsWith("#")) {
+                result.appendCodePoint(parseCodePoint(entity.substring(1), 10));
+            } else {
+                throw error("Entity &" + entity + "; can't be expanded when loading lazily");
+            }
+
+            from = semi + 1;
+            amp = str.indexOf('&', from);
+        }
+        result.append(str, from, str.length());
+
+        return result.toString();
+    }
+
+    private int parseCodePoint(String digits, int radix) {
+        try {
+            return Integer.parseInt(digits, radix);
+        } catch (NumberFormatException nfe) {
+            throw error("Bad character reference " + digits);
+        }
+    }
+
+    /*
+     * Low level scanning
+     */
+
+    private String readName() {
+        int start = pos;
+        while (pos < limit) {
+            byte b = buf.get(pos);
+            if (isSpace(b) || (b == '/') || (b == '>') || (b == '=') || (b == '<') || (b == '?')) {
+                break;
+            }
+            pos++;
+        }
+        if (pos == start) {
+            throw error("Expected a name");
+        }
+        return string(start, pos);
+    }
+
+    private String string(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(start);
+        dup.get(bytes);
+        return new String(bytes, charset);
+    }
+
+    private void skipSpace() {
+        while ((pos < limit) && isSpace(buf.get(pos))) {
+            pos++;
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return (b == ' ') || (b == '\t') || (b == '\n') || (b == '\r');
+    }
+
+    private byte get() {
+        if (pos >= limit) {
+            throw error("Unexpected end of document");
+        }
+        return buf.get(pos);
+    }
+
+    private boolean startsWith(String str) {
+        return startsWith(str, pos);
+    }
+
+    private boolean startsWith(String str, int at) {
+        if (at + str.length() > limit) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            if (buf.get(at + i) != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean startsWith(byte[] bytes) {
+        if (pos + bytes.length > limit) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buf.get(pos + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(byte b, int from) {
+        for (int i = from; i < limit; i++) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Unlike indexOf(byte), not finding str is an error.
+     */
+    private int indexOf(String str, int from) {
+        for (int i = from; i <= limit - str.length(); i++) {
+            if (startsWith(str, i)) {
+                return i;
+            }
+        }
+        throw error("Expected " + str);
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at byte " + pos);
+    }
+}
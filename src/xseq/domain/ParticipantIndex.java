@@ -0,0 +1,130 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+/**
+ * Each participant's tasks, in document order. Participants are known by
+ * the int code the ProcedureModel interned their who attribute as; the
+ * tasks of participant p are tasks[offsets[p]] up to, but not including,
+ * tasks[offsets[p + 1]]. Since steps cover a contiguous run of node
+ * numbers, a person's tasks within one step are a contiguous run of their
+ * list too, found by binary search rather than by scanning the step's
+ * <name>s.
+ *
+ * @author Andrew Cowie
+ */
+class ParticipantIndex
+{
+    private final int[] offsets;
+
+    private final int[] tasks;
+
+    ParticipantIndex(ProcedureModel model) {
+        final int size = model.getSize();
+        final int num = model.people.length;
+        final int[] owners = new int[size];
+
+        offsets = new int[num + 1];
+
+        /*
+         * First pass: who owns each task, and how many each person has.
+         */
+        for (int i = 0; i < size; i++) {
+            owners[i] = -1;
+            if (model.getTag(i) != ProcedureModel.TASK) {
+                continue;
+            }
+            int name = model.getAncestor(i, ProcedureModel.NAME);
+            if (name == -1) {
+                continue;
+            }
+            int who = model.getWhoCode(name);
+            if (who == -1) {
+                continue;
+            }
+            owners[i] = who;
+            offsets[who + 1]++;
+        }
+
+        for (int p = 0; p < num; p++) {
+            offsets[p + 1] += offsets[p];
+        }
+
+        /*
+         * Second pass: drop each task into its owner's list. Going in node
+         * order keeps every list in document order.
+         */
+        tasks = new int[offsets[num]];
+        int[] next = new int[num];
+        System.arraycopy(offsets, 0, next, 0, num);
+
+        for (int i = 0; i < size; i++) {
+            if (owners[i] != -1) {
+                tasks[next[owners[i]]++] = i;
+            }
+        }
+    }
+
+    /**
+     * @return the position in the task list of participant who's first task
+     *         at or after node; end(who) if there isn't one.
+     */
+    int search(int who, int node) {
+        int low = offsets[who];
+        int high = offsets[who + 1];
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tasks[mid] < node) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the position of participant who's first task.
+     */
+    int start(int who) {
+        return offsets[who];
+    }
+
+    /**
+     * @return the position one past participant who's last task.
+     */
+    int end(int who) {
+        return offsets[who + 1];
+    }
+
+    /**
+     * @return the task node at a position.
+     */
+    int getTask(int position) {
+        return tasks[position];
+    }
+
+    /**
+     * @return how many tasks participant who has.
+     */
+    int getTaskCount(int who) {
+        return offsets[who + 1] - offsets[who];
+    }
+}
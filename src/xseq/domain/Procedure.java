@@ -20,18 +20,63 @@ package xseq.domain;
 
 import generic.util.DebugException;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
+import xseq.services.Annotator;
+import xseq.services.DocumentVisitor;
 import xseq.services.ElementIndex;
-import xseq.services.IdIndex;
+import xseq.services.TextIndex;
+import xseq.services.XmlStreamLoader;
 import xseq.services.XmlUtils;
 
 /**
  * Encapsulation of a loaded procedure.
  * 
+ * <P>
+ * All navigation and state queries are answered from a compact
+ * ProcedureModel rather than by walking the DOM. A Procedure loaded with a
+ * DOM (the usual case, as the user interface renders from it) keeps the
+ * status attributes in the Document up to date as well; one created
+ * directly from a ProcedureModel has no Document at all.
+ * 
+ * <P>
+ * A Procedure loaded lazily starts with a Document containing everything
+ * but the content of its <section>s; each section is parsed, numbered and
+ * indexed the first time anything asks for its Elements. The model (and so
+ * navigation, state, and global step numbering) covers the whole procedure
+ * from the start.
+ * 
+ * <P>
+ * To run the same procedure many times over, load it once as a
+ * ProcedureTemplate and start each run with newRun(). The runs share the
+ * template's model, outline and indexes, and each has only its own State
+ * and completion counts, a few bytes per task.
+ * 
+ * <P>
+ * Tasks can be set as done, and state queried, from any thread, without a
+ * global lock: each task's move to DONE is a compare-and-set on its few
+ * bits of the StateVector, so when two participants report the same task
+ * only one of them makes the change, and the counts in Progress go up once.
+ * The network thread can apply completions while the user interface reads
+ * from the same Procedure. The DOM is a different matter; it is only safe
+ * to use from one thread at a time.
  * 
  * @author Andrew Cowie
  */
@@ -41,7 +86,62 @@ public class Procedure
 
     private ElementIndex _elementIndex = null;
 
-    private IdIndex _stepIndex = null;
+    private ProcedureModel _model = null;
+
+    /*
+     * The State of each node, indexed by node number. Starts as a copy of
+     * the model's status column. This, not the status attributes in the
+     * DOM, is the record of where the procedure is up to.
+     */
+    private StateVector _status = null;
+
+    /*
+     * Nodes whose State has changed since their status attribute was last
+     * written, one bit per node; the DOM is brought up to date only when
+     * someone asks for it. Whichever thread changes a State sets the bit
+     * without waiting, and writeStatus() takes each non-zero word back to
+     * zero as it goes.
+     */
+    private AtomicIntegerArray _unwritten = null;
+
+    /*
+     * How many tasks are done, under any node. Asking whether a step,
+     * section or the whole procedure is complete is a comparison of two
+     * counters kept there for each container, rather than a search.
+     */
+    private Progress _progress = null;
+
+    /*
+     * Each participant's tasks, and for each participant the position in
+     * their list before which all their tasks are known to be done.
+     */
+    private ParticipantIndex _participants = null;
+
+    private AtomicIntegerArray _pending = null;
+
+    private ProcedureOutline _outline = null;
+
+    /*
+     * The words of the titles, precis, participants and tasks, for search().
+     */
+    private TextIndex _text = null;
+
+    /*
+     * For a lazily loaded Procedure, the source bytes, what encoding they
+     * are in, and which sections have been filled in so far. _source is
+     * null otherwise.
+     */
+    private ByteBuffer _source = null;
+
+    private String _encoding = null;
+
+    private boolean[] _materialized = null;
+
+    /*
+     * Whether whitespace-only text was left out of the DOM, and the rest of
+     * the text normalized, as it was loaded.
+     */
+    private boolean _normalized = false;
 
     public Procedure(String xml) {
         if (xml == null) {
@@ -52,64 +152,481 @@ public class Procedure
          * turn the source XML into a DOM
          */
         _dom = XmlUtils.xmlStringToDOM(xml);
-        XmlUtils.addIDs(_dom);
+        annotate();
+    }
+
+    Procedure(Document dom, boolean normalized) {
+        _dom = dom;
+        _normalized = normalized;
+        annotate();
+    }
+
+    /*
+     * For a Procedure whose Document and model were both already built (and
+     * annotated), as when read back from its precompiled form.
+     */
+    Procedure(Document dom, ProcedureModel model, ElementIndex index) {
+        _dom = dom;
+        _model = model;
+        _elementIndex = index;
+        _normalized = true;
+        init();
+    }
+
+    private Procedure(OutlineScanner scanner, ByteBuffer source, boolean normalized) {
+        _normalized = normalized;
+        _dom = scanner.getDocument();
+        _model = scanner.getModel();
+        _elementIndex = scanner.getIndex();
+        _outline = scanner.getOutline(_model.getSize());
+        _source = source;
+        _encoding = scanner.getEncoding();
+        _materialized = new boolean[_outline.getSectionCount()];
+        init();
+    }
+
+    /*
+     * For a run of a template. Everything that doesn't change as the
+     * procedure is worked through is the template's; only the state is
+     * this Procedure's own.
+     */
+    Procedure(ProcedureTemplate template) {
+        _model = template.getModel();
+        _outline = template.getOutline();
+        _participants = template.getParticipants();
+        _text = template.getText();
+        start();
+    }
+
+    /**
+     * Create a Procedure which runs on a compact model alone, without a DOM
+     * Document behind it. getDOM() will return null.
+     */
+    public Procedure(ProcedureModel model) {
+        _model = model;
+        init();
+    }
 
-        // there really only is 1 <procedure>. No need to number it right now,
-        // but en verra. If we ever have mulitple <procedure>s per document,
-        // then we'll have to have a higher parent node of some sort.
+    /**
+     * Load a Procedure straight from a file. This is the preferred way to
+     * load anything of size, as the file is parsed in a single streaming
+     * pass and never held in memory as a String.
+     * 
+     * @param file
+     *            the procedure XML file to read.
+     * @throws FileNotFoundException
+     *             if the file isn't there, so that callers can try again
+     *             just as they do with XmlUtils.fileToString()
+     * @throws IllegalArgumentException
+     *             if the file isn't well formed XML.
+     */
+    public static Procedure load(Path file) throws IOException, FileNotFoundException {
+        return load(file, false);
+    }
 
-        NodeList sections = _dom.getElementsByTagName("section");
-        int num_sections = sections.getLength();
-        for (int j = 0; j < num_sections; j++) {
-            Element section = (Element) sections.item(j);
+    /**
+     * Load a Procedure from a file, optionally normalizing its text.
+     * 
+     * @param normalize
+     *            if true, the whitespace-only text between Elements is left
+     *            out of the DOM and all other text has its whitespace
+     *            collapsed, so task, title and precis text can be displayed
+     *            as is. See isNormalized().
+     */
+    public static Procedure load(Path file, boolean normalize) throws IOException, FileNotFoundException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file.toFile()));
+        try {
+            return load(in, normalize);
+        } finally {
+            in.close();
+        }
+    }
 
-            section.setAttribute("num", XmlUtils.indexToType(j + 1, 'I'));
+    /**
+     * Load a Procedure from a stream. The stream is read to the end, but it
+     * is left to the caller to close it.
+     */
+    public static Procedure load(InputStream in) {
+        return load(in, false);
+    }
+
+    public static Procedure load(InputStream in, boolean normalize) {
+        return new Procedure(XmlStreamLoader.streamToDOM(in, normalize), normalize);
+    }
+
+    /**
+     * Load a Procedure from a channel, ie a SocketChannel or FileChannel.
+     * As with the InputStream form, the channel is not closed.
+     */
+    public static Procedure load(ReadableByteChannel channel) {
+        return load(Channels.newInputStream(channel));
+    }
+
+    /**
+     * Load a Procedure lazily from a file. The file is memory mapped and
+     * scanned for its structure, but the DOM for each section isn't built
+     * until it's first needed. This is the way to open very large
+     * procedures.
+     * 
+     * @throws IllegalArgumentException
+     *             if the file isn't well formed XML, or uses something (an
+     *             encoding, or entities declared in its DTD) that can't be
+     *             handled without a full parse.
+     */
+    public static Procedure loadLazily(Path file) throws IOException, FileNotFoundException {
+        return loadLazily(file, false);
+    }
+
+    /**
+     * Load a Procedure lazily from a file, optionally normalizing its text
+     * as each section is built.
+     */
+    public static Procedure loadLazily(Path file, boolean normalize) throws IOException, FileNotFoundException {
+        RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return loadLazily(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), normalize);
+        } finally {
+            raf.close();
         }
+    }
 
-        /*
-         * steps number consecutively across the entire procedure document;
-         * they don't restart across section boundaries.
-         */
-        NodeList steps = _dom.getElementsByTagName("step");
-        int num_steps = steps.getLength();
-        for (int k = 0; k < num_steps; k++) {
-            Element step = (Element) steps.item(k);
-
-            step.setAttribute("num", XmlUtils.indexToType(k + 1, '1'));
-
-            NodeList names = step.getElementsByTagName("name");
-            int num_names = names.getLength();
-            for (int m = 0; m < num_names; m++) {
-                Element name = (Element) names.item(m);
-
-                /*
-                 * We skip setting a num attribute on name as it doesn't have
-                 * a canonical number
-                 */
-                NodeList tasks = name.getElementsByTagName("task");
-                int num_tasks = tasks.getLength();
-                for (int n = 0; n < num_tasks; n++) {
-                    Element task = (Element) tasks.item(n);
-
-                    task.setAttribute("num", XmlUtils.indexToType(n + 1, 'a'));
+    /**
+     * Load a Procedure lazily from the bytes of its XML, from the buffer's
+     * position to its limit. The buffer is retained, and must not be
+     * changed afterwards.
+     */
+    public static Procedure loadLazily(ByteBuffer source) {
+        return loadLazily(source, false);
+    }
+
+    public static Procedure loadLazily(ByteBuffer source, boolean normalize) {
+        OutlineScanner scanner = new OutlineScanner(source, normalize);
+        scanner.scan();
+        return new Procedure(scanner, source, normalize);
+    }
+
+    /*
+     * Add IDs and canonical numbers to the DOM, and build the model, outline
+     * and index we use to navigate it, all in one traversal of the tree.
+     */
+    private void annotate() {
+        Annotator annotator = new Annotator();
+        ModelBuilder builder = new ModelBuilder();
+        OutlineBuilder outline = new OutlineBuilder();
+
+        _elementIndex = new ElementIndex();
+
+        annotator.addVisitor(builder);
+        annotator.addVisitor(_elementIndex);
+        annotator.addVisitor(outline);
+
+        annotator.run(_dom);
+
+        _model = builder.toModel();
+        _outline = outline.toOutline(_model.getSize());
+        init();
+    }
+
+    private void init() {
+        if (_model.count(ProcedureModel.STEP) == 0) {
+            throw new IllegalArgumentException("The procedure doesn't have any step elements.");
+        }
+        _participants = new ParticipantIndex(_model);
+        buildTextIndex();
+
+        start();
+    }
+
+    /*
+     * Set up the state of a run: everything that changes as the procedure
+     * is worked through, as opposed to what it is.
+     */
+    private void start() {
+        _status = new StateVector(_model.status);
+        if (_dom != null) {
+            _unwritten = new AtomicIntegerArray((_model.getSize() + 31) / 32);
+        }
+
+        _pending = new AtomicIntegerArray(_model.people.length);
+        for (int p = 0; p < _pending.length(); p++) {
+            _pending.set(p, _participants.start(p));
+        }
+
+        _progress = new Progress(_model, _participants, _status);
+    }
+
+    /*
+     * Index whatever text there is to hand: titles and precis from the
+     * outline, participants from the model, and the tasks in any sections
+     * already built. The tasks of a lazily loaded section are added as it is
+     * materialized.
+     */
+    private void buildTextIndex() {
+        final ProcedureOutline outline = getOutline();
+        final int size = _model.getSize();
+
+        _text = new TextIndex();
+
+        for (int node = 0; node < size; node++) {
+            switch (_model.getTag(node)) {
+            case ProcedureModel.PROCEDURE:
+            case ProcedureModel.STEP:
+                _text.add(node, outline.getTitle(node));
+                break;
+            case ProcedureModel.SECTION:
+                _text.add(node, outline.getTitle(node));
+                _text.add(node, outline.getPrecis(outline.getSectionIndex(node)));
+                break;
+            case ProcedureModel.NAME:
+                _text.add(node, _model.getWho(node));
+                break;
+            case ProcedureModel.TASK:
+                Element task = peekElement(node);
+                if (task != null) {
+                    _text.add(node, task.getTextContent());
                 }
+                break;
             }
         }
+    }
+
+    /*
+     * Get the DOM Element for a node, filling in its section first if need
+     * be. Only meaningful if we have a DOM.
+     */
+    Element getElement(int node) {
+        if (_source != null) {
+            int section = (_model.getTag(node) == ProcedureModel.SECTION) ? node : _model.getAncestor(node,
+                    ProcedureModel.SECTION);
+            if (section != -1) {
+                materialize(_outline.getSectionIndex(section));
+            }
+        }
+        writeStatus();
+        return _elementIndex.getElementById(ProcedureModel.toId(node));
+    }
+
+    /*
+     * Get the DOM Element for a node only if it has already been built.
+     */
+    private Element peekElement(int node) {
+        if (_dom == null) {
+            return null;
+        }
+        if (_source != null) {
+            int section = _model.getAncestor(node, ProcedureModel.SECTION);
+            if ((section != -1) && !_materialized[_outline.getSectionIndex(section)]) {
+                return null;
+            }
+        }
+        return _elementIndex.getElementById(ProcedureModel.toId(node));
+    }
+
+    /*
+     * Parse a section's bytes into its placeholder Element, then give its
+     * Elements the IDs, numbers and status they would have had if the whole
+     * document had been loaded at once.
+     */
+    private synchronized void materialize(int index) {
+        if (_materialized[index]) {
+            return;
+        }
+
+        final int section = _outline.getSectionNode(index);
+        final int start = _outline.getStartOffset(index);
+        final int end = _outline.getEndOffset(index);
+
+        Element placeholder = _elementIndex.getElementById(ProcedureModel.toId(section));
+
+        byte[] fragment = new byte[end - start];
+        ByteBuffer dup = _source.duplicate();
+        dup.position(start);
+        dup.get(fragment);
+
+        byte[] declaration = ("<?xml version=\"1.0\" encoding=\"" + _encoding + "\"?>").getBytes(Charset
+                .forName("US-ASCII"));
 
         /*
-         * Build indexes
+         * The scanner checked that the tags nest but didn't look at the text
+         * in between, so this is where a bad entity or character is found.
+         * Take back whatever was built before it, so that the placeholder is
+         * as it was and asking again fails the same way.
          */
-        _elementIndex = new ElementIndex(_dom);
-        _stepIndex = new IdIndex(_dom, "step");
+        try {
+            XmlStreamLoader.streamInto(new SequenceInputStream(new ByteArrayInputStream(declaration),
+                    new ByteArrayInputStream(fragment)), placeholder, _normalized);
+        } catch (IllegalArgumentException iae) {
+            while (placeholder.getFirstChild() != null) {
+                placeholder.removeChild(placeholder.getFirstChild());
+            }
+            throw new IllegalArgumentException("Section " + _model.getNum(section) + " isn't well formed: "
+                    + iae.getMessage());
+        }
+
+        Annotator annotator = new Annotator();
+        annotator.addVisitor(new DocumentVisitor() {
+            public void startElement(Element element, int ordinal) {
+                if (ProcedureModel.tagCode(element.getTagName()) != _model.getTag(ordinal)) {
+                    throw new DebugException("Section " + section + " doesn't match its outline at <"
+                            + element.getTagName() + ">");
+                }
+                String num = _model.getNum(ordinal);
+                if (num.length() > 0) {
+                    element.setAttribute("num", num);
+                }
+                int state = _status.get(ordinal);
+                if (state != State.STANDBY) {
+                    element.setAttribute("status", State.statuses[state]);
+                }
+            }
+
+            public void endElement(Element element, int ordinal) {
+            // nothing to do
+            }
+        });
+        annotator.addVisitor(_elementIndex);
+        annotator.run(placeholder, section);
+
+        if (annotator.getElementsVisited() != _model.getSubtreeEnd(section) - section) {
+            throw new DebugException("Section " + section + " has a different number of elements than its outline");
+        }
+
+        for (int node = section + 1; node < _model.getSubtreeEnd(section); node++) {
+            if (_model.getTag(node) == ProcedureModel.TASK) {
+                Element task = _elementIndex.getElementById(ProcedureModel.toId(node));
+                _text.add(node, task.getTextContent());
+            }
+        }
+
+        _materialized[index] = true;
+    }
+
+    /**
+     * Get a <section> Element, with all its content. If the procedure was
+     * loaded lazily, this is what causes the section to be parsed.
+     * 
+     * @throws IllegalArgumentException
+     *             if the procedure was loaded lazily and the section's
+     *             content, which wasn't looked at then, turns out not to be
+     *             well formed.
+     */
+    public Element getSection(String sectionId) {
+        int section = node(sectionId);
+        if (_model.getTag(section) != ProcedureModel.SECTION) {
+            throw new DebugException("You asked for " + sectionId + " as a section, but it isn't one");
+        }
+        return getElement(section);
+    }
+
+    /**
+     * @return whether the text in this Procedure's DOM is already
+     *         normalized, with no whitespace-only Text nodes. This is the
+     *         case if it was loaded in normalizing mode, or from its
+     *         precompiled form.
+     */
+    public boolean isNormalized() {
+        return _normalized;
+    }
+
+    /**
+     * @return whether this Procedure was loaded lazily.
+     */
+    public boolean isLazy() {
+        return _source != null;
+    }
+
+    /**
+     * @return whether a section's content has been built yet. Always true
+     *         unless the Procedure was loaded lazily.
+     */
+    public boolean isMaterialized(String sectionId) {
+        if (_source == null) {
+            return true;
+        }
+        int index = getOutline().getSectionIndex(node(sectionId));
+        if (index == -1) {
+            throw new DebugException(sectionId + " isn't a section");
+        }
+        return _materialized[index];
+    }
+
+    /**
+     * Get the outline of this procedure, its section and step titles. This
+     * is worked out as the procedure is loaded, whichever way titles are
+     * given in it.
+     */
+    public ProcedureOutline getOutline() {
+        if (_outline == null) {
+            _outline = buildOutline();
+        }
+        return _outline;
+    }
+
+    /*
+     * For a Procedure read back from its precompiled form, or made from a
+     * model alone.
+     */
+    private ProcedureOutline buildOutline() {
+        OutlineBuilder outline = new OutlineBuilder();
+
+        if (_dom != null) {
+            Annotator annotator = new Annotator();
+            annotator.addVisitor(outline);
+            annotator.run(_dom);
+        } else {
+            for (int node = 0; node < _model.getSize(); node++) {
+                if (_model.getTag(node) == ProcedureModel.SECTION) {
+                    outline.addSection(node);
+                }
+            }
+        }
+        return outline.toOutline(_model.getSize());
+    }
+
+    /*
+     * Look up the node number for an ID.
+     */
+    private int node(String id) {
+        int node = _model.toNode(id);
+        if (node == -1) {
+            throw new DebugException("You asked for an element, " + id + ", that isn't there!");
+        }
+        return node;
+    }
+
+    /*
+     * Check a node number handed in by a caller.
+     */
+    private int node(int node) {
+        if ((node < 0) || (node >= _model.getSize())) {
+            throw new IllegalArgumentException("There is no node " + node + " in this procedure");
+        }
+        return node;
+    }
+
+    /*
+     * The ID for a node number, or null for -1.
+     */
+    private static String id(int node) {
+        return (node == -1) ? null : ProcedureModel.toId(node);
     }
 
     /**
-     * @return
+     * @return the DOM Document this Procedure was loaded from, or null if
+     *         it was created from a ProcedureModel alone.
      */
     public Document getDOM() {
+        if (_dom != null) {
+            writeStatus();
+        }
         return _dom;
     }
 
+    public ProcedureModel getModel() {
+        return _model;
+    }
+
     /**
      * Set a task as done, by ID.
      * 
@@ -118,54 +635,124 @@ public class Procedure
      *         this step for this person are done.
      */
     public String setTaskAsDone(String taskId) {
-        Element task = _elementIndex.getElementById(taskId);
+        return id(setTaskAsDone(node(taskId)));
+    }
 
-        task.setAttribute("status", "done");
+    /**
+     * Set a task as done, by node number. This is what setTaskAsDone(String)
+     * does, without looking up or making any ID Strings along the way.
+     * 
+     * @return the next task in this step, or -1 if all the tasks in this
+     *         step for this person are done.
+     */
+    public int setTaskAsDone(int task) {
+        markDone(task);
 
-        return getNextTaskId(taskId);
+        return getNextTask(task);
     }
 
     /**
-     * Get the next task ID in this step
+     * Move a node to DONE, if it isn't already. Safe to call from several
+     * threads with the same node at once: exactly one of them sees true.
      * 
-     * @param thisTaskId
-     * @return null if all the tasks for [this person in] this step are
-     *         complete (as judged by sequential ordering; preceding tasks
-     *         before thisTaskId are assumed to already be complete).
+     * @return true if this call made the change, false if the node was
+     *         already done.
      */
-    public String getNextTaskId(String thisTaskId) {
-        Element task = _elementIndex.getElementById(thisTaskId);
+    public boolean markDone(int node) {
+        node(node);
 
-        return getNextTask(task);
+        while (true) {
+            int previous = _status.get(node);
+            if (previous == State.DONE) {
+                return false;
+            }
+            if (_status.compareAndSet(node, previous, State.DONE)) {
+                break;
+            }
+            /*
+             * Someone else changed it first; see what it is now.
+             */
+        }
+
+        if (_model.getTag(node) == ProcedureModel.TASK) {
+            _progress.taskDone(node);
+        }
+        if (_dom != null) {
+            final int j = node / 32;
+            final int bit = 1 << (node % 32);
+            while (true) {
+                int word = _unwritten.get(j);
+                if (((word & bit) != 0) || _unwritten.compareAndSet(j, word, word | bit)) {
+                    break;
+                }
+            }
+        }
+        return true;
     }
 
     /*
-     * Actually do the work. This is admittedly tricky code as you have to
-     * fight through the non-Element Nodes to get to the next Element
-     * sibbling.
+     * Write the status attributes of any nodes that have changed since the
+     * DOM was last looked at. If a lazily loaded section hasn't been built
+     * yet, the status will be set when it is.
      */
-    private String getNextTask(Element thisTask) {
-        Node sibling = thisTask;
+    private synchronized void writeStatus() {
+        if (_unwritten == null) {
+            return;
+        }
 
-        while ((sibling = sibling.getNextSibling()) != null) {
-            if (sibling.getNodeType() != Node.ELEMENT_NODE) {
-                // System.err.println("Sibling node not an Element, its " +
-                // sibling.getNodeType() + " " + sibling.toString());
+        for (int j = 0; j < _unwritten.length(); j++) {
+            if (_unwritten.get(j) == 0) {
                 continue;
-            } else {
-                break;
             }
-        }
-        Element nextTask = (Element) sibling;
+            int word = _unwritten.getAndSet(j, 0);
+            while (word != 0) {
+                final int bit = Integer.numberOfTrailingZeros(word);
+                word &= word - 1;
 
-        if (nextTask == null) {
-            // if null it's ok - just means last task in this step/name.
-            return null;
-        } else {
-            return nextTask.getAttribute("id");
+                final int node = j * 32 + bit;
+                Element element = peekElement(node);
+                if (element != null) {
+                    element.setAttribute("status", State.statuses[_status.get(node)]);
+                }
+            }
         }
     }
 
+    /**
+     * Take a copy of the State of every node, as it stands now. This is a
+     * copy of a packed array, not a walk of the Document, and is consistent
+     * even if tasks are being done on other threads while it is taken.
+     */
+    public StateVector getStates() {
+        return _status.snapshot();
+    }
+
+    /**
+     * Get the next task ID in this step
+     * 
+     * @param thisTaskId
+     * @return null if all the tasks for [this person in] this step are
+     *         complete (as judged by sequential ordering; preceding tasks
+     *         before thisTaskId are assumed to already be complete).
+     */
+    public String getNextTaskId(String thisTaskId) {
+        return id(getNextTask(node(thisTaskId)));
+    }
+
+    /**
+     * Get the next task in this step, by node number.
+     * 
+     * @return -1 if this is the last task for [this person in] this step.
+     */
+    public int getNextTask(int thisTask) {
+        /*
+         * The model only links Elements, so unlike in the DOM there's no
+         * fighting through whitespace Nodes to get to the next sibbling. -1
+         * just means last task in this step/name.
+         */
+        return _model.getNextSibling(node(thisTask));
+    }
+
     /**
      * Find out whether the current {procedure, section, step, name} is
      * complete.
@@ -174,35 +761,84 @@ public class Procedure
      * @return true if all of the current tasks for this hierarchy are done.
      */
     public boolean isProcedureDone(String taskId) {
-        return isDone(taskId, "procedure");
+        return isDone(node(taskId), ProcedureModel.PROCEDURE);
     }
 
     public boolean isSectionDone(String taskId) {
-        return isDone(taskId, "section");
+        return isDone(node(taskId), ProcedureModel.SECTION);
     }
 
     public boolean isStepDone(String taskId) {
-        return isDone(taskId, "step");
+        return isDone(node(taskId), ProcedureModel.STEP);
     }
 
     public boolean isNameDone(String taskId) {
         // will only be one step up, but same logic as other is...Done methods
-        return isDone(taskId, "name");
+        return isDone(node(taskId), ProcedureModel.NAME);
     }
 
-    private boolean isDone(String taskId, String parentTagName) {
-        Element task = _elementIndex.getElementById(taskId);
+    /**
+     * As isProcedureDone() and friends, but for any of PROCEDURE, SECTION,
+     * STEP or NAME, and by node number.
+     */
+    public boolean isDone(int task, byte parentTag) {
+        int parent = _model.getAncestor(node(task), parentTag);
 
-        Element parent = XmlUtils.getParentElement(task, parentTagName);
+        return _progress.isComplete(parent);
+    }
 
-        NodeList tasks = parent.getElementsByTagName("task");
-        for (int i = 0; i < tasks.getLength(); i++) {
-            Element t = (Element) tasks.item(i);
-            if (!(t.getAttribute("status").equals("done"))) {
-                return false;
+    /**
+     * Find out how far through the procedure, its sections, and each
+     * participant's tasks, things are. The object returned is live; it
+     * changes as tasks are done.
+     */
+    public Progress getProgress() {
+        return _progress;
+    }
+
+    /**
+     * Search the text of the procedure: section, step and procedure titles,
+     * section precis, participant names, and task text. Every word of the
+     * query must match the start of a word in an element's text (ignoring
+     * case) for it to be found. Searching a lazily loaded procedure builds
+     * any sections not yet built, as their tasks' text isn't known until
+     * then.
+     *
+     * @return the IDs of the matching elements, in document order.
+     */
+    public synchronized String[] search(String query) {
+        if (_source != null) {
+            for (int i = 0; i < _materialized.length; i++) {
+                materialize(i);
             }
         }
-        return true;
+
+        return toIds(_text.search(query));
+    }
+
+    static String[] toIds(int[] nodes) {
+        String[] ids = new String[nodes.length];
+
+        for (int i = 0; i < nodes.length; i++) {
+            ids[i] = ProcedureModel.toId(nodes[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * Make a template from this Procedure: what it is, without the state
+     * it's in, so that any number of fresh runs can be started from it
+     * cheaply. The Document isn't part of a template. A lazily loaded
+     * Procedure has all its sections built first, so their text can be
+     * searched.
+     */
+    public synchronized ProcedureTemplate toTemplate() {
+        if (_source != null) {
+            for (int i = 0; i < _materialized.length; i++) {
+                materialize(i);
+            }
+        }
+        return new ProcedureTemplate(_model, getOutline(), _participants, _text);
     }
 
     /*
@@ -210,12 +846,15 @@ public class Procedure
      * either done or not.
      */
     public boolean isTaskDone(String taskId) {
-        Element task = _elementIndex.getElementById(taskId);
-        if (task == null) {
+        int task = _model.toNode(taskId);
+        if (task == -1) {
             throw new DebugException("You asked for a task, " + taskId + ", that isn't there!");
         }
-        String status = task.getAttribute("status");
-        return ((status != null) && (status.equals("done")));
+        return (_status.get(task) == State.DONE);
+    }
+
+    public boolean isTaskDone(int task) {
+        return (_status.get(node(task)) == State.DONE);
     }
 
     /**
@@ -230,15 +869,39 @@ public class Procedure
      * @return the ID string of the found parent.
      */
     public String getParentId(String id, String parentTagName) {
-        Element task = _elementIndex.getElementById(id);
-        Element parent = XmlUtils.getParentElement(task, parentTagName);
-        if (parent == null) {
-            // TODO, yes, this could be a null return, but this should be used
-            // under controlled circumstances.
+        byte code = ProcedureModel.tagCode(parentTagName);
+
+        if (code == ProcedureModel.OTHER) {
             throw new DebugException("You asked for a <" + parentTagName + "> parent of element " + id
                     + ". There was't one.");
         }
-        return parent.getAttribute("id");
+        return getParentId(id, code);
+    }
+
+    /**
+     * As getParentId(String, String), but by tag code, one of
+     * ProcedureModel's PROCEDURE, SECTION, STEP or NAME; the answer is then
+     * a single lookup in the model's ancestor table.
+     */
+    public String getParentId(String id, byte parentTag) {
+        int parent = getParent(node(id), parentTag);
+
+        if (parent == -1) {
+            // TODO, yes, this could be a null return, but this should be used
+            // under controlled circumstances.
+            throw new DebugException("You asked for a <" + ProcedureModel.tagNames[parentTag]
+                    + "> parent of element " + id + ". There was't one.");
+        }
+        return ProcedureModel.toId(parent);
+    }
+
+    /**
+     * As getParentId(String, byte), by node number.
+     * 
+     * @return the parent's node number, or -1 if there isn't one.
+     */
+    public int getParent(int node, byte parentTag) {
+        return _model.getAncestor(node(node), parentTag);
     }
 
     /**
@@ -252,8 +915,7 @@ public class Procedure
      *         found as a child of the specified node.
      */
     public String getFirstTaskId(String parentId) {
-        Element parent = _elementIndex.getElementById(parentId);
-        return getFirstTaskId(parent);
+        return id(getFirstTask(node(parentId)));
     }
 
     /**
@@ -266,13 +928,23 @@ public class Procedure
      *         found as a child of the specified node.
      */
     public String getFirstTaskId(Element parent) {
-        NodeList tasks = parent.getElementsByTagName("task");
-        if (tasks.getLength() == 0) {
-            return null;
-        }
-        Element firstTask = (Element) tasks.item(0);
+        return id(getFirstTask(node(parent.getAttribute("id"))));
+    }
+
+    /**
+     * Find the first task under a node, by node number.
+     * 
+     * @return the task, or -1 if there isn't one.
+     */
+    public int getFirstTask(int parent) {
+        OrdinalIndex ordinals = _model.getOrdinals();
+        int firstTask = ordinals.select(ProcedureModel.TASK, ordinals.countBefore(ProcedureModel.TASK,
+                node(parent) + 1));
 
-        return firstTask.getAttribute("id");
+        if ((firstTask == -1) || !_model.getIntervals().isAncestor(parent, firstTask)) {
+            return -1;
+        }
+        return firstTask;
     }
 
     /**
@@ -286,39 +958,145 @@ public class Procedure
      * @return That person's first task's ID, or null if none.
      */
     public String getFirstTaskId(String stepId, String who) {
-        Element step = _elementIndex.getElementById(stepId);
-        NodeList names = step.getElementsByTagName("name");
-        for (int i = 0; i < names.getLength(); i++) {
-            Element name = (Element) names.item(i);
-            if (name.getAttribute("who").equals(who)) {
-                NodeList tasks = name.getElementsByTagName("task");
-                if (tasks.getLength() == 0) {
-                    /*
-                     * who is mentioned, but has no tasks. Weird, but not
-                     * illegal.
-                     */
-                    return null;
-                }
-                Element firstTask = (Element) tasks.item(0);
-                return firstTask.getAttribute("id");
-            }
+        return id(getFirstTask(node(stepId), who));
+    }
+
+    /**
+     * Given a step by node number, find the first task for a given person.
+     * 
+     * @return That person's first task, or -1 if none.
+     */
+    public int getFirstTask(int step, String who) {
+        int code = _model.getWhoCode(who);
+        if (code == -1) {
+            /*
+             * person who isn't anywhere in this procedure, so, no tasks.
+             */
+            return -1;
+        }
+
+        node(step);
+        int position = _participants.search(code, step);
+
+        /*
+         * if who isn't in this step, or is mentioned but has no tasks
+         * (weird, but not illegal) the search will have run past the end of
+         * the step.
+         */
+        if ((position == _participants.end(code))
+                || (_participants.getTask(position) >= _model.getSubtreeEnd(step))) {
+            return -1;
+        }
+        return _participants.getTask(position);
+    }
+
+    /**
+     * Find the first of a person's tasks, anywhere in the procedure, that
+     * isn't done yet.
+     * 
+     * @param who
+     *            the name/@who whose tasks we're interested in.
+     * @return the ID of the task, or null if all of that person's tasks are
+     *         done (or they don't have any).
+     */
+    public String nextPendingTaskFor(String who) {
+        int code = _model.getWhoCode(who);
+        if (code == -1) {
+            return null;
+        }
+
+        /*
+         * Tasks only ever go to done, so there's no need to look again at
+         * ones that were done last time we were asked.
+         */
+        final int start = _pending.get(code);
+        final int end = _participants.end(code);
+        int position = start;
+        while ((position < end) && (_status.get(_participants.getTask(position)) == State.DONE)) {
+            position++;
         }
+
         /*
-         * person who wasn't found in this step, so, no tasks.
+         * Another thread may have been asking too; only ever move the
+         * cursor forward.
          */
-        return null;
+        int seen = start;
+        while ((seen < position) && !_pending.compareAndSet(code, seen, position)) {
+            seen = _pending.get(code);
+        }
+
+        if (position == end) {
+            return null;
+        }
+        return ProcedureModel.toId(_participants.getTask(position));
+    }
+
+    /**
+     * Find the first of a person's tasks in a given step that isn't done
+     * yet.
+     * 
+     * @return the ID of the task, or null if all of that person's tasks in
+     *         the step are done (or they don't have any there).
+     */
+    public String nextPendingTaskFor(String stepId, String who) {
+        return id(nextPendingTaskFor(node(stepId), who));
+    }
+
+    /**
+     * As nextPendingTaskFor(String, String), with the step by node number.
+     * 
+     * @return the task, or -1 if there isn't one.
+     */
+    public int nextPendingTaskFor(int step, String who) {
+        int code = _model.getWhoCode(who);
+        if (code == -1) {
+            return -1;
+        }
+
+        node(step);
+        int last = _model.getSubtreeEnd(step);
+        int end = _participants.end(code);
+
+        for (int position = _participants.search(code, step); position < end; position++) {
+            int task = _participants.getTask(position);
+            if (task >= last) {
+                break;
+            }
+            if (_status.get(task) != State.DONE) {
+                return task;
+            }
+        }
+        return -1;
     }
 
     /**
      * Get the ID of the next step.
      * 
      * @param currentStepId
-     *            an (any) ID string from the previous step.
+     *            the ID string of the previous step.
      * @return the ID string of the next step, or null if we don't know of
      *         one.
      */
     public String getNextStepId(String currentStepId) {
-        return _stepIndex.getNextId(currentStepId);
+        return id(getNextStep(node(currentStepId)));
+    }
+
+    /**
+     * Get the next step, by node number.
+     * 
+     * @return the next step, or -1 if this is the last one.
+     */
+    public int getNextStep(int step) {
+        if (_model.getTag(node(step)) != ProcedureModel.STEP) {
+            throw new DebugException("Trying to get the step after " + ProcedureModel.toId(step)
+                    + ", which isn't a step");
+        }
+
+        /*
+         * Steps don't nest, so the next one in document order is the next
+         * step.
+         */
+        return _model.getOrdinals().next(step);
     }
 
     /**
@@ -331,12 +1109,17 @@ public class Procedure
      *            the person who we are asking about
      */
     public boolean isTaskMine(String taskId, String who) {
-        String nameId = getParentId(taskId, "name");
-        Element name = _elementIndex.getElementById(nameId);
-        if (name.getAttribute("who").equals(who)) {
-            return true;
-        } else {
-            return false;
+        return isTaskMine(node(taskId), who);
+    }
+
+    public boolean isTaskMine(int task, String who) {
+        int name = _model.getAncestor(node(task), ProcedureModel.NAME);
+        if (name == -1) {
+            throw new DebugException("You asked for a <name> parent of element " + ProcedureModel.toId(task)
+                    + ". There was't one.");
         }
+        int code = _model.getWhoCode(name);
+
+        return (code != -1) && (code == _model.getWhoCode(who));
     }
 }
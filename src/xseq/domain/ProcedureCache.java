@@ -0,0 +1,226 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import generic.util.DebugException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A directory of precompiled procedures, keyed by a hash of the source XML.
+ * Loading a procedure through the cache streams the source through a
+ * digest to get its key; if a .xseqb for that key is present it is memory
+ * mapped and decoded, otherwise the XML is parsed (and hashed again as it
+ * goes by) and the result written to the cache for next time. A damaged
+ * entry counts as a miss, and is replaced.
+ *
+ * <P>
+ * Procedures come back normalized (see Procedure.isNormalized()) either
+ * way, as that is the only form the binary format can hold.
+ *
+ * <P>
+ * Because the key is the content, not the filename, an edited procedure
+ * simply misses; stale entries are never returned. Nothing is ever evicted.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureCache
+{
+    private static final String SUFFIX = ".xseqb";
+
+    private final File _dir;
+
+    private int _hits;
+
+    private int _misses;
+
+    /**
+     * @param dir
+     *            the cache directory. It will be created if it doesn't
+     *            exist.
+     */
+    public ProcedureCache(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create procedure cache directory " + dir);
+        }
+        _dir = dir;
+    }
+
+    /**
+     * Load a procedure, from the cache if possible.
+     *
+     * @throws FileNotFoundException
+     *             if the source file isn't there.
+     * @throws IllegalArgumentException
+     *             if the source isn't well formed XML.
+     */
+    public Procedure load(Path source) throws IOException, FileNotFoundException {
+        final File file = source.toFile();
+        File cached = new File(_dir, toHex(digest(file)) + SUFFIX);
+
+        if (cached.isFile()) {
+            try {
+                Procedure p = map(cached);
+                _hits++;
+                return p;
+            } catch (IllegalArgumentException iae) {
+                /*
+                 * Written by a different version, or damaged. Carry on as
+                 * for a miss, and replace it.
+                 */
+            }
+        }
+
+        _misses++;
+
+        final MessageDigest digest = newDigest();
+        final InputStream in = new DigestInputStream(new BufferedInputStream(new FileInputStream(file)), digest);
+        final Procedure p;
+        try {
+            /*
+             * The JDK's StAX reader closes its input when it gets to the end
+             * of the document, which would stop us draining what's left.
+             */
+            p = Procedure.load(new FilterInputStream(in) {
+                public void close() {}
+            }, true);
+            drain(in);
+        } finally {
+            in.close();
+        }
+
+        /*
+         * Keyed by what was actually parsed, in case the file changed after
+         * we hashed it above.
+         */
+        store(p, new File(_dir, toHex(digest.digest()) + SUFFIX));
+        return p;
+    }
+
+    private static Procedure map(File cached) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(cached, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return ProcedureCodec.read(buf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+     * Write to a temporary file and then rename it into place, so that a
+     * concurrent reader never maps a half written entry.
+     */
+    private void store(Procedure p, File cached) throws IOException {
+        File tmp = File.createTempFile("xseq", ".tmp", _dir);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            ProcedureCodec.write(p, out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(cached)) {
+            tmp.delete();
+        }
+    }
+
+    /*
+     * The parser may stop at the end of the root element; anything after it
+     * still has to go through the digest.
+     */
+    private static void drain(InputStream in) throws IOException {
+        byte[] buf = new byte[4096];
+        while (in.read(buf) != -1) {
+            // just digesting
+        }
+    }
+
+    /*
+     * SHA-1 of a file's contents, read a block at a time.
+     */
+    private static byte[] digest(File file) throws IOException, FileNotFoundException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                digest.update(buf, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    /*
+     * The format version is mixed in first, so that a change of format
+     * invalidates everything.
+     */
+    private static MessageDigest newDigest() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new DebugException("SHA-1 is required to be present in every Java runtime");
+        }
+        digest.update((byte) ProcedureCodec.VERSION);
+        return digest;
+    }
+
+    private static String toHex(byte[] sum) {
+        StringBuilder buf = new StringBuilder(sum.length * 2);
+        for (int i = 0; i < sum.length; i++) {
+            buf.append(Character.forDigit((sum[i] >> 4) & 0xF, 16));
+            buf.append(Character.forDigit(sum[i] & 0xF, 16));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * @return how many loads were satisfied from the cache.
+     */
+    public int getHits() {
+        return _hits;
+    }
+
+    /**
+     * @return how many loads had to parse the source.
+     */
+    public int getMisses() {
+        return _misses;
+    }
+}
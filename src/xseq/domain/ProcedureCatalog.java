@@ -0,0 +1,110 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The result of loading a ProcedureLibrary: the Procedures that loaded, the
+ * files that didn't and why, and how long each one took. Entries are keyed
+ * by path relative to the library directory, with '/' as the separator.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureCatalog
+{
+    private final TreeMap<String, Procedure> _procedures;
+
+    private final TreeMap<String, String> _failures;
+
+    private final TreeMap<String, Long> _times;
+
+    private final long _elapsed;
+
+    ProcedureCatalog(String[] names, Procedure[] procedures, String[] failures, long[] times, long elapsed) {
+        _procedures = new TreeMap<String, Procedure>();
+        _failures = new TreeMap<String, String>();
+        _times = new TreeMap<String, Long>();
+
+        for (int i = 0; i < names.length; i++) {
+            if (procedures[i] != null) {
+                _procedures.put(names[i], procedures[i]);
+            } else {
+                _failures.put(names[i], failures[i]);
+            }
+            _times.put(names[i], times[i]);
+        }
+        _elapsed = elapsed;
+    }
+
+    /**
+     * @return the names of the procedures that loaded, in order.
+     */
+    public Set<String> getNames() {
+        return _procedures.keySet();
+    }
+
+    /**
+     * @return the named Procedure, or null if there's no such file or it
+     *         failed to load.
+     */
+    public Procedure getProcedure(String name) {
+        return _procedures.get(name);
+    }
+
+    public int getSize() {
+        return _procedures.size();
+    }
+
+    /**
+     * @return the names of the files that failed to load, in order.
+     */
+    public Set<String> getFailed() {
+        return _failures.keySet();
+    }
+
+    /**
+     * @return why the named file failed to load, or null if it didn't fail.
+     */
+    public String getFailure(String name) {
+        return _failures.get(name);
+    }
+
+    /**
+     * @return how long, in nanoseconds, it took to read, parse, validate
+     *         and index the named file, whether or not it succeeded; -1 if
+     *         the file wasn't part of the library.
+     */
+    public long getTime(String name) {
+        Long time = _times.get(name);
+        if (time == null) {
+            return -1;
+        }
+        return time.longValue();
+    }
+
+    /**
+     * @return the wall clock time, in nanoseconds, that loading the whole
+     *         library took.
+     */
+    public long getElapsed() {
+        return _elapsed;
+    }
+}
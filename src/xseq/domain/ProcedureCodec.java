@@ -0,0 +1,351 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import xseq.services.ElementIndex;
+import xseq.services.XmlStreamLoader;
+import xseq.services.XmlUtils;
+
+/**
+ * Write and read the precompiled ".xseqb" binary form of a procedure. This
+ * is a fully annotated procedure: the ProcedureModel's columns, plus each
+ * Element's name, attributes (including the id and num attributes we add)
+ * and normalized text. Reading it back gives a Procedure and its Document
+ * without any XML parsing or renumbering.
+ *
+ * <P>
+ * Layout, all big endian:
+ *
+ * <PRE>
+ * int       magic, version
+ * int       number of strings, then for each: int length, UTF-8 bytes
+ * int       number of people, then that many string indexes
+ * int       number of elements N
+ * int[N]    parent, firstChild, nextSibling, who, number
+ * byte[N]   tag, status
+ * N times:  int name, int text (-1 if none), int number of attributes,
+ *           then for each: int name, int value
+ * </PRE>
+ *
+ * Only the text directly inside an Element is kept, and it is normalized;
+ * whitespace between Elements is dropped. That is fine for the procedure
+ * DTD, which has no mixed content.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureCodec
+{
+    private static final int MAGIC = 0x78736571; // "xseq"
+
+    static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ProcedureCodec() {}
+
+    /**
+     * Write a freshly loaded Procedure out in binary form. It must have
+     * been loaded with a DOM.
+     */
+    public static void write(Procedure p, OutputStream os) throws IOException {
+        final Document dom = p.getDOM();
+        final ProcedureModel model = p.getModel();
+        final int size = model.size;
+
+        if (dom == null) {
+            throw new IllegalArgumentException("Can only write out a Procedure that has a DOM");
+        }
+
+        /*
+         * First pass: gather the Elements in node order, and intern all the
+         * strings we're going to need.
+         */
+        final ArrayList<String> strings = new ArrayList<String>();
+        final HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+        int[] names = new int[size];
+        int[] texts = new int[size];
+        int[][] attributes = new int[size][];
+
+        for (int i = 0; i < size; i++) {
+            Element element = p.getElement(i);
+
+            names[i] = intern(element.getTagName(), strings, index);
+
+            String text = directText(element);
+            texts[i] = (text == null) ? -1 : intern(text, strings, index);
+
+            NamedNodeMap attrs = element.getAttributes();
+            int num = attrs.getLength();
+            int[] pairs = new int[num * 2];
+            for (int j = 0; j < num; j++) {
+                Attr attr = (Attr) attrs.item(j);
+                pairs[j * 2] = intern(attr.getName(), strings, index);
+                pairs[j * 2 + 1] = intern(attr.getValue(), strings, index);
+            }
+            attributes[i] = pairs;
+        }
+
+        int[] people = new int[model.people.length];
+        for (int i = 0; i < people.length; i++) {
+            people[i] = intern(model.people[i], strings, index);
+        }
+
+        /*
+         * Now write it all out.
+         */
+        DataOutputStream out = new DataOutputStream(os);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        out.writeInt(strings.size());
+        for (String str : strings) {
+            byte[] bytes = str.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        writeInts(out, people);
+
+        out.writeInt(size);
+        writeColumn(out, model.parent);
+        writeColumn(out, model.firstChild);
+        writeColumn(out, model.nextSibling);
+        writeColumn(out, model.who);
+        writeColumn(out, model.number);
+        out.write(model.tag);
+        out.write(model.status);
+
+        for (int i = 0; i < size; i++) {
+            out.writeInt(names[i]);
+            out.writeInt(texts[i]);
+            writeInts(out, attributes[i]);
+        }
+
+        out.flush();
+    }
+
+    private static int intern(String str, ArrayList<String> strings, HashMap<String, Integer> index) {
+        Integer i = index.get(str);
+        if (i == null) {
+            i = Integer.valueOf(strings.size());
+            strings.add(str);
+            index.put(str, i);
+        }
+        return i.intValue();
+    }
+
+    /*
+     * Concatenate and normalize the Text children of an Element, returning
+     * null if there's nothing but whitespace.
+     */
+    private static String directText(Element element) {
+        StringBuilder buf = null;
+
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            short type = child.getNodeType();
+            if ((type == Node.TEXT_NODE) || (type == Node.CDATA_SECTION_NODE)) {
+                if (buf == null) {
+                    buf = new StringBuilder();
+                }
+                buf.append(child.getNodeValue());
+            }
+        }
+        if (buf == null) {
+            return null;
+        }
+        String text = XmlUtils.normalizeText(buf.toString());
+        if (text.length() == 0) {
+            return null;
+        }
+        return text;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        writeColumn(out, values);
+    }
+
+    private static void writeColumn(DataOutputStream out, int[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    /**
+     * Reconstitute a Procedure (and its DOM) from its binary form.
+     *
+     * @param buf
+     *            typically a MappedByteBuffer over a .xseqb file, positioned
+     *            at its start.
+     * @throws IllegalArgumentException
+     *             if the buffer doesn't contain something we wrote, or is
+     *             truncated or damaged.
+     */
+    public static Procedure read(ByteBuffer buf) {
+        /*
+         * Lengths and references are checked as they are read, but a
+         * damaged file can be wrong in more ways than are worth checking
+         * for one by one; whatever it trips over, it's a bad file, not a bug.
+         */
+        try {
+            return decode(buf);
+        } catch (BufferUnderflowException bue) {
+            throw new IllegalArgumentException("Precompiled procedure is truncated");
+        } catch (IndexOutOfBoundsException ioobe) {
+            throw new IllegalArgumentException("Precompiled procedure is damaged: " + ioobe.getMessage());
+        } catch (NegativeArraySizeException nase) {
+            throw new IllegalArgumentException("Precompiled procedure is damaged: " + nase.getMessage());
+        } catch (DOMException de) {
+            throw new IllegalArgumentException("Precompiled procedure is damaged: " + de.getMessage());
+        }
+    }
+
+    private static Procedure decode(ByteBuffer buf) {
+        if (buf.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a precompiled xseq procedure");
+        }
+        if (buf.getInt() != VERSION) {
+            throw new IllegalArgumentException("Precompiled procedure is from a different version of xseq");
+        }
+
+        final String[] strings = new String[count(buf, 4)];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[count(buf, 1)];
+            buf.get(bytes);
+            strings[i] = new String(bytes, UTF8);
+        }
+
+        final int[] peopleRefs = readInts(buf);
+        final String[] people = new String[peopleRefs.length];
+        for (int i = 0; i < people.length; i++) {
+            people[i] = string(strings, peopleRefs[i]);
+        }
+
+        /*
+         * five int columns, two byte columns, and at least three ints of
+         * per Element data.
+         */
+        final int size = count(buf, 5 * 4 + 2 + 3 * 4);
+        int[] parent = readColumn(buf, size);
+        int[] firstChild = readColumn(buf, size);
+        int[] nextSibling = readColumn(buf, size);
+        int[] who = readColumn(buf, size);
+        int[] number = readColumn(buf, size);
+        byte[] tag = new byte[size];
+        buf.get(tag);
+        byte[] status = new byte[size];
+        buf.get(status);
+
+        for (int i = 0; i < size; i++) {
+            if ((parent[i] >= i) || (parent[i] < -1)) {
+                throw new IllegalArgumentException("Precompiled procedure is damaged: element " + i
+                        + " comes before its parent");
+            }
+        }
+
+        ProcedureModel model = new ProcedureModel(size, parent, firstChild, nextSibling, tag, who, number,
+                status, people);
+
+        /*
+         * And rebuild the DOM. Because elements come in document order, a
+         * node's parent has always already been created.
+         */
+        Document dom = XmlStreamLoader.newDocument();
+        Element[] elements = new Element[size];
+        ElementIndex index = new ElementIndex(size);
+
+        for (int i = 0; i < size; i++) {
+            Element element = dom.createElement(string(strings, buf.getInt()));
+            int text = buf.getInt();
+            int[] attrs = readInts(buf);
+
+            if (attrs.length % 2 != 0) {
+                throw new IllegalArgumentException("Precompiled procedure is damaged: odd attribute list");
+            }
+            for (int j = 0; j < attrs.length; j += 2) {
+                element.setAttribute(string(strings, attrs[j]), string(strings, attrs[j + 1]));
+            }
+            if (text != -1) {
+                element.appendChild(dom.createTextNode(string(strings, text)));
+            }
+
+            if (parent[i] == -1) {
+                dom.appendChild(element);
+            } else {
+                elements[parent[i]].appendChild(element);
+            }
+            elements[i] = element;
+            index.startElement(element, i);
+        }
+
+        return new Procedure(dom, model, index);
+    }
+
+    /*
+     * Read a count of things that each take at least width bytes, checking
+     * that there could be that many left in the buffer.
+     */
+    private static int count(ByteBuffer buf, int width) {
+        final int num = buf.getInt();
+
+        if ((num < 0) || ((long) num * width > buf.remaining())) {
+            throw new IllegalArgumentException("Precompiled procedure is damaged: bad count " + num);
+        }
+        return num;
+    }
+
+    private static String string(String[] strings, int i) {
+        if ((i < 0) || (i >= strings.length)) {
+            throw new IllegalArgumentException("Precompiled procedure is damaged: bad string reference " + i);
+        }
+        return strings[i];
+    }
+
+    private static int[] readInts(ByteBuffer buf) {
+        return readColumn(buf, count(buf, 4));
+    }
+
+    private static int[] readColumn(ByteBuffer buf, int length) {
+        if ((long) length * 4 > buf.remaining()) {
+            throw new IllegalArgumentException("Precompiled procedure is truncated");
+        }
+        int[] values = new int[length];
+        buf.asIntBuffer().get(values);
+        buf.position(buf.position() + length * 4);
+        return values;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.w3c.dom.Document;
+
+import xseq.services.DtdGrammar;
+import xseq.services.ParserPool;
+import xseq.services.XmlStreamLoader;
+
+/**
+ * A directory full of procedures. Loading the library finds every .xml file
+ * under the directory and reads, parses, validates and indexes them in
+ * parallel on a ForkJoinPool, giving a ProcedureCatalog of the results.
+ * Unless told otherwise, procedures are validated against
+ * xml/procedure.dtd.
+ *
+ * <P>
+ * A file which can't be read or isn't a valid procedure doesn't stop the
+ * others loading; it is recorded in the catalog as a failure along with the
+ * reason. That includes a file which trips over a bug in the loading code,
+ * so one odd procedure can't take the whole library down with it.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureLibrary
+{
+    private static final File DEFAULT_DTD = new File("xml/procedure.dtd");
+
+    private final File _dir;
+
+    private DtdGrammar _grammar;
+
+    private boolean _validating;
+
+    private ForkJoinPool _pool;
+
+    private boolean _normalize;
+
+    /**
+     * @param dir
+     *            the top of the library. Subdirectories are searched too.
+     */
+    public ProcedureLibrary(File dir) {
+        if (dir == null) {
+            throw new IllegalArgumentException("Need a directory to load a library from");
+        }
+        _dir = dir;
+        _validating = true;
+    }
+
+    /**
+     * Validate every procedure in the library against the given DTD before
+     * indexing it, rather than against xml/procedure.dtd. Files which aren't
+     * valid are reported as failures. The DTD is read and compiled once,
+     * through the default ParserPool's DtdCache.
+     *
+     * @param dtd
+     *            the DTD, or null to not validate at all.
+     * @throws IllegalArgumentException
+     *             if the DTD itself can't be parsed.
+     */
+    public void setDtd(File dtd) throws IOException, FileNotFoundException {
+        if (dtd == null) {
+            _grammar = null;
+            _validating = false;
+            return;
+        }
+        if (!dtd.isFile()) {
+            throw new FileNotFoundException(dtd.toString());
+        }
+        _grammar = ParserPool.getDefault().getDtdCache().getGrammar(dtd.getAbsoluteFile().toURI().toString());
+        _validating = true;
+    }
+
+    /**
+     * Load the procedures with their text normalized, as
+     * Procedure.load(Path, true) does. The default is to keep the text as
+     * written.
+     */
+    public void setNormalizing(boolean setting) {
+        _normalize = setting;
+    }
+
+    /**
+     * Load on the given pool rather than on one created (and shut down)
+     * for each call to load().
+     */
+    public void setPool(ForkJoinPool pool) {
+        _pool = pool;
+    }
+
+    /**
+     * Find and load every procedure in the library.
+     *
+     * @throws FileNotFoundException
+     *             if the library directory isn't there, or if validating
+     *             against the default DTD and it isn't there either.
+     * @throws IOException
+     *             if the DTD can't be read.
+     */
+    public ProcedureCatalog load() throws IOException, FileNotFoundException {
+        final ArrayList<String> found;
+        final String[] names;
+        final Procedure[] procedures;
+        final String[] failures;
+        final long[] times;
+        final ForkJoinPool pool;
+        final long start;
+
+        if (!_dir.isDirectory()) {
+            throw new FileNotFoundException(_dir + " isn't a directory");
+        }
+
+        if (_validating && (_grammar == null)) {
+            setDtd(DEFAULT_DTD);
+        }
+
+        start = System.nanoTime();
+
+        found = new ArrayList<String>();
+        find(_dir, "", found);
+        names = found.toArray(new String[found.size()]);
+        Arrays.sort(names);
+
+        procedures = new Procedure[names.length];
+        failures = new String[names.length];
+        times = new long[names.length];
+
+        /*
+         * Each task only ever writes its own slots in the arrays, and
+         * invoke() doesn't return until all of them are done, so there's
+         * nothing to synchronize.
+         */
+        if (_pool == null) {
+            pool = new ForkJoinPool();
+        } else {
+            pool = _pool;
+        }
+        try {
+            pool.invoke(new LoadRange(names, procedures, failures, times, 0, names.length));
+        } finally {
+            if (_pool == null) {
+                pool.shutdown();
+            }
+        }
+
+        return new ProcedureCatalog(names, procedures, failures, times, System.nanoTime() - start);
+    }
+
+    private static void find(File dir, String prefix, ArrayList<String> found) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                find(file, prefix + name + "/", found);
+            } else if (name.endsWith(".xml")) {
+                found.add(prefix + name);
+            }
+        }
+    }
+
+    /*
+     * Split the range of files in half until there's only one left, then
+     * load it. Files vary a great deal in size, so splitting all the way
+     * down lets idle workers steal the small ones from behind a big one.
+     */
+    private class LoadRange extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] names;
+
+        private final Procedure[] procedures;
+
+        private final String[] failures;
+
+        private final long[] times;
+
+        private final int lo;
+
+        private final int hi;
+
+        LoadRange(String[] names, Procedure[] procedures, String[] failures, long[] times, int lo, int hi) {
+            this.names = names;
+            this.procedures = procedures;
+            this.failures = failures;
+            this.times = times;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new LoadRange(names, procedures, failures, times, lo, mid), new LoadRange(names,
+                        procedures, failures, times, mid, hi));
+                return;
+            }
+            if (hi == lo) {
+                return;
+            }
+
+            long begin = System.nanoTime();
+            try {
+                procedures[lo] = loadOne(new File(_dir, names[lo]));
+            } catch (FileNotFoundException fnfe) {
+                failures[lo] = "File not found";
+            } catch (IOException ioe) {
+                failures[lo] = "Couldn't read: " + ioe.getMessage();
+            } catch (IllegalArgumentException iae) {
+                failures[lo] = iae.getMessage();
+            } catch (RuntimeException re) {
+                failures[lo] = "Couldn't load: " + re;
+            }
+            times[lo] = System.nanoTime() - begin;
+        }
+    }
+
+    /*
+     * Validation has to happen before the Procedure is made, as annotating
+     * it adds num attributes, which the DTD doesn't declare.
+     */
+    private Procedure loadOne(File file) throws IOException, FileNotFoundException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        Document dom;
+        try {
+            dom = XmlStreamLoader.streamToDOM(in, _normalize);
+        } finally {
+            in.close();
+        }
+
+        if (_grammar != null) {
+            _grammar.validate(dom);
+        }
+        return new Procedure(dom, _normalize);
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.InputStream;
+import java.util.HashMap;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import xseq.services.NamespaceScope;
+import xseq.services.SubtreeIntervals;
+import xseq.services.XmlStreamLoader;
+import xseq.services.XmlUtils;
+
+/**
+ * A compact, array backed representation of the structure of a procedure.
+ * Rather than a graph of DOM objects (each of which costs hundreds of
+ * bytes), the Elements of the document are numbered in document order and
+ * each property is held in its own array indexed by that number; the node
+ * number of an Element is the same ordinal used to make its "n" + ordinal
+ * XML ID.
+ *
+ * <P>
+ * Links between nodes are Elements only; text, comments and whitespace
+ * don't appear. A missing link is -1.
+ *
+ * <P>
+ * Instances are immutable. The status column records the state tasks were
+ * in when the procedure was loaded; a Procedure keeps its own copy to
+ * change as the procedure is worked through.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureModel
+{
+    /*
+     * Tag codes. Anything not in the procedure vocabulary is OTHER.
+     */
+    public static final byte OTHER = 0;
+
+    public static final byte PROCEDURE = 1;
+
+    public static final byte TITLE = 2;
+
+    public static final byte OVERVIEW = 3;
+
+    public static final byte SECTION = 4;
+
+    public static final byte PRECIS = 5;
+
+    public static final byte STEP = 6;
+
+    public static final byte NAME = 7;
+
+    public static final byte TASK = 8;
+
+    static final String[] tagNames = new String[] {
+            null, "procedure", "title", "overview", "section", "precis", "step", "name", "task"
+    };
+
+    final int size;
+
+    final int[] parent;
+
+    final int[] firstChild;
+
+    final int[] nextSibling;
+
+    final byte[] tag;
+
+    /*
+     * index into people, or -1 for elements without a who attribute.
+     */
+    final int[] who;
+
+    /*
+     * canonical counting number of sections, steps and tasks; 0 for
+     * everything else.
+     */
+    final int[] number;
+
+    final byte[] status;
+
+    final String[] people;
+
+    /*
+     * The enclosing <procedure>, <section>, <step> and <name> of every node,
+     * four to a row, worked out once so that asking for one of them is an
+     * array read rather than a walk up the parent links. -1 where there isn't
+     * one. A node is not its own ancestor.
+     */
+    private final int[] ancestors;
+
+    /*
+     * tag code to column in ancestors; -1 for tags that aren't tracked.
+     */
+    private static final byte[] columns = new byte[] {
+            -1, 0, -1, -1, 1, -1, 2, 3, -1
+    };
+
+    private static final int WIDTH = 4;
+
+    private final SubtreeIntervals intervals;
+
+    private final OrdinalIndex ordinals;
+
+    private final HashMap<String, Integer> peopleIndex;
+
+    ProcedureModel(int size, int[] parent, int[] firstChild, int[] nextSibling, byte[] tag, int[] who,
+            int[] number, byte[] status, String[] people) {
+        this.size = size;
+        this.parent = parent;
+        this.firstChild = firstChild;
+        this.nextSibling = nextSibling;
+        this.tag = tag;
+        this.who = who;
+        this.number = number;
+        this.status = status;
+        this.people = people;
+
+        this.peopleIndex = new HashMap<String, Integer>(people.length * 2);
+        for (int i = 0; i < people.length; i++) {
+            peopleIndex.put(people[i], Integer.valueOf(i));
+        }
+
+        this.ancestors = buildAncestors(size, parent, tag);
+        this.intervals = new SubtreeIntervals(parent, size);
+        this.ordinals = new OrdinalIndex(this);
+    }
+
+    /*
+     * A parent is always numbered before its children, so one pass in
+     * document order suffices: a node's row is its parent's row, plus the
+     * parent itself in the parent's column.
+     */
+    private static int[] buildAncestors(int size, int[] parent, byte[] tag) {
+        final int[] result = new int[size * WIDTH];
+
+        for (int i = 0; i < size; i++) {
+            final int row = i * WIDTH;
+            final int p = parent[i];
+
+            if (p == -1) {
+                for (int j = 0; j < WIDTH; j++) {
+                    result[row + j] = -1;
+                }
+                continue;
+            }
+
+            System.arraycopy(result, p * WIDTH, result, row, WIDTH);
+
+            final int column = columns[tag[p]];
+            if (column != -1) {
+                result[row + column] = p;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Build a model straight from a stream of XML, without ever creating a
+     * DOM Document.
+     *
+     * @throws IllegalArgumentException
+     *             if the stream doesn't contain well formed XML.
+     */
+    public static ProcedureModel load(InputStream in) {
+        ModelBuilder builder = new ModelBuilder();
+        NamespaceScope scope = new NamespaceScope();
+        XMLStreamReader reader = null;
+        int depth = 0;
+
+        try {
+            reader = XmlStreamLoader.createReader(in);
+
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        scope.declare(NamespaceScope.qualify(reader.getAttributePrefix(i), reader
+                                .getAttributeLocalName(i)), reader.getAttributeValue(i), depth);
+                    }
+                    builder.open(scope.unify(reader.getLocalName()), reader.getAttributeValue(null, "who"),
+                            reader.getAttributeValue(null, "status"));
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    scope.close(depth);
+                    depth--;
+                    builder.close();
+                    break;
+                default:
+                    // text is not part of the model
+                }
+            }
+        } catch (XMLStreamException xse) {
+            throw new IllegalArgumentException(xse.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException xse) {
+                    // nothing more we can do about it
+                }
+            }
+        }
+
+        return builder.toModel();
+    }
+
+    /**
+     * Map an element name to its tag code.
+     */
+    public static byte tagCode(String tagName) {
+        for (byte i = 1; i < tagNames.length; i++) {
+            if (tagNames[i].equals(tagName)) {
+                return i;
+            }
+        }
+        return OTHER;
+    }
+
+    /**
+     * Convert an ID of the form "n" + ordinal, as assigned by the Annotator,
+     * to a node number, without allocating.
+     *
+     * @return the node number, or -1 if the ID isn't of that form or is out
+     *         of range for this model.
+     */
+    public int toNode(String id) {
+        final int node = XmlUtils.parseId(id);
+
+        if (node >= size) {
+            return -1;
+        }
+        return node;
+    }
+
+    /**
+     * Convert a node number back to its XML ID.
+     */
+    public static String toId(int node) {
+        return "n" + node;
+    }
+
+    /**
+     * @return the number of elements in the procedure.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public byte getTag(int node) {
+        return tag[node];
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    public int getFirstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int getNextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    /**
+     * Find the nearest enclosing element with the given tag. For PROCEDURE,
+     * SECTION, STEP and NAME this is looked up in a table built when the
+     * model was; anything else walks up from node.
+     *
+     * @return the ancestor's node number, or -1 if there isn't one.
+     */
+    public int getAncestor(int node, byte tagCode) {
+        final int column = columns[tagCode];
+        if (column != -1) {
+            return ancestors[node * WIDTH + column];
+        }
+
+        int candidate = parent[node];
+        while (candidate != -1) {
+            if (tag[candidate] == tagCode) {
+                return candidate;
+            }
+            candidate = parent[candidate];
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first element (in document order) below node with the
+     *         given tag, or -1 if none.
+     */
+    public int getFirstDescendant(int node, byte tagCode) {
+        for (int child = firstChild[node]; child != -1; child = nextSibling[child]) {
+            if (tag[child] == tagCode) {
+                return child;
+            }
+            int found = getFirstDescendant(child, tagCode);
+            if (found != -1) {
+                return found;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Because nodes are numbered in document order, the descendants of a
+     * node are exactly the nodes numbered after it up to, but not including,
+     * this one.
+     * 
+     * @return the node number one past the last descendant of node.
+     */
+    public int getSubtreeEnd(int node) {
+        return intervals.getEnd(node);
+    }
+
+    /**
+     * @return the extent of every node's subtree, worked out when the model
+     *         was built.
+     */
+    public SubtreeIntervals getIntervals() {
+        return intervals;
+    }
+
+    /**
+     * @return the who attribute of a <name>, or null.
+     */
+    public String getWho(int node) {
+        int i = who[node];
+        if (i == -1) {
+            return null;
+        }
+        return people[i];
+    }
+
+    /**
+     * @return the interned code for a participant, or -1 if they don't
+     *         appear in this procedure.
+     */
+    public int getWhoCode(String person) {
+        Integer i = peopleIndex.get(person);
+        if (i == null) {
+            return -1;
+        }
+        return i.intValue();
+    }
+
+    /**
+     * @return the interned code for the participant a <name> is for, or -1
+     *         if node isn't one.
+     */
+    public int getWhoCode(int node) {
+        return who[node];
+    }
+
+    /**
+     * @return the participants named in the procedure, in order of first
+     *         appearance.
+     */
+    public String[] getPeople() {
+        return people.clone();
+    }
+
+    /**
+     * @return the State the node was in when the procedure was loaded.
+     */
+    public int getStatus(int node) {
+        return status[node];
+    }
+
+    /**
+     * Get the canonical number of a section, step or task as it would be
+     * displayed, ie "IV", "12", or "c".
+     *
+     * @return the number, or "" for elements which aren't numbered.
+     */
+    public String getNum(int node) {
+        return format(tag[node], number[node]);
+    }
+
+    static String format(byte tagCode, int n) {
+        if (n == 0) {
+            return "";
+        }
+        switch (tagCode) {
+        case SECTION:
+            return XmlUtils.indexToType(n, 'I');
+        case STEP:
+            return XmlUtils.indexToType(n, '1');
+        default:
+            return XmlUtils.indexToType(n, 'a');
+        }
+    }
+
+    /**
+     * @return how many elements with the given tag there are.
+     */
+    public int count(byte tagCode) {
+        return ordinals.count(tagCode);
+    }
+
+    /**
+     * @return the index of where each element falls among its peers.
+     */
+    public OrdinalIndex getOrdinals() {
+        return ordinals;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.util.Arrays;
+
+/**
+ * The outline of a procedure: its sections, and the titles of the
+ * procedure, its sections and their steps, along with each section's precis.
+ * This is everything the OverviewWindow needs, and is available without
+ * building the DOM for any section.
+ *
+ * <P>
+ * When a procedure is loaded lazily, the outline also records where in the
+ * source each section starts and ends, so it can be parsed on its own when
+ * it's first needed.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureOutline
+{
+    /*
+     * node numbers of the sections, in document order.
+     */
+    private final int[] sections;
+
+    /*
+     * byte offsets of the start of each section's start tag, and just past
+     * the end of its end tag; -1 if not known.
+     */
+    private final int[] starts;
+
+    private final int[] ends;
+
+    /*
+     * indexed by node number; null for elements without a title.
+     */
+    private final String[] titles;
+
+    /*
+     * indexed by section index; null if the section has no precis.
+     */
+    private final String[] precis;
+
+    ProcedureOutline(int[] sections, int[] starts, int[] ends, String[] titles, String[] precis) {
+        this.sections = sections;
+        this.starts = starts;
+        this.ends = ends;
+        this.titles = titles;
+        this.precis = precis;
+    }
+
+    public int getSectionCount() {
+        return sections.length;
+    }
+
+    /**
+     * @param index
+     *            zero origin count of which section.
+     * @return the node number of that section.
+     */
+    public int getSectionNode(int index) {
+        return sections[index];
+    }
+
+    /**
+     * @return the zero origin index of the section with the given node
+     *         number, or -1 if that node isn't a section.
+     */
+    public int getSectionIndex(int node) {
+        int i = Arrays.binarySearch(sections, node);
+        if (i < 0) {
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * Get the title of the procedure, a section or a step, whether it was
+     * given as a title attribute or a <title> element.
+     *
+     * @return the title, with whitespace normalized, or "" if there isn't
+     *         one.
+     */
+    public String getTitle(int node) {
+        String title = titles[node];
+        if (title == null) {
+            return "";
+        }
+        return title;
+    }
+
+    /**
+     * @return the text of a section's <precis>, as written (or normalized,
+     *         if the procedure was loaded that way), or null if it doesn't
+     *         have one.
+     */
+    public String getPrecis(int index) {
+        return precis[index];
+    }
+
+    int getStartOffset(int index) {
+        return starts[index];
+    }
+
+    int getEndOffset(int index) {
+        return ends[index];
+    }
+}
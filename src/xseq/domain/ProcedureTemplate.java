@@ -0,0 +1,113 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import xseq.services.TextIndex;
+
+/**
+ * What a procedure is, as opposed to how far through it any one run has
+ * got: its structure, numbering, titles and text, and the indexes over
+ * them. Nothing here changes once it is built, so one template can be
+ * shared by any number of runs, on any number of threads.
+ *
+ * <P>
+ * Each run is a Procedure made by newRun(). It refers to the template for
+ * everything but its State and completion counts, so it costs a few bytes
+ * per task rather than a Document of its own. Runs have no DOM; their
+ * getDOM() returns null.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureTemplate
+{
+    private final ProcedureModel model;
+
+    private final ProcedureOutline outline;
+
+    private final ParticipantIndex participants;
+
+    private final TextIndex text;
+
+    ProcedureTemplate(ProcedureModel model, ProcedureOutline outline, ParticipantIndex participants,
+            TextIndex text) {
+        this.model = model;
+        this.outline = outline;
+        this.participants = participants;
+        this.text = text;
+
+        text.prepare();
+    }
+
+    /**
+     * Load a procedure file as a template.
+     *
+     * @throws FileNotFoundException
+     *             if the file isn't there.
+     * @throws IllegalArgumentException
+     *             if the file isn't well formed XML.
+     */
+    public static ProcedureTemplate load(Path file) throws IOException, FileNotFoundException {
+        return Procedure.load(file, true).toTemplate();
+    }
+
+    /**
+     * Load a procedure from a stream as a template.
+     */
+    public static ProcedureTemplate load(InputStream in) {
+        return Procedure.load(in, true).toTemplate();
+    }
+
+    /**
+     * Start a new run of this procedure, with every task in the State the
+     * procedure's source gave it.
+     */
+    public Procedure newRun() {
+        return new Procedure(this);
+    }
+
+    public ProcedureModel getModel() {
+        return model;
+    }
+
+    public ProcedureOutline getOutline() {
+        return outline;
+    }
+
+    ParticipantIndex getParticipants() {
+        return participants;
+    }
+
+    TextIndex getText() {
+        return text;
+    }
+
+    /**
+     * Search the text of the procedure, as Procedure's search() does.
+     *
+     * @return the IDs of the matching elements, in document order.
+     */
+    public String[] search(String query) {
+        return Procedure.toIds(text.search(query));
+    }
+}
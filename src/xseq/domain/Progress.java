@@ -0,0 +1,266 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import xseq.services.StripedFenwickTree;
+
+/**
+ * How far through a running Procedure things are: how many tasks are done,
+ * out of how many, for the whole procedure, any section or step (or other
+ * Element), and each participant.
+ *
+ * <P>
+ * The tasks under any Element are a contiguous run of the tasks in document
+ * order, so done counts are kept in a FenwickTree indexed by each task's
+ * rank among the tasks; the count for an Element is a range sum, O(log n),
+ * and marking a task done is O(log n) too. Nothing is rescanned as tasks
+ * are completed. Participants' counts are just a counter each.
+ *
+ * <P>
+ * The containers (the procedure, its sections, steps and names) are few
+ * compared with the tasks, and are what gets asked about every time a task
+ * is done, so each also has its own counts: how many tasks it has, and an
+ * atomic counter of how many of those are done. For them a count is a
+ * single read, with no locks taken.
+ *
+ * <P>
+ * Tasks can be done from any number of threads at once. The tree is
+ * striped, so completions in different parts of the procedure take
+ * different locks, and a count for an Element is always one that the
+ * Element's tasks really had at some moment; participants' counters are
+ * atomic.
+ *
+ * <P>
+ * Everything here besides the counters themselves comes from the
+ * ProcedureModel and ParticipantIndex, which are shared, so a Progress costs
+ * an int per task and an int per participant.
+ *
+ * @author Andrew Cowie
+ */
+public class Progress
+{
+    private final ProcedureModel model;
+
+    private final ParticipantIndex participants;
+
+    private final StripedFenwickTree done;
+
+    private final AtomicIntegerArray byWho;
+
+    /*
+     * By tag code, where that tag's nodes start among the container slots;
+     * -1 for tags that aren't containers.
+     */
+    private final int[] base;
+
+    /*
+     * By container slot.
+     */
+    private final int[] containerTasks;
+
+    private final AtomicIntegerArray containerDone;
+
+    /**
+     * @param states
+     *            the State of each node as things stand.
+     */
+    Progress(ProcedureModel model, ParticipantIndex participants, StateVector states) {
+        final OrdinalIndex ordinals = model.getOrdinals();
+        final int num = ordinals.count(ProcedureModel.TASK);
+        final int[] counts = new int[num];
+        final int[] totals = new int[model.people.length];
+
+        this.model = model;
+        this.participants = participants;
+
+        this.base = new int[ProcedureModel.tagNames.length];
+        int slots = 0;
+        for (int t = 0; t < base.length; t++) {
+            if ((t == ProcedureModel.PROCEDURE) || (t == ProcedureModel.SECTION) || (t == ProcedureModel.STEP)
+                    || (t == ProcedureModel.NAME)) {
+                base[t] = slots;
+                slots += ordinals.count((byte) t);
+            } else {
+                base[t] = -1;
+            }
+        }
+        this.containerTasks = new int[slots];
+        final int[] containerCounts = new int[slots];
+
+        for (int rank = 0; rank < num; rank++) {
+            int task = ordinals.select(ProcedureModel.TASK, rank);
+            boolean isDone = states.get(task) == State.DONE;
+
+            for (int parent = model.getParent(task); parent != -1; parent = model.getParent(parent)) {
+                int slot = slot(parent);
+                if (slot != -1) {
+                    containerTasks[slot]++;
+                    if (isDone) {
+                        containerCounts[slot]++;
+                    }
+                }
+            }
+
+            if (isDone) {
+                counts[rank] = 1;
+
+                int who = owner(task);
+                if (who != -1) {
+                    totals[who]++;
+                }
+            }
+        }
+
+        this.done = new StripedFenwickTree(counts);
+        this.byWho = new AtomicIntegerArray(totals);
+        this.containerDone = new AtomicIntegerArray(containerCounts);
+    }
+
+    /*
+     * A node's place among the containers, or -1 if it isn't one.
+     */
+    private int slot(int node) {
+        int start = base[model.getTag(node)];
+        if (start == -1) {
+            return -1;
+        }
+        return start + model.getOrdinals().rank(node);
+    }
+
+    /*
+     * The participant a task belongs to, or -1 if none.
+     */
+    private int owner(int task) {
+        int name = model.getAncestor(task, ProcedureModel.NAME);
+        return (name == -1) ? -1 : model.getWhoCode(name);
+    }
+
+    /*
+     * Record a task going to done; the caller must make sure this happens
+     * only once per task.
+     */
+    void taskDone(int task) {
+        int who = owner(task);
+
+        done.add(model.getOrdinals().rank(task), 1);
+        if (who != -1) {
+            byWho.incrementAndGet(who);
+        }
+
+        for (int parent = model.getParent(task); parent != -1; parent = model.getParent(parent)) {
+            int slot = slot(parent);
+            if (slot != -1) {
+                containerDone.incrementAndGet(slot);
+            }
+        }
+    }
+
+    /*
+     * The task ranks covered by a node's subtree.
+     */
+    private int first(int node) {
+        return model.getOrdinals().countBefore(ProcedureModel.TASK, node);
+    }
+
+    private int last(int node) {
+        return model.getOrdinals().countBefore(ProcedureModel.TASK, model.getSubtreeEnd(node));
+    }
+
+    /**
+     * @return how many tasks there are in the whole procedure.
+     */
+    public int getTaskCount() {
+        return done.size();
+    }
+
+    /**
+     * @return how many tasks in the whole procedure are done.
+     */
+    public int getDoneCount() {
+        return done.total();
+    }
+
+    /**
+     * @return how many tasks there are at or under node. O(1) for the
+     *         procedure, sections, steps and names.
+     */
+    public int getTaskCount(int node) {
+        int slot = slot(node);
+        if (slot != -1) {
+            return containerTasks[slot];
+        }
+        return last(node) - first(node);
+    }
+
+    /**
+     * @return how many of the tasks at or under node are done. For the
+     *         procedure, sections, steps and names this is a single atomic
+     *         read, and takes no locks.
+     */
+    public int getDoneCount(int node) {
+        int slot = slot(node);
+        if (slot != -1) {
+            return containerDone.get(slot);
+        }
+        return done.sum(first(node), last(node));
+    }
+
+    /**
+     * @return whether every task at or under node is done.
+     */
+    public boolean isComplete(int node) {
+        return getDoneCount(node) == getTaskCount(node);
+    }
+
+    /**
+     * @return how many tasks a participant has, or 0 if they're not in this
+     *         procedure.
+     */
+    public int getTaskCount(String who) {
+        int code = model.getWhoCode(who);
+        if (code == -1) {
+            return 0;
+        }
+        return participants.end(code) - participants.start(code);
+    }
+
+    /**
+     * @return how many of a participant's tasks are done.
+     */
+    public int getDoneCount(String who) {
+        int code = model.getWhoCode(who);
+        if (code == -1) {
+            return 0;
+        }
+        return byWho.get(code);
+    }
+
+    /**
+     * Express a done count as a whole percentage, as for display. Nothing to
+     * do counts as finished.
+     */
+    public static int toPercent(int done, int total) {
+        if (total == 0) {
+            return 100;
+        }
+        return (int) ((done * 100L) / total);
+    }
+}
@@ -62,6 +62,33 @@ public class State
             "black", "green", "blue", "yellow", "red"
     };
 
+    /**
+     * The values of the status attribute on a <task> that correspond to each
+     * of the states. STANDBY is the absence of the attribute.
+     */
+    public static String[] statuses = new String[] {
+            "", "done", "working", "problem", "critical"
+    };
+
+    /**
+     * Convert the value of a status attribute to a State constant.
+     * 
+     * @param status
+     *            the attribute value; null or "" (as returned by
+     *            getAttribute() for a missing attribute) means STANDBY.
+     */
+    public static int fromStatus(String status) {
+        if ((status == null) || (status.length() == 0)) {
+            return STANDBY;
+        }
+        for (int i = 1; i < NUM_BUTTONS; i++) {
+            if (statuses[i].equals(status)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown task status \"" + status + "\"");
+    }
+
     public State(int colour) {
         set(colour);
     }
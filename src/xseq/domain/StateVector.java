@@ -0,0 +1,288 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The State of every node in a procedure, packed four bits to a node, eight
+ * nodes to an int. The five State values fit in three bits; the fourth
+ * keeps a node from straddling two words.
+ *
+ * <P>
+ * Individual nodes can be read, set, and compare-and-set atomically, so
+ * several threads can move tasks along without a lock. Copying the whole
+ * vector (to snapshot it, or to read it in bulk) is a pass over size / 8
+ * words. Writers count themselves in and out, and a copy that overlapped a
+ * write is thrown away and taken again, so a copy is always the vector as
+ * it was at one moment. The counts are kept per stripe of words, so writers
+ * working on different parts of the procedure don't contend for one
+ * counter. Writers only wait for a reader that has been unlucky several
+ * times running; it then holds new writes back until its copy is done.
+ *
+ * @author Andrew Cowie
+ */
+public class StateVector
+{
+    private static final int BITS = 4;
+
+    private static final int PER_WORD = 32 / BITS;
+
+    private static final int MASK = (1 << BITS) - 1;
+
+    /*
+     * Words per stripe of write counters, and the spacing of each stripe's
+     * pair of counters so that two stripes don't share a cache line.
+     */
+    private static final int STRIPE = 16;
+
+    private static final int PAD = 16;
+
+    /*
+     * How many times a copy is attempted before it holds writers back.
+     */
+    private static final int RETRIES = 8;
+
+    private final AtomicIntegerArray words;
+
+    private final int size;
+
+    /*
+     * For each stripe, how many writes have begun (at stripe * PAD) and how
+     * many have finished (the int after). A copy taken while each pair was
+     * equal, and during which no begun count moved, saw no writes half done.
+     */
+    private final AtomicIntegerArray counts;
+
+    private final int stripes;
+
+    /*
+     * Readers that have given up on copying quietly. Writers stay out while
+     * this isn't zero.
+     */
+    private final AtomicInteger waiting;
+
+    /**
+     * Create a vector of size nodes, all STANDBY.
+     */
+    public StateVector(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Can't have a negative number of nodes");
+        }
+        this.size = size;
+        this.words = new AtomicIntegerArray((size + PER_WORD - 1) / PER_WORD);
+        this.stripes = (words.length() + STRIPE - 1) / STRIPE;
+        this.counts = new AtomicIntegerArray(stripes * PAD);
+        this.waiting = new AtomicInteger();
+    }
+
+    /**
+     * Create a vector holding the given States, one per node, as in a
+     * ProcedureModel's status column.
+     */
+    public StateVector(byte[] states) {
+        this(states.length);
+
+        int[] packed = new int[words.length()];
+        for (int i = 0; i < states.length; i++) {
+            check(states[i]);
+            packed[i / PER_WORD] |= states[i] << shift(i);
+        }
+        for (int j = 0; j < packed.length; j++) {
+            words.set(j, packed[j]);
+        }
+    }
+
+    private StateVector(StateVector other) {
+        this.size = other.size;
+
+        int[] packed = other.copyWords();
+        this.words = new AtomicIntegerArray(packed);
+        this.stripes = other.stripes;
+        this.counts = new AtomicIntegerArray(stripes * PAD);
+        this.waiting = new AtomicInteger();
+    }
+
+    private static int shift(int node) {
+        return (node % PER_WORD) * BITS;
+    }
+
+    private static void check(int state) {
+        if ((state < 0) || (state >= State.NUM_BUTTONS)) {
+            throw new IllegalArgumentException("Not a State: " + state);
+        }
+    }
+
+    private int[] copyWords() {
+        final int[] packed = new int[words.length()];
+        final int[] before = new int[stripes];
+
+        for (int attempt = 0; attempt < RETRIES; attempt++) {
+            if (copyQuietly(packed, before)) {
+                return packed;
+            }
+            /*
+             * A write was in progress; let it finish.
+             */
+            Thread.yield();
+        }
+
+        waiting.incrementAndGet();
+        try {
+            /*
+             * Writers that start now will see us waiting and back off, so
+             * once the ones already under way are done the words are still.
+             * Read ended before begun, so that a writer backing off can't
+             * make a stripe look quiet while another is mid write.
+             */
+            for (int s = 0; s < stripes; s++) {
+                while (counts.get(s * PAD + 1) != counts.get(s * PAD)) {
+                    Thread.yield();
+                }
+            }
+            for (int j = 0; j < packed.length; j++) {
+                packed[j] = words.get(j);
+            }
+            return packed;
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private boolean copyQuietly(int[] packed, int[] before) {
+        for (int s = 0; s < stripes; s++) {
+            before[s] = counts.get(s * PAD);
+            if (counts.get(s * PAD + 1) != before[s]) {
+                return false;
+            }
+        }
+        for (int j = 0; j < packed.length; j++) {
+            packed[j] = words.get(j);
+        }
+        for (int s = 0; s < stripes; s++) {
+            if (counts.get(s * PAD) != before[s]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the State of node, as one of the constants in State.
+     */
+    public int get(int node) {
+        if ((node < 0) || (node >= size)) {
+            throw new IndexOutOfBoundsException("node " + node);
+        }
+        return (words.get(node / PER_WORD) >>> shift(node)) & MASK;
+    }
+
+    /**
+     * Set the State of a node, regardless of what it was.
+     *
+     * @return the State it was in before.
+     */
+    public int set(int node, int state) {
+        while (true) {
+            int previous = get(node);
+            if (compareAndSet(node, previous, state)) {
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * Atomically change the State of node to update, but only if it is
+     * currently expect.
+     *
+     * @return true if the change was made, false if the node was in some
+     *         other State.
+     */
+    public boolean compareAndSet(int node, int expect, int update) {
+        check(update);
+        if ((node < 0) || (node >= size)) {
+            throw new IndexOutOfBoundsException("node " + node);
+        }
+        final int j = node / PER_WORD;
+        final int shift = shift(node);
+        final int begun = (j / STRIPE) * PAD;
+
+        while (true) {
+            counts.incrementAndGet(begun);
+            if (waiting.get() == 0) {
+                break;
+            }
+            /*
+             * A reader is copying with writers held back; step aside.
+             */
+            counts.incrementAndGet(begun + 1);
+            while (waiting.get() != 0) {
+                Thread.yield();
+            }
+        }
+        try {
+            while (true) {
+                int word = words.get(j);
+                if (((word >>> shift) & MASK) != expect) {
+                    return false;
+                }
+                int replacement = (word & ~(MASK << shift)) | (update << shift);
+                if (words.compareAndSet(j, word, replacement)) {
+                    return true;
+                }
+                /*
+                 * Another node in the same word changed under us; try again.
+                 */
+            }
+        } finally {
+            counts.incrementAndGet(begun + 1);
+        }
+    }
+
+    /**
+     * Read the States of all the nodes at once.
+     *
+     * @param target
+     *            an array at least size() long to unpack the States into.
+     */
+    public void getAll(byte[] target) {
+        if (target.length < size) {
+            throw new IllegalArgumentException("Target array is too small");
+        }
+        int[] packed = copyWords();
+        for (int i = 0; i < size; i++) {
+            target[i] = (byte) ((packed[i / PER_WORD] >>> shift(i)) & MASK);
+        }
+    }
+
+    /**
+     * @return an independent copy of this vector, as it is now.
+     */
+    public StateVector snapshot() {
+        return new StateVector(this);
+    }
+}
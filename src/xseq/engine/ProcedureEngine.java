@@ -0,0 +1,132 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import xseq.domain.Procedure;
+import xseq.domain.ProcedureTemplate;
+
+/**
+ * Keeps track of any number of ProcedureRuns, by name. Listeners added here
+ * hear about every run, including ones started later, which is how a
+ * coordinator watches everything going on without having to know about each
+ * run as it is created.
+ *
+ * <P>
+ * Safe to use from multiple threads; each run looks after its own state.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureEngine
+{
+    private final ConcurrentHashMap<String, ProcedureRun> runs;
+
+    private ProcedureListener[] listeners;
+
+    public ProcedureEngine() {
+        runs = new ConcurrentHashMap<String, ProcedureRun>();
+        listeners = new ProcedureListener[0];
+    }
+
+    /**
+     * Be told about what happens in every run. Only runs started after this
+     * call report their first step to the new listener.
+     */
+    public synchronized void addListener(ProcedureListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Can't add a null listener");
+        }
+        ProcedureListener[] replacement = Arrays.copyOf(listeners, listeners.length + 1);
+        replacement[listeners.length] = listener;
+        listeners = replacement;
+
+        for (ProcedureRun run : runs.values()) {
+            run.addListener(listener);
+        }
+    }
+
+    /**
+     * Start a new run of template.
+     */
+    public ProcedureRun start(String name, ProcedureTemplate template) {
+        if (template == null) {
+            throw new IllegalArgumentException("Need a template to run");
+        }
+        return start(name, template.newRun());
+    }
+
+    /**
+     * Start running procedure, which shouldn't already be being run by
+     * anything else.
+     *
+     * @throws IllegalArgumentException
+     *             if there's already a run called name.
+     */
+    public ProcedureRun start(String name, Procedure procedure) {
+        if (name == null) {
+            throw new IllegalArgumentException("Runs need a name");
+        }
+        final ProcedureRun run = new ProcedureRun(name, procedure);
+
+        synchronized (this) {
+            if (runs.putIfAbsent(name, run) != null) {
+                throw new IllegalArgumentException("There's already a run called " + name);
+            }
+            for (ProcedureListener listener : listeners) {
+                run.addListener(listener);
+            }
+        }
+
+        run.start();
+        return run;
+    }
+
+    /**
+     * @return the run called name, or null if there isn't one.
+     */
+    public ProcedureRun getRun(String name) {
+        return runs.get(name);
+    }
+
+    /**
+     * @return the names of the runs, in no particular order.
+     */
+    public String[] getRunNames() {
+        return runs.keySet().toArray(new String[0]);
+    }
+
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Stop a run and forget about it.
+     *
+     * @return the run, or null if there wasn't one called name.
+     */
+    public ProcedureRun remove(String name) {
+        ProcedureRun run = runs.remove(name);
+        if (run != null) {
+            run.stop();
+        }
+        return run;
+    }
+}
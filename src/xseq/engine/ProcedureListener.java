@@ -0,0 +1,77 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.engine;
+
+/**
+ * Told about what happens as a {@link ProcedureRun} is worked through. The
+ * user interface is one of these; a coordinator relaying events to the
+ * participants would be another.
+ *
+ * <P>
+ * Elements are given by node number. Events are delivered after the run's
+ * state has been updated, so a listener asking the run where it's up to
+ * sees the result of the change (or of later ones). For one task being done
+ * the order is taskDone(), then stepDone(), sectionDone() and
+ * procedureDone() as each applies, then stepStarted() and taskStarted() for
+ * whatever comes next.
+ *
+ * <P>
+ * Events come one at a time and in the order the changes were made, but
+ * not necessarily on the thread that made them: when tasks are being done
+ * on several threads at once, whichever is already delivering events
+ * delivers the others' too. So listeners run off the user interface's
+ * thread, and one that updates widgets must take whatever lock the toolkit
+ * requires (for GTK, Gdk.lock) or hand the work to its main loop.
+ * A listener that throws has its exception reported and is skipped; the
+ * other listeners still hear about the event, and the run carries on.
+ *
+ * @author Andrew Cowie
+ */
+public interface ProcedureListener
+{
+    /**
+     * A step has become the current one.
+     */
+    public void stepStarted(ProcedureRun run, int step);
+
+    /**
+     * A task has become the current one for the participant who.
+     */
+    public void taskStarted(ProcedureRun run, int task, String who);
+
+    /**
+     * A task has been done.
+     */
+    public void taskDone(ProcedureRun run, int task);
+
+    /**
+     * The last task of a step has been done.
+     */
+    public void stepDone(ProcedureRun run, int step);
+
+    /**
+     * The last task of a section has been done.
+     */
+    public void sectionDone(ProcedureRun run, int section);
+
+    /**
+     * The last task of the whole procedure has been done.
+     */
+    public void procedureDone(ProcedureRun run);
+}
@@ -0,0 +1,468 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import generic.util.Debug;
+import generic.util.DebugException;
+
+import xseq.domain.Procedure;
+import xseq.domain.ProcedureModel;
+import xseq.domain.Progress;
+
+/**
+ * One Procedure being carried out: which step is current, which task each
+ * participant is on, and whether the whole thing is finished. Marking tasks
+ * as done drives it forward, a step at a time, and each change is told to
+ * the {@link ProcedureListener}s.
+ *
+ * <P>
+ * This was what ProcedureUserInterface used to do in amongst updating its
+ * windows; here it has no dependency on GTK, so a run can be driven from a
+ * test, a server, or the network just as well as from a button. Runs don't
+ * share any mutable state, so there can be as many as you like in one VM.
+ *
+ * <P>
+ * Tasks can be done from any thread. Working out what follows from a task
+ * being done is brief and happens under the run's lock; listeners are
+ * never called with it held. Where the run is up to is published as a
+ * whole after each change, so the getters don't wait for anything and
+ * always agree with each other.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureRun
+{
+    private static final byte STEP_STARTED = 1;
+
+    private static final byte TASK_STARTED = 2;
+
+    private static final byte TASK_DONE = 3;
+
+    private static final byte STEP_DONE = 4;
+
+    private static final byte SECTION_DONE = 5;
+
+    private static final byte PROCEDURE_DONE = 6;
+
+    /*
+     * Where a run is up to. Never changed once published; a transition
+     * makes a new one.
+     */
+    private static final class Position
+    {
+        /*
+         * -1 before the run starts, and after it finishes or is stopped.
+         */
+        final int step;
+
+        /*
+         * each participant's current task, by who code; -1 if they don't
+         * have one.
+         */
+        final int[] current;
+
+        final boolean started;
+
+        final boolean finished;
+
+        Position(int step, int[] current, boolean started, boolean finished) {
+            this.step = step;
+            this.current = current;
+            this.started = started;
+            this.finished = finished;
+        }
+    }
+
+    private static final class Event
+    {
+        final byte kind;
+
+        final int node;
+
+        final String who;
+
+        Event(byte kind, int node, String who) {
+            this.kind = kind;
+            this.node = node;
+            this.who = who;
+        }
+    }
+
+    private final String name;
+
+    private final Procedure procedure;
+
+    private final ProcedureModel model;
+
+    private final Progress progress;
+
+    /*
+     * indexed by who code.
+     */
+    private final String[] people;
+
+    private volatile Position position;
+
+    private volatile ProcedureListener[] listeners;
+
+    /*
+     * Events made by transitions, in the order they happened, waiting to be
+     * told to the listeners. Only one thread at a time does the telling, so
+     * they arrive in order even when tasks are being done on several
+     * threads.
+     */
+    private final ConcurrentLinkedQueue<Event> events;
+
+    private final AtomicBoolean delivering;
+
+    /**
+     * @param name
+     *            what to call this run; only for telling it apart from
+     *            others.
+     */
+    public ProcedureRun(String name, Procedure procedure) {
+        if (procedure == null) {
+            throw new IllegalArgumentException("Need a Procedure to run");
+        }
+        this.name = name;
+        this.procedure = procedure;
+        this.model = procedure.getModel();
+        this.progress = procedure.getProgress();
+        this.people = model.getPeople();
+
+        position = new Position(-1, nobody(), false, false);
+        listeners = new ProcedureListener[0];
+        events = new ConcurrentLinkedQueue<Event>();
+        delivering = new AtomicBoolean();
+    }
+
+    private int[] nobody() {
+        int[] current = new int[people.length];
+        Arrays.fill(current, -1);
+        return current;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Procedure getProcedure() {
+        return procedure;
+    }
+
+    /**
+     * Be told about what happens from now on. Add listeners before calling
+     * start() if they need to hear about the first step.
+     */
+    public synchronized void addListener(ProcedureListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Can't add a null listener");
+        }
+        ProcedureListener[] replacement = Arrays.copyOf(listeners, listeners.length + 1);
+        replacement[listeners.length] = listener;
+        listeners = replacement;
+    }
+
+    public synchronized void removeListener(ProcedureListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                ProcedureListener[] replacement = new ProcedureListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, replacement, 0, i);
+                System.arraycopy(listeners, i + 1, replacement, i, replacement.length - i);
+                listeners = replacement;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Begin the run, making the first step that still has work in it the
+     * current one. If the Procedure was loaded with everything already done
+     * then the run finishes straight away.
+     */
+    public void start() {
+        begin();
+        deliver();
+    }
+
+    private synchronized void begin() {
+        if (position.started) {
+            throw new DebugException("Run " + name + " has already been started");
+        }
+
+        int first = model.getOrdinals().select(ProcedureModel.STEP, 0);
+        while ((first != -1) && isComplete(first)) {
+            first = procedure.getNextStep(first);
+        }
+
+        if (first == -1) {
+            position = new Position(-1, nobody(), true, true);
+            post(PROCEDURE_DONE, -1, null);
+            return;
+        }
+
+        startStep(first);
+    }
+
+    /**
+     * Bring the run to a halt, whether or not it is finished. Nothing is
+     * current afterwards, and no more events are made.
+     */
+    public synchronized void stop() {
+        position = new Position(-1, nobody(), true, true);
+    }
+
+    /**
+     * Mark a task as done, by ID.
+     */
+    public void setTaskAsDone(String taskId) {
+        int task = model.toNode(taskId);
+        if (task == -1) {
+            throw new IllegalArgumentException(taskId + " isn't in this procedure");
+        }
+        setTaskAsDone(task);
+    }
+
+    /**
+     * Mark a task as done, and move things along as a result: the person
+     * whose task it was goes on to their next one in the step, and if that
+     * was the last task of the current step then the run goes on to the next
+     * step (or finishes). A task that is already done is ignored, so it's
+     * fine for the same news to arrive twice, even at the same time.
+     *
+     * <P>
+     * If another thread is busy telling the listeners about an earlier
+     * change, it tells them about this one too, and this returns straight
+     * away.
+     */
+    public void setTaskAsDone(int task) {
+        if ((task < 0) || (task >= model.getSize()) || (model.getTag(task) != ProcedureModel.TASK)) {
+            throw new IllegalArgumentException("Node " + task + " isn't a task");
+        }
+        complete(task);
+        deliver();
+    }
+
+    private synchronized void complete(int task) {
+        final Position was = position;
+
+        if (was.finished || !procedure.markDone(task)) {
+            return;
+        }
+
+        final int who = owner(task);
+        final int thisStep = model.getAncestor(task, ProcedureModel.STEP);
+        final int section = model.getAncestor(task, ProcedureModel.SECTION);
+
+        /*
+         * Not just the next sibling: a participant can appear in more than
+         * one name block in a step, and their next task may be in another.
+         */
+        int next = -1;
+        if ((who != -1) && (thisStep != -1)) {
+            next = procedure.nextPendingTaskFor(thisStep, people[who]);
+        }
+
+        final boolean moved = (who != -1) && (was.current[who] == task);
+        final boolean stepDone = (thisStep != -1) && isComplete(thisStep);
+        final boolean sectionDone = (section != -1) && isComplete(section);
+
+        /*
+         * Only finishing the current step moves the run along; a later step
+         * that gets done early is just skipped over when we get to it.
+         */
+        int nextStep = -1;
+        if (stepDone && (thisStep == was.step)) {
+            nextStep = procedure.getNextStep(thisStep);
+            while ((nextStep != -1) && isComplete(nextStep)) {
+                nextStep = procedure.getNextStep(nextStep);
+            }
+        }
+        final boolean procedureDone = progress.getDoneCount() == progress.getTaskCount();
+
+        post(TASK_DONE, task, null);
+        if (stepDone) {
+            post(STEP_DONE, thisStep, null);
+        }
+        if (sectionDone) {
+            post(SECTION_DONE, section, null);
+        }
+
+        if (procedureDone) {
+            position = new Position(-1, nobody(), true, true);
+            post(PROCEDURE_DONE, -1, null);
+        } else if (nextStep != -1) {
+            startStep(nextStep);
+        } else if (moved) {
+            int[] current = was.current.clone();
+            current[who] = next;
+            position = new Position(was.step, current, true, false);
+
+            if (next != -1) {
+                post(TASK_STARTED, next, people[who]);
+            }
+        }
+    }
+
+    /*
+     * Make step the current one, work out each participant's task in it,
+     * and say so.
+     */
+    private void startStep(int step) {
+        final int[] current = new int[people.length];
+
+        for (int i = 0; i < people.length; i++) {
+            current[i] = procedure.nextPendingTaskFor(step, people[i]);
+        }
+        position = new Position(step, current, true, false);
+
+        post(STEP_STARTED, step, null);
+        for (int i = 0; i < people.length; i++) {
+            if (current[i] != -1) {
+                post(TASK_STARTED, current[i], people[i]);
+            }
+        }
+    }
+
+    private void post(byte kind, int node, String who) {
+        events.add(new Event(kind, node, who));
+    }
+
+    /*
+     * Tell the listeners about whatever events are waiting, unless another
+     * thread is already doing so. Having finished, look again, in case
+     * something was posted after we stopped looking but before the other
+     * thread could see that we were still busy.
+     */
+    private void deliver() {
+        while (!events.isEmpty() && delivering.compareAndSet(false, true)) {
+            try {
+                Event event;
+                while ((event = events.poll()) != null) {
+                    fire(event);
+                }
+            } finally {
+                delivering.set(false);
+            }
+        }
+    }
+
+    /*
+     * Tell each listener about one event. A listener that throws is
+     * reported and skipped, so that it can't keep the others from hearing
+     * about this event or later ones, nor stop the thread that happened to
+     * be doing the delivering.
+     */
+    private void fire(Event event) {
+        final ProcedureListener[] targets = listeners;
+
+        for (ProcedureListener listener : targets) {
+            try {
+                tell(listener, event);
+            } catch (VirtualMachineError vme) {
+                throw vme;
+            } catch (Throwable t) {
+                Debug.print("listeners", this + ": " + listener + " failed handling an event: " + t);
+            }
+        }
+    }
+
+    private void tell(ProcedureListener listener, Event event) {
+        switch (event.kind) {
+        case STEP_STARTED:
+            listener.stepStarted(this, event.node);
+            break;
+        case TASK_STARTED:
+            listener.taskStarted(this, event.node, event.who);
+            break;
+        case TASK_DONE:
+            listener.taskDone(this, event.node);
+            break;
+        case STEP_DONE:
+            listener.stepDone(this, event.node);
+            break;
+        case SECTION_DONE:
+            listener.sectionDone(this, event.node);
+            break;
+        case PROCEDURE_DONE:
+            listener.procedureDone(this);
+            break;
+        }
+    }
+
+    /*
+     * Whether all the tasks below node are done.
+     */
+    private boolean isComplete(int node) {
+        return progress.isComplete(node);
+    }
+
+    /*
+     * The who code of the participant a task is for, or -1.
+     */
+    private int owner(int task) {
+        int name = model.getAncestor(task, ProcedureModel.NAME);
+        if (name == -1) {
+            return -1;
+        }
+        return model.getWhoCode(name);
+    }
+
+    /**
+     * @return the current step, or -1 if the run hasn't started, or is over.
+     */
+    public int getCurrentStep() {
+        return position.step;
+    }
+
+    /**
+     * @return the task who is on in the current step, or -1 if they've done
+     *         all theirs (or didn't have any).
+     */
+    public int getCurrentTask(String who) {
+        int code = model.getWhoCode(who);
+        if (code == -1) {
+            return -1;
+        }
+        return position.current[code];
+    }
+
+    /**
+     * @return whether start() has been called.
+     */
+    public boolean isStarted() {
+        return position.started;
+    }
+
+    /**
+     * @return whether the run has come to an end, either by the last task
+     *         being done or by stop() being called.
+     */
+    public boolean isFinished() {
+        return position.finished;
+    }
+
+    public String toString() {
+        return "ProcedureRun " + name;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.util.ArrayList;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Walk a DOM Document exactly once, depth first, adding XML IDs to every
+ * Element and handing each Element in turn to whatever DocumentVisitors
+ * have been registered. This replaces running a separate
+ * getElementsByTagName() scan for each of IDs, numbering, and each index.
+ * 
+ * <P>
+ * IDs are assigned in document order as "n" + ordinal, exactly as
+ * XmlUtils.addIDs() always has. Visitors are called in the order they were
+ * added.
+ *
+ * <P>
+ * Elements written with a prefix bound to the procedures namespace are
+ * renamed to their plain names on the way past (see NamespaceScope), so
+ * that a Document from any parser looks the same to the visitors as one
+ * from XmlStreamLoader, which does this as it loads.
+ * 
+ * @author Andrew Cowie
+ */
+public class Annotator
+{
+    private ArrayList<DocumentVisitor> _visitors = null;
+
+    private int _nodesVisited;
+
+    private int _elementsVisited;
+
+    public Annotator() {
+        _visitors = new ArrayList<DocumentVisitor>();
+    }
+
+    /**
+     * Register a pass to be run as part of the traversal.
+     */
+    public void addVisitor(DocumentVisitor visitor) {
+        if (visitor == null) {
+            throw new IllegalArgumentException("Can't add a null DocumentVisitor");
+        }
+        _visitors.add(visitor);
+    }
+
+    /**
+     * Run the traversal.
+     * 
+     * @return the number of nodes (of any type, not just Elements) that
+     *         were visited.
+     */
+    public int run(Document doc) {
+        return run(doc.getDocumentElement(), 0);
+    }
+
+    /**
+     * Run the traversal over just one Element and its descendants, as when
+     * a part of a Document that was skipped earlier is filled in. The
+     * Elements are numbered on from firstOrdinal, so if that is the ordinal
+     * the top Element would have had in a full run, the IDs come out the
+     * same as they would have.
+     * 
+     * @return the number of nodes that were visited.
+     */
+    public int run(Element top, int firstOrdinal) {
+        final DocumentVisitor[] visitors = _visitors.toArray(new DocumentVisitor[_visitors.size()]);
+        final int num = visitors.length;
+
+        int nodes = 0;
+        int ordinal = firstOrdinal;
+
+        /*
+         * Iterative rather than recursive, so that deeply nested documents
+         * don't cost us stack. The ordinal of each open Element is kept on
+         * a little stack of our own so it can be handed to endElement().
+         */
+        int[] open = new int[16];
+        int depth = 0;
+
+        final NamespaceScope scope = new NamespaceScope();
+        if (top.getParentNode() instanceof Element) {
+            scope.declareFrom((Element) top.getParentNode());
+        }
+
+        Node node = top;
+
+        while (node != null) {
+            nodes++;
+
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                Element element = unify((Element) node, scope, depth);
+                node = element;
+
+                element.setAttribute("id", "n" + ordinal);
+                for (int i = 0; i < num; i++) {
+                    visitors[i].startElement(element, ordinal);
+                }
+
+                Node child = node.getFirstChild();
+                if (child != null) {
+                    if (depth == open.length) {
+                        int[] grown = new int[depth * 2];
+                        System.arraycopy(open, 0, grown, 0, depth);
+                        open = grown;
+                    }
+                    open[depth++] = ordinal++;
+                    node = child;
+                    continue;
+                }
+
+                for (int i = 0; i < num; i++) {
+                    visitors[i].endElement(element, ordinal);
+                }
+                scope.close(depth);
+                ordinal++;
+            }
+
+            /*
+             * No children (or not an Element), so move across, closing
+             * Elements on the way back up as necessary. Once we've closed
+             * the top Element we're done.
+             */
+            while (true) {
+                if (depth == 0) {
+                    node = null;
+                    break;
+                }
+                Node sibling = node.getNextSibling();
+                if (sibling != null) {
+                    node = sibling;
+                    break;
+                }
+                node = node.getParentNode();
+                depth--;
+                for (int i = 0; i < num; i++) {
+                    visitors[i].endElement((Element) node, open[depth]);
+                }
+                scope.close(depth);
+            }
+        }
+
+        _nodesVisited = nodes;
+        _elementsVisited = ordinal - firstOrdinal;
+
+        return nodes;
+    }
+
+    /*
+     * Note any prefixes element declares, and rename it if it is a
+     * procedure element written with one. Renaming may replace the Element,
+     * so carry on with whichever is returned.
+     */
+    private static Element unify(Element element, NamespaceScope scope, int depth) {
+        if (element.hasAttributes()) {
+            NamedNodeMap attrs = element.getAttributes();
+            for (int i = 0; i < attrs.getLength(); i++) {
+                Attr attr = (Attr) attrs.item(i);
+                scope.declare(attr.getName(), attr.getValue(), depth);
+            }
+        }
+
+        final String name = element.getTagName();
+        final String unified = scope.unify(name);
+        if (unified.equals(name)) {
+            return element;
+        }
+        return (Element) element.getOwnerDocument().renameNode(element, null, unified);
+    }
+
+    /**
+     * @return how many nodes (Elements, text, comments, ...) the last run
+     *         visited.
+     */
+    public int getNodesVisited() {
+        return _nodesVisited;
+    }
+
+    /**
+     * @return how many Elements the last run visited, which is also the
+     *         number of IDs that were assigned.
+     */
+    public int getElementsVisited() {
+        return _elementsVisited;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import org.w3c.dom.Element;
+
+/**
+ * A pass to be run over the Elements of a Document as part of the single
+ * depth first traversal done by an {@link Annotator}. Anything that used to
+ * need its own getElementsByTagName() walk of the tree (numbering, building
+ * indexes) should be written as one of these instead.
+ * 
+ * @author Andrew Cowie
+ */
+public interface DocumentVisitor
+{
+    /**
+     * Called as the traversal arrives at an Element, before any of its
+     * children are visited. The id attribute has already been set.
+     * 
+     * @param element
+     *            the Element being entered
+     * @param ordinal
+     *            the zero origin position of element in document order; the
+     *            same number that is used to make its ID.
+     */
+    public void startElement(Element element, int ordinal);
+
+    /**
+     * Called as the traversal leaves an Element, after all of its children
+     * have been visited.
+     */
+    public void endElement(Element element, int ordinal);
+}
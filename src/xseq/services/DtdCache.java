@@ -0,0 +1,167 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+/**
+ * An EntityResolver which keeps DTDs (and any other external entities the
+ * parser asks for) in memory, so that xml/procedure.dtd is read from disk
+ * once rather than on every parse. It also holds the compiled DtdGrammar for
+ * each DTD, for validation.
+ *
+ * <P>
+ * Entries are keyed by absolute system ID, and are never refreshed; if you
+ * edit a DTD, restart. Safe to share between threads.
+ *
+ * @author Andrew Cowie
+ */
+public class DtdCache implements EntityResolver
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final HashMap<String, byte[]> _entities;
+
+    private final HashMap<String, DtdGrammar> _grammars;
+
+    private int _loads;
+
+    public DtdCache() {
+        _entities = new HashMap<String, byte[]>();
+        _grammars = new HashMap<String, DtdGrammar>();
+    }
+
+    /**
+     * Put an entity's contents in the cache in advance, for example a DTD
+     * bundled as a resource so that it need never be looked for on disk.
+     */
+    public synchronized void preload(String systemId, byte[] contents) {
+        _entities.put(absolute(null, systemId), contents);
+    }
+
+    public InputSource resolveEntity(String publicId, String systemId) throws IOException {
+        if (systemId == null) {
+            return null;
+        }
+        String key = absolute(null, systemId);
+
+        InputSource source = new InputSource(new ByteArrayInputStream(load(key)));
+        source.setPublicId(publicId);
+        source.setSystemId(key);
+        return source;
+    }
+
+    private synchronized byte[] load(String key) throws IOException {
+        byte[] contents = _entities.get(key);
+        if (contents != null) {
+            return contents;
+        }
+
+        InputStream in = new URL(key).openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                out.write(buf, 0, count);
+            }
+            contents = out.toByteArray();
+        } finally {
+            in.close();
+        }
+
+        _loads++;
+        _entities.put(key, contents);
+        return contents;
+    }
+
+    /**
+     * Get the compiled grammar for a DTD, loading and compiling it the first
+     * time it is asked for.
+     *
+     * @param systemId
+     *            the absolute system ID of the DTD.
+     * @throws IOException
+     *             if the DTD can't be read.
+     * @throws IllegalArgumentException
+     *             if it can't be parsed.
+     */
+    public DtdGrammar getGrammar(String systemId) throws IOException {
+        String key = absolute(null, systemId);
+
+        synchronized (this) {
+            DtdGrammar grammar = _grammars.get(key);
+            if (grammar == null) {
+                grammar = DtdGrammar.compile(new String(load(key), UTF8));
+                _grammars.put(key, grammar);
+            }
+            return grammar;
+        }
+    }
+
+    /**
+     * @return how many times an entity had to be read from its source,
+     *         rather than from memory.
+     */
+    public synchronized int getLoads() {
+        return _loads;
+    }
+
+    /**
+     * Resolve a system ID against a base, giving the form used as a key. A
+     * relative system ID with no base is taken to be relative to the current
+     * directory.
+     */
+    public static String absolute(String base, String systemId) {
+        try {
+            URI uri = new URI(systemId);
+            if (!uri.isAbsolute()) {
+                if (base == null) {
+                    uri = new File(systemId).getAbsoluteFile().toURI();
+                } else {
+                    uri = new URI(base).resolve(uri);
+                }
+            }
+            uri = uri.normalize();
+
+            /*
+             * "file:/x" and "file:///x" are the same file; make sure they're
+             * the same key.
+             */
+            if ("file".equals(uri.getScheme()) && (uri.getAuthority() == null)) {
+                uri = new File(uri).toURI();
+            }
+            return uri.toString();
+        } catch (URISyntaxException use) {
+            throw new IllegalArgumentException("Bad system ID " + systemId);
+        }
+    }
+}
@@ -0,0 +1,616 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.regex.Pattern;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A DTD, parsed and compiled once so that any number of Documents can be
+ * validated against it. A validating DocumentBuilder loads and compiles the
+ * DTD afresh for every document it parses; this doesn't.
+ *
+ * <P>
+ * Each element's content model is compiled to a regular expression over its
+ * children's names, so checking an element's content is a single match.
+ * Attribute declarations are checked for #REQUIRED and #FIXED values,
+ * enumerations, undeclared attributes, and uniqueness of IDs.
+ *
+ * <P>
+ * One thing goes beyond XML proper: an attribute which is declared for an
+ * element and has the same name as a text-only element can stand in for a
+ * leading child of that name. That is how procedure.dtd can keep a section's
+ * title required while still accepting the older title="..." form.
+ *
+ * <P>
+ * This handles what xseq's DTDs use: element and attribute list
+ * declarations, comments and processing instructions. Entity and notation
+ * declarations are skipped, and parameter entity references are rejected.
+ * Instances are immutable and so safe to share between threads.
+ *
+ * @author Andrew Cowie
+ */
+public class DtdGrammar
+{
+    private static final int EMPTY = 0;
+
+    private static final int ANY = 1;
+
+    private static final int MIXED = 2;
+
+    private static final int CHILDREN = 3;
+
+    private static final int IMPLIED = 0;
+
+    private static final int REQUIRED = 1;
+
+    private static final int FIXED = 2;
+
+    private static final int DEFAULT = 3;
+
+    private static class ElementDecl
+    {
+        int kind;
+
+        /*
+         * matched against the names of the child elements, each followed by
+         * a comma.
+         */
+        Pattern content;
+    }
+
+    private static class AttributeDecl
+    {
+        String name;
+
+        boolean id;
+
+        /*
+         * the allowed values if an enumerated type, otherwise null.
+         */
+        HashSet<String> values;
+
+        int mode;
+
+        String value;
+    }
+
+    private final HashMap<String, ElementDecl> _elements;
+
+    private final HashMap<String, LinkedHashMap<String, AttributeDecl>> _attributes;
+
+    /*
+     * Only used while compiling.
+     */
+    private String dtd;
+
+    private int pos;
+
+    private DtdGrammar() {
+        _elements = new HashMap<String, ElementDecl>();
+        _attributes = new HashMap<String, LinkedHashMap<String, AttributeDecl>>();
+    }
+
+    /**
+     * Parse and compile a DTD.
+     *
+     * @param text
+     *            the text of the DTD, as it would be in an external subset.
+     * @throws IllegalArgumentException
+     *             if the DTD can't be parsed.
+     */
+    public static DtdGrammar compile(String text) {
+        DtdGrammar grammar = new DtdGrammar();
+
+        grammar.dtd = text;
+        grammar.pos = 0;
+        grammar.parse();
+        grammar.dtd = null;
+
+        return grammar;
+    }
+
+    /*
+     * Parsing the DTD
+     */
+
+    private void parse() {
+        while (true) {
+            skipSpace();
+            if (pos >= dtd.length()) {
+                break;
+            }
+
+            if (dtd.startsWith("<!--", pos)) {
+                skipPast("-->");
+            } else if (dtd.startsWith("<?", pos)) {
+                skipPast("?>");
+            } else if (dtd.startsWith("<!ELEMENT", pos)) {
+                pos += 9;
+                parseElement();
+            } else if (dtd.startsWith("<!ATTLIST", pos)) {
+                pos += 9;
+                parseAttlist();
+            } else if (dtd.startsWith("<!ENTITY", pos) || dtd.startsWith("<!NOTATION", pos)) {
+                skipDeclaration();
+            } else if (dtd.charAt(pos) == '%') {
+                throw error("Parameter entity references are not supported");
+            } else {
+                throw error("Unexpected text");
+            }
+        }
+    }
+
+    private void parseElement() {
+        requireSpace();
+        String name = parseName();
+        requireSpace();
+
+        ElementDecl decl = new ElementDecl();
+
+        if (dtd.startsWith("EMPTY", pos)) {
+            pos += 5;
+            decl.kind = EMPTY;
+        } else if (dtd.startsWith("ANY", pos)) {
+            pos += 3;
+            decl.kind = ANY;
+        } else {
+            expect('(');
+            skipSpace();
+            if (dtd.startsWith("#PCDATA", pos)) {
+                pos += 7;
+                decl.kind = MIXED;
+                decl.content = Pattern.compile(parseMixed());
+            } else {
+                decl.kind = CHILDREN;
+                StringBuilder regex = new StringBuilder();
+                parseGroup(regex);
+                parseModifier(regex);
+                decl.content = Pattern.compile(regex.toString());
+            }
+        }
+
+        skipSpace();
+        expect('>');
+
+        if (_elements.containsKey(name)) {
+            throw error("Element " + name + " declared more than once");
+        }
+        _elements.put(name, decl);
+    }
+
+    /*
+     * Having consumed "(#PCDATA", the rest of a mixed content declaration.
+     */
+    private String parseMixed() {
+        StringBuilder regex = new StringBuilder("(?:");
+        boolean first = true;
+
+        while (true) {
+            skipSpace();
+            char ch = next();
+            if (ch == ')') {
+                break;
+            }
+            if (ch != '|') {
+                throw error("Expected | or ) in mixed content declaration");
+            }
+            skipSpace();
+            if (!first) {
+                regex.append('|');
+            }
+            regex.append(Pattern.quote(parseName() + ","));
+            first = false;
+        }
+
+        if ((pos < dtd.length()) && (dtd.charAt(pos) == '*')) {
+            pos++;
+        } else if (!first) {
+            throw error("Mixed content with elements must end in )*");
+        }
+
+        if (first) {
+            return "";
+        }
+        return regex.append(")*").toString();
+    }
+
+    /*
+     * Having consumed "(", a sequence or choice of content particles up to
+     * and including the closing ")".
+     */
+    private void parseGroup(StringBuilder regex) {
+        char separator = 0;
+
+        regex.append("(?:");
+        while (true) {
+            skipSpace();
+            parseParticle(regex);
+            skipSpace();
+
+            char ch = next();
+            if (ch == ')') {
+                break;
+            }
+            if ((ch != ',') && (ch != '|')) {
+                throw error("Expected , | or ) in content model");
+            }
+            if (separator == 0) {
+                separator = ch;
+            } else if (ch != separator) {
+                throw error("Can't mix , and | in one group");
+            }
+            if (ch == '|') {
+                regex.append('|');
+            }
+        }
+        regex.append(')');
+    }
+
+    private void parseParticle(StringBuilder regex) {
+        if (dtd.charAt(pos) == '(') {
+            pos++;
+            skipSpace();
+            parseGroup(regex);
+        } else {
+            regex.append("(?:");
+            regex.append(Pattern.quote(parseName() + ","));
+            regex.append(')');
+        }
+        parseModifier(regex);
+    }
+
+    private void parseModifier(StringBuilder regex) {
+        if (pos < dtd.length()) {
+            char ch = dtd.charAt(pos);
+            if ((ch == '?') || (ch == '*') || (ch == '+')) {
+                regex.append(ch);
+                pos++;
+            }
+        }
+    }
+
+    private void parseAttlist() {
+        requireSpace();
+        String element = parseName();
+
+        LinkedHashMap<String, AttributeDecl> attributes = _attributes.get(element);
+        if (attributes == null) {
+            attributes = new LinkedHashMap<String, AttributeDecl>();
+            _attributes.put(element, attributes);
+        }
+
+        while (true) {
+            skipSpace();
+            if (dtd.charAt(pos) == '>') {
+                pos++;
+                break;
+            }
+
+            AttributeDecl decl = new AttributeDecl();
+            decl.name = parseName();
+            requireSpace();
+
+            if (dtd.charAt(pos) == '(') {
+                pos++;
+                decl.values = parseEnumeration();
+            } else if (dtd.startsWith("NOTATION", pos)) {
+                pos += 8;
+                requireSpace();
+                expect('(');
+                decl.values = parseEnumeration();
+            } else {
+                String type = parseName();
+                if (type.equals("ID")) {
+                    decl.id = true;
+                } else if (!(type.equals("CDATA") || type.equals("IDREF") || type.equals("IDREFS")
+                        || type.equals("ENTITY") || type.equals("ENTITIES") || type.equals("NMTOKEN") || type
+                        .equals("NMTOKENS"))) {
+                    throw error("Unknown attribute type " + type);
+                }
+            }
+            requireSpace();
+
+            if (dtd.startsWith("#REQUIRED", pos)) {
+                pos += 9;
+                decl.mode = REQUIRED;
+            } else if (dtd.startsWith("#IMPLIED", pos)) {
+                pos += 8;
+                decl.mode = IMPLIED;
+            } else if (dtd.startsWith("#FIXED", pos)) {
+                pos += 6;
+                requireSpace();
+                decl.mode = FIXED;
+                decl.value = parseQuoted();
+            } else {
+                decl.mode = DEFAULT;
+                decl.value = parseQuoted();
+            }
+
+            /*
+             * As in XML proper, the first declaration of an attribute wins.
+             */
+            if (!attributes.containsKey(decl.name)) {
+                attributes.put(decl.name, decl);
+            }
+        }
+    }
+
+    private HashSet<String> parseEnumeration() {
+        HashSet<String> values = new HashSet<String>();
+
+        while (true) {
+            skipSpace();
+            values.add(parseName());
+            skipSpace();
+            char ch = next();
+            if (ch == ')') {
+                return values;
+            }
+            if (ch != '|') {
+                throw error("Expected | or ) in enumeration");
+            }
+        }
+    }
+
+    private String parseQuoted() {
+        char quote = next();
+        if ((quote != '"') && (quote != '\'')) {
+            throw error("Expected a quoted value");
+        }
+        int end = dtd.indexOf(quote, pos);
+        if (end == -1) {
+            throw error("Unterminated quoted value");
+        }
+        String value = dtd.substring(pos, end);
+        pos = end + 1;
+        return value;
+    }
+
+    private String parseName() {
+        int start = pos;
+        while (pos < dtd.length()) {
+            char ch = dtd.charAt(pos);
+            if (Character.isLetterOrDigit(ch) || (ch == '.') || (ch == '-') || (ch == '_') || (ch == ':')) {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (pos == start) {
+            throw error("Expected a name");
+        }
+        return dtd.substring(start, pos);
+    }
+
+    private void skipDeclaration() {
+        char quote = 0;
+        while (pos < dtd.length()) {
+            char ch = dtd.charAt(pos++);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if ((ch == '"') || (ch == '\'')) {
+                quote = ch;
+            } else if (ch == '>') {
+                return;
+            }
+        }
+        throw error("Unterminated declaration");
+    }
+
+    private void skipPast(String terminator) {
+        int end = dtd.indexOf(terminator, pos);
+        if (end == -1) {
+            throw error("Expected " + terminator);
+        }
+        pos = end + terminator.length();
+    }
+
+    private void skipSpace() {
+        while ((pos < dtd.length()) && Character.isWhitespace(dtd.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private void requireSpace() {
+        int start = pos;
+        skipSpace();
+        if ((pos == start) || (pos >= dtd.length())) {
+            throw error("Expected whitespace");
+        }
+    }
+
+    private void expect(char ch) {
+        if (next() != ch) {
+            throw error("Expected " + ch);
+        }
+    }
+
+    private char next() {
+        if (pos >= dtd.length()) {
+            throw error("Unexpected end of DTD");
+        }
+        return dtd.charAt(pos++);
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + pos + " of DTD");
+    }
+
+    /*
+     * Validating Documents
+     */
+
+    /**
+     * Check a Document against this grammar.
+     *
+     * @throws IllegalArgumentException
+     *             describing the first problem found, if the Document isn't
+     *             valid.
+     */
+    public void validate(Document dom) {
+        Element root = dom.getDocumentElement();
+        DocumentType doctype = dom.getDoctype();
+
+        if ((doctype != null) && !doctype.getName().equals(root.getTagName())) {
+            throw new IllegalArgumentException("Invalid document: root element <" + root.getTagName()
+                    + "> doesn't match DOCTYPE " + doctype.getName());
+        }
+
+        validate(root, new HashSet<String>());
+    }
+
+    private void validate(Element element, HashSet<String> ids) {
+        final String tagName = element.getTagName();
+        final ElementDecl decl = _elements.get(tagName);
+
+        if (decl == null) {
+            throw invalid(element, "is not declared");
+        }
+
+        /*
+         * Attributes
+         */
+
+        LinkedHashMap<String, AttributeDecl> declared = _attributes.get(tagName);
+        NamedNodeMap attrs = element.getAttributes();
+
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr attr = (Attr) attrs.item(i);
+            String name = attr.getName();
+            String value = attr.getValue();
+
+            AttributeDecl ad = (declared == null) ? null : declared.get(name);
+            if (ad == null) {
+                throw invalid(element, "has undeclared attribute " + name);
+            }
+            if ((ad.values != null) && !ad.values.contains(value)) {
+                throw invalid(element, "has " + name + "=\"" + value + "\" which isn't one of the allowed values");
+            }
+            if ((ad.mode == FIXED) && !ad.value.equals(value)) {
+                throw invalid(element, "has " + name + "=\"" + value + "\" but it's fixed as \"" + ad.value + "\"");
+            }
+            if (ad.id && !ids.add(value)) {
+                throw invalid(element, "has duplicate ID " + value);
+            }
+        }
+
+        if (declared != null) {
+            for (AttributeDecl ad : declared.values()) {
+                if ((ad.mode == REQUIRED) && !element.hasAttribute(ad.name)) {
+                    throw invalid(element, "is missing required attribute " + ad.name);
+                }
+            }
+        }
+
+        /*
+         * Content
+         */
+
+        StringBuilder children = new StringBuilder();
+        boolean text = false;
+
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                children.append(child.getNodeName());
+                children.append(',');
+                validate((Element) child, ids);
+                break;
+            case Node.TEXT_NODE:
+                if ((decl.kind == EMPTY) || (child.getNodeValue().trim().length() > 0)) {
+                    text = true;
+                }
+                break;
+            case Node.CDATA_SECTION_NODE:
+            case Node.ENTITY_REFERENCE_NODE:
+                text = true;
+                break;
+            default:
+                // comments and processing instructions can go anywhere
+            }
+        }
+
+        switch (decl.kind) {
+        case EMPTY:
+            if (text || (children.length() > 0)) {
+                throw invalid(element, "is declared EMPTY but has content");
+            }
+            break;
+        case ANY:
+            break;
+        case CHILDREN:
+            if (text) {
+                throw invalid(element, "can only contain elements, but has text");
+            }
+            // fall through
+        case MIXED:
+            if (!decl.content.matcher(children).matches() && !matchesWithStandIn(element, declared, decl, children)) {
+                throw invalid(element, "has children that don't match its declaration");
+            }
+            break;
+        }
+    }
+
+    /*
+     * Try the content again with each of the element's declared attributes
+     * that names a text-only element taken as a first child of that name.
+     */
+    private boolean matchesWithStandIn(Element element, LinkedHashMap<String, AttributeDecl> declared,
+            ElementDecl decl, StringBuilder children) {
+        if (declared == null) {
+            return false;
+        }
+        for (AttributeDecl ad : declared.values()) {
+            if (!element.hasAttribute(ad.name)) {
+                continue;
+            }
+            ElementDecl standIn = _elements.get(ad.name);
+            if ((standIn == null) || (standIn.kind != MIXED) || (standIn.content.pattern().length() > 0)) {
+                continue;
+            }
+            if (decl.content.matcher(ad.name + "," + children).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static IllegalArgumentException invalid(Element element, String message) {
+        return new IllegalArgumentException("Invalid document: <" + element.getTagName() + "> " + message);
+    }
+
+    /**
+     * @return whether the named element is declared in this grammar.
+     */
+    public boolean isDeclared(String tagName) {
+        return _elements.containsKey(tagName);
+    }
+}
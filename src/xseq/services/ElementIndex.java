@@ -18,7 +18,7 @@
  */
 package xseq.services;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -52,9 +52,52 @@ import org.w3c.dom.NodeList;
  * 
  * @author Andrew Cowie
  */
-public class ElementIndex
+public class ElementIndex implements DocumentVisitor
 {
-    private HashMap _map = null;
+    /*
+     * Elements whose ID is a generated one, "n" + ordinal, are stored at that
+     * ordinal, so looking them up is a parse and an array access. Since the
+     * Annotator numbers every Element, in practice this is all of them.
+     */
+    private Element[] _generated = null;
+
+    /*
+     * How many Elements the Document is known to have. Only an ordinal below
+     * this goes in _generated; an ID like n999999999 that some author typed
+     * in is hashed like any other, rather than growing the array to fit.
+     */
+    private int _limit;
+
+    /*
+     * Anything else (author supplied IDs) goes by hash: ID to slot in
+     * _elements, which are filled in the order such Elements are added.
+     */
+    private StringIntIndex _slots = null;
+
+    private Element[] _elements = null;
+
+    private int _numOther;
+
+    private int _size;
+
+    /**
+     * Construct an empty index, to be populated as an Annotator runs over a
+     * Document with this index registered as one of its visitors.
+     */
+    public ElementIndex() {
+        this(64);
+    }
+
+    /**
+     * Construct an empty index sized for the given number of Elements, as
+     * when the count is already known from a ProcedureModel.
+     */
+    public ElementIndex(int expected) {
+        _generated = new Element[Math.max(expected, 1)];
+        _limit = expected;
+        _slots = new StringIntIndex(0);
+        _elements = new Element[1];
+    }
 
     /**
      * Construct a new index. Note that (at the moment) the index is NOT
@@ -84,43 +127,141 @@ public class ElementIndex
         int length = list.getLength();
 
         /*
-         * since we know the number of elements we're dealing with, and since
-         * we (at the moment) aren't going past this, we choose a very low
-         * load factor to improve performance.
+         * since we know the number of elements we're dealing with, size the
+         * index for exactly that many.
          */
-        _map = new HashMap(length, (float) 0.01);
+        _generated = new Element[Math.max(length, 1)];
+        _limit = tagName.equals("*") ? length : doc.getElementsByTagName("*").getLength();
+        _slots = new StringIntIndex(0);
+        _elements = new Element[1];
 
         for (int i = 0; i < length; i++) {
             Element element = (Element) list.item(i);
-            String id = element.getAttribute("id");
+            add(element);
+        }
+    }
+
+    private void add(Element element) {
+        String id = element.getAttribute("id");
+
+        // getAttribute returns an empty string if not present; if that's
+        // the case, then we don't want it in the Index.
+        if (id.equals("")) {
+            return;
+        }
 
-            // getAttribute returns an empty string if not present; if that's
-            // the case, then we don't want it in the Index.
-            if (id.equals("")) {
-                continue;
+        // if the index already has this ID value for some other Element,
+        // then that's bad; blow an exception. The same Element again is fine.
+        final int ordinal = generated(id);
+        final Element existing;
+
+        if (ordinal != -1) {
+            if (ordinal >= _generated.length) {
+                _generated = Arrays.copyOf(_generated, Math.min(Math.max(_generated.length * 2, ordinal + 1),
+                        _limit));
             }
+            existing = _generated[ordinal];
+        } else {
+            int slot = _slots.get(id);
+            existing = (slot == -1) ? null : _elements[slot];
+        }
 
-            // if the map already has this ID value, then that's bad; blow an
-            // exception.
-            if (_map.containsKey(id)) {
+        if (existing != null) {
+            if (existing != element) {
                 throw new IllegalArgumentException(
                         "As we were building an index of XML IDs, we encountered an Element with an ID attribute which was already in the index. IDs must be unique!");
             }
-            _map.put(id, element);
+            return;
+        }
+
+        if (ordinal != -1) {
+            _generated[ordinal] = element;
+        } else {
+            if (_numOther == _elements.length) {
+                _elements = Arrays.copyOf(_elements, _numOther * 2);
+            }
+            _elements[_numOther] = element;
+            _slots.put(id, _numOther);
+            _numOther++;
+        }
+        _size++;
+    }
+
+    /*
+     * The ordinal of an ID that goes in _generated, or -1 if it is to be
+     * hashed.
+     */
+    private int generated(String id) {
+        final int ordinal = XmlUtils.parseId(id);
+
+        if (ordinal >= _limit) {
+            return -1;
+        }
+        return ordinal;
+    }
+
+    public void startElement(Element element, int ordinal) {
+        /*
+         * An Annotator numbers Elements in document order, so having got to
+         * this one there are at least this many.
+         */
+        if (ordinal >= _limit) {
+            _limit = ordinal + 1;
         }
+        add(element);
+    }
+
+    public void endElement(Element element, int ordinal) {
+    // nothing to do
     }
 
     /**
      * Look up an Element in the DOM tree by ID. Use the familiar (in the DOM
-     * sense) name for this method, even though really we're just wrapping
-     * Collection Map methods.
+     * sense) name for this method.
+     * 
+     * <P>
+     * This is the hottest lookup in the system, so IDs of the generated form
+     * are recognized and go straight to an array; only anything else is
+     * hashed.
      * 
      * @param id
      *            the identifier to lookup in the Index
      * @return the associated element, or null if not present.
      */
     public Element getElementById(String id) {
-        // get() returns null if the key doesn't match a value, which is fine.
-        return (Element) _map.get(id);
+        final int ordinal = generated(id);
+
+        if ((ordinal != -1) && (ordinal < _generated.length) && (_generated[ordinal] != null)) {
+            return _generated[ordinal];
+        }
+
+        /*
+         * Includes IDs that look generated but were hashed because they were
+         * beyond what the Document was known to have when they were added.
+         */
+        final int slot = _slots.get(id);
+        if (slot == -1) {
+            return null;
+        }
+        return _elements[slot];
+    }
+
+    /**
+     * @return the number of Elements in the index.
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Estimate how much heap the index itself takes, not counting the
+     * Elements and ID Strings it refers to.
+     * 
+     * @return an approximate number of bytes.
+     */
+    public long getMemoryUsage() {
+        return StringIntIndex.align(StringIntIndex.OBJECT_HEADER + 3 * StringIntIndex.REFERENCE + 2 * 4)
+                + StringIntIndex.arrayBytes(_generated.length, StringIntIndex.REFERENCE) + _slots.getMemoryUsage()
+                + StringIntIndex.arrayBytes(_elements.length, StringIntIndex.REFERENCE);
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+/**
+ * A binary indexed (Fenwick) tree of ints: a fixed number of counters where
+ * both changing one counter and summing any contiguous range of them take
+ * O(log n), in a single int array the same size as the number of counters.
+ *
+ * <P>
+ * Positions count from 0; internally the usual 1 origin arrangement is used,
+ * where slot i covers the (i &amp; -i) counters ending at i. Not thread
+ * safe; StripedFenwickTree is.
+ *
+ * @author Andrew Cowie
+ */
+public class FenwickTree
+{
+    private final int[] tree;
+
+    /**
+     * Create a tree of size counters, all zero.
+     */
+    public FenwickTree(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Can't have a negative number of counters");
+        }
+        tree = new int[size + 1];
+    }
+
+    /**
+     * Create a tree with the given initial counts, in O(n).
+     */
+    public FenwickTree(int[] counts) {
+        this(counts.length);
+
+        for (int i = 1; i < tree.length; i++) {
+            tree[i] += counts[i - 1];
+            int up = i + (i & -i);
+            if (up < tree.length) {
+                tree[up] += tree[i];
+            }
+        }
+    }
+
+    /**
+     * @return the number of counters.
+     */
+    public int size() {
+        return tree.length - 1;
+    }
+
+    /**
+     * Change the counter at position by delta.
+     */
+    public void add(int position, int delta) {
+        if ((position < 0) || (position >= tree.length - 1)) {
+            throw new IndexOutOfBoundsException("position " + position);
+        }
+        for (int i = position + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * @return the sum of the counters before end, ie from 0 up to but not
+     *         including end.
+     */
+    public int prefix(int end) {
+        if ((end < 0) || (end >= tree.length)) {
+            throw new IndexOutOfBoundsException("end " + end);
+        }
+        int sum = 0;
+        for (int i = end; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @return the sum of the counters from start up to but not including
+     *         end.
+     */
+    public int sum(int start, int end) {
+        return prefix(end) - prefix(start);
+    }
+}
@@ -20,8 +20,7 @@ package xseq.services;
 
 import generic.util.DebugException;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -34,22 +33,42 @@ import org.w3c.dom.NodeList;
  * the permutations of hierarchies possible.
  * 
  * <P>
- * Implemented as two collections. A first is a hash going from ID String to
+ * Implemented as two structures. A first is a hash going from ID String to
  * an array index number, which then is used to rapidly do lookups in the
- * sequential List of IDs, which then allows easy determination of the "next"
- * peer's ID.
+ * sequential array of IDs, which then allows easy determination of the
+ * "next" peer's ID.
  * 
  * <P>
  * This was necessary in part because "n9" comes before "n10", so Tree sorting
  * was no good.
  * 
+ * <P>
+ * For a Procedure, xseq.domain.OrdinalIndex does the same job for every
+ * level at once, by node number; this remains for indexing arbitrary tags
+ * in arbitrary Documents.
+ * 
  * @author Andrew Cowie
  */
-public class IdIndex
+public class IdIndex implements DocumentVisitor
 {
-    private HashMap _idToArrayIndex = null;
+    private StringIntIndex _idToArrayIndex = null;
+
+    private String[] _arrayIndexToId = null;
+
+    private int _size;
 
-    private ArrayList _arrayIndexToId = null;
+    private String _tagName = null;
+
+    /**
+     * Construct an empty index of tagName elements, to be populated as an
+     * Annotator runs over a Document with this index registered as one of
+     * its visitors.
+     */
+    public IdIndex(String tagName) {
+        _tagName = tagName;
+        _idToArrayIndex = new StringIntIndex(16);
+        _arrayIndexToId = new String[16];
+    }
 
     /**
      * Construct an index on all the nodes in a DOM document matching tagName.
@@ -63,20 +82,57 @@ public class IdIndex
                     + tagName + " elements.");
         }
 
-        _idToArrayIndex = new HashMap(length, (float) 0.01);
-        _arrayIndexToId = new ArrayList(length);
+        _idToArrayIndex = new StringIntIndex(length);
+        _arrayIndexToId = new String[length];
 
         for (int i = 0; i < length; i++) {
             Element e = (Element) list.item(i);
             String id = e.getAttribute("id");
-            if (id == null) {
+            if (id.equals("")) {
                 throw new IllegalArgumentException(
                         "The DOM document being indexed lacks id tags on all elements");
             }
+            add(id);
+        }
+    }
 
-            _idToArrayIndex.put(id, new Integer(i));
-            _arrayIndexToId.add(id);
+    private void add(String id) {
+        if (_size == _arrayIndexToId.length) {
+            _arrayIndexToId = Arrays.copyOf(_arrayIndexToId, _size * 2);
         }
+        _idToArrayIndex.put(id, _size);
+        _arrayIndexToId[_size] = id;
+        _size++;
+    }
+
+    public void startElement(Element element, int ordinal) {
+        if (!element.getTagName().equals(_tagName)) {
+            return;
+        }
+        add(element.getAttribute("id"));
+    }
+
+    public void endElement(Element element, int ordinal) {
+    // nothing to do
+    }
+
+    /**
+     * @return the number of elements in the index.
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Estimate how much heap the index itself takes, not counting the ID
+     * Strings it refers to.
+     * 
+     * @return an approximate number of bytes.
+     */
+    public long getMemoryUsage() {
+        return StringIntIndex.align(StringIntIndex.OBJECT_HEADER + 3 * StringIntIndex.REFERENCE + 4)
+                + _idToArrayIndex.getMemoryUsage()
+                + StringIntIndex.arrayBytes(_arrayIndexToId.length, StringIntIndex.REFERENCE);
     }
 
     /**
@@ -87,29 +143,20 @@ public class IdIndex
      */
 
     public String getNextId(String currentId) {
-        Integer index = (Integer) _idToArrayIndex.get(currentId);
-        if (index == null) {
+        int i = _idToArrayIndex.get(currentId);
+        if (i == -1) {
             throw new DebugException(
                     "Trying to lookup an id in an IdIndex that should be in its map, but isn't");
         }
-        int i = index.intValue();
 
         /*
-         * Next. Should avoid IndexOutOfBoundsException.
+         * Next.
          */
         i++;
 
-        if (i == _arrayIndexToId.size()) {
+        if (i == _size) {
             return null;
         }
-
-        String nextId;
-        try {
-            nextId = (String) _arrayIndexToId.get(i);
-        } catch (IndexOutOfBoundsException ioobe) {
-            throw new DebugException(
-                    "Despite reasonable checks, still managed to ask for an array index out of bounds");
-        }
-        return nextId;
+        return _arrayIndexToId[i];
     }
 }
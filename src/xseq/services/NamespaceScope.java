@@ -0,0 +1,168 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.util.Arrays;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Keep track of which namespace prefixes are in scope while loading, so that
+ * procedure elements are given the same name however they were written.
+ * Procedures can be in no namespace at all (as the test fixtures are), in
+ * the procedures namespace by default (as the 0.4 examples are), or in the
+ * procedures namespace by way of a prefix, as happens when a procedure is
+ * embedded in some other document. The first two already give plain names
+ * like "step"; this turns "p:step" into "step" too, if p is bound to the
+ * procedures namespace.
+ *
+ * <P>
+ * Our parsers aren't namespace aware (changing that would change the shape
+ * of every Document we build), which is why this is done by hand.
+ *
+ * @author Andrew Cowie
+ */
+public class NamespaceScope
+{
+    /**
+     * The namespace of the xseq procedure vocabulary.
+     */
+    public static final String PROCEDURES = "http://namespace.operationaldynamics.com/procedures/0.4";
+
+    private String[] prefixes;
+
+    private String[] uris;
+
+    private int[] depths;
+
+    private int size;
+
+    public NamespaceScope() {
+        prefixes = new String[4];
+        uris = new String[4];
+        depths = new int[4];
+    }
+
+    /**
+     * Note an attribute of an Element being opened at the given depth, if it
+     * is a prefix declaration.
+     *
+     * @return whether it was.
+     */
+    public boolean declare(String attributeName, String value, int depth) {
+        if (!attributeName.startsWith("xmlns:")) {
+            return false;
+        }
+        if (size == prefixes.length) {
+            prefixes = Arrays.copyOf(prefixes, size * 2);
+            uris = Arrays.copyOf(uris, size * 2);
+            depths = Arrays.copyOf(depths, size * 2);
+        }
+        prefixes[size] = attributeName.substring(6);
+        uris[size] = value;
+        depths[size] = depth;
+        size++;
+        return true;
+    }
+
+    /**
+     * Declare the prefixes in scope at an Element already in a Document, as
+     * when continuing to load below it. They're treated as being declared
+     * at depth 0. Call this before declaring anything else.
+     */
+    public void declareFrom(Element element) {
+        Node node = element;
+
+        while ((node != null) && (node.getNodeType() == Node.ELEMENT_NODE)) {
+            NamedNodeMap attrs = node.getAttributes();
+            for (int i = 0; i < attrs.getLength(); i++) {
+                Attr attr = (Attr) attrs.item(i);
+                declare(attr.getName(), attr.getValue(), 0);
+            }
+            node = node.getParentNode();
+        }
+
+        /*
+         * We went from the inside out, so the innermost declarations were
+         * added first, but lookups go from the top down. Reverse them.
+         */
+        for (int i = 0, j = size - 1; i < j; i++, j--) {
+            String p = prefixes[i];
+            prefixes[i] = prefixes[j];
+            prefixes[j] = p;
+            String u = uris[i];
+            uris[i] = uris[j];
+            uris[j] = u;
+        }
+    }
+
+    /**
+     * Forget the declarations made by an Element at the given depth, as it
+     * closes.
+     */
+    public void close(int depth) {
+        while ((size > 0) && (depths[size - 1] >= depth)) {
+            size--;
+            prefixes[size] = null;
+            uris[size] = null;
+        }
+    }
+
+    /**
+     * Put an attribute's name back together from what a StAX reader gives.
+     * With namespace awareness off, the reader still splits xmlns:foo into
+     * prefix and local name.
+     */
+    public static String qualify(String prefix, String localName) {
+        if ((prefix == null) || (prefix.length() == 0)) {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+
+    /**
+     * Get the name an element should have in the in-memory form of a
+     * procedure.
+     *
+     * @param qname
+     *            the element's name, as written.
+     * @return the local part of the name if it is prefixed with a prefix
+     *         bound to the procedures namespace, otherwise the name as is.
+     */
+    public String unify(String qname) {
+        int colon = qname.indexOf(':');
+        if (colon == -1) {
+            return qname;
+        }
+
+        String prefix = qname.substring(0, colon);
+        for (int i = size - 1; i >= 0; i--) {
+            if (prefixes[i].equals(prefix)) {
+                if (PROCEDURES.equals(uris[i])) {
+                    return qname.substring(colon + 1);
+                }
+                return qname;
+            }
+        }
+        return qname;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Where each Element was rendered: which of a number of text buffers, and
+ * the character offsets its text starts and ends at. This goes both ways,
+ * from an Element (by ordinal number) to its range, for applying TextTags,
+ * and from an offset in a buffer to the innermost Element covering it, for
+ * working out what was clicked on.
+ *
+ * <P>
+ * Offsets into a buffer stay valid as long as text isn't inserted or
+ * deleted, which is the case for a read only display that only changes
+ * tags, so there's no need for a native TextMark per Element to track them.
+ * Ranges are from start up to but not including end, and those in a buffer
+ * must nest or be disjoint, as Elements do. Not thread safe.
+ *
+ * @author Andrew Cowie
+ */
+public class OffsetIndex
+{
+    /*
+     * by node number; buffer -1 if the node hasn't been added.
+     */
+    private final int[] buffers;
+
+    private final int[] starts;
+
+    private final int[] ends;
+
+    /*
+     * for each buffer, its nodes, ordered by start offset (outermost first
+     * where several start together) once sorted is true.
+     */
+    private final int[][] nodes;
+
+    private final int[] counts;
+
+    private final boolean[] sorted;
+
+    /*
+     * for each buffer, by position in its nodes array, the position of the
+     * nearest range enclosing that one, or -1.
+     */
+    private final int[][] enclosing;
+
+    /**
+     * @param size
+     *            how many nodes there are.
+     * @param numBuffers
+     *            how many buffers they are spread over.
+     */
+    public OffsetIndex(int size, int numBuffers) {
+        if ((size < 0) || (numBuffers < 0)) {
+            throw new IllegalArgumentException("Can't have a negative number of nodes or buffers");
+        }
+        buffers = new int[size];
+        starts = new int[size];
+        ends = new int[size];
+        Arrays.fill(buffers, -1);
+
+        nodes = new int[numBuffers][];
+        counts = new int[numBuffers];
+        sorted = new boolean[numBuffers];
+        enclosing = new int[numBuffers][];
+    }
+
+    /**
+     * Record that node's text is in buffer from start up to end.
+     */
+    public void add(int node, int buffer, int start, int end) {
+        if (buffers[node] != -1) {
+            throw new IllegalArgumentException("Node " + node + " is already in the index");
+        }
+        if ((start < 0) || (end < start)) {
+            throw new IllegalArgumentException("Bad range " + start + " to " + end + " for node " + node);
+        }
+
+        buffers[node] = buffer;
+        starts[node] = start;
+        ends[node] = end;
+
+        if (nodes[buffer] == null) {
+            nodes[buffer] = new int[16];
+        } else if (counts[buffer] == nodes[buffer].length) {
+            nodes[buffer] = Arrays.copyOf(nodes[buffer], counts[buffer] * 2);
+        }
+        nodes[buffer][counts[buffer]++] = node;
+        sorted[buffer] = false;
+    }
+
+    /**
+     * @return whether node has been added.
+     */
+    public boolean contains(int node) {
+        return buffers[node] != -1;
+    }
+
+    /**
+     * @return the buffer node is in, or -1 if it hasn't been added.
+     */
+    public int getBuffer(int node) {
+        return buffers[node];
+    }
+
+    public int getStart(int node) {
+        check(node);
+        return starts[node];
+    }
+
+    public int getEnd(int node) {
+        check(node);
+        return ends[node];
+    }
+
+    private void check(int node) {
+        if (buffers[node] == -1) {
+            throw new IllegalArgumentException("Node " + node + " isn't in the index");
+        }
+    }
+
+    /**
+     * Find the innermost node whose range includes offset.
+     *
+     * @return the node, or -1 if nothing in the buffer covers offset.
+     */
+    public int find(int buffer, int offset) {
+        final int count = counts[buffer];
+
+        if (count == 0) {
+            return -1;
+        }
+        if (!sorted[buffer]) {
+            sort(buffer);
+        }
+        final int[] order = nodes[buffer];
+        final int[] up = enclosing[buffer];
+
+        /*
+         * The last range starting at or before offset; if it has already
+         * ended, whichever range encloses it might not have.
+         */
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[order[mid]] <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        for (int i = low - 1; i != -1; i = up[i]) {
+            if (ends[order[i]] > offset) {
+                return order[i];
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Order a buffer's nodes by start, longest first on ties, and work out
+     * which encloses which by keeping a stack of those still open.
+     */
+    private void sort(int buffer) {
+        final int count = counts[buffer];
+        final Integer[] boxed = new Integer[count];
+
+        for (int i = 0; i < count; i++) {
+            boxed[i] = nodes[buffer][i];
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (starts[a] != starts[b]) {
+                    return (starts[a] < starts[b]) ? -1 : 1;
+                }
+                if (ends[a] != ends[b]) {
+                    return (ends[a] > ends[b]) ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+
+        final int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = boxed[i];
+        }
+
+        final int[] up = new int[count];
+        final int[] stack = new int[count];
+        int depth = 0;
+
+        for (int i = 0; i < count; i++) {
+            while ((depth > 0) && (ends[order[stack[depth - 1]]] <= starts[order[i]])) {
+                depth--;
+            }
+            up[i] = (depth == 0) ? -1 : stack[depth - 1];
+            stack[depth++] = i;
+        }
+
+        nodes[buffer] = order;
+        enclosing[buffer] = up;
+        sorted[buffer] = true;
+    }
+
+    /**
+     * Estimate how much heap the index takes.
+     *
+     * @return an approximate number of bytes.
+     */
+    public long getMemoryUsage() {
+        long bytes = StringIntIndex.align(StringIntIndex.OBJECT_HEADER + 7 * StringIntIndex.REFERENCE)
+                + 3 * StringIntIndex.arrayBytes(buffers.length, 4)
+                + 2 * StringIntIndex.arrayBytes(nodes.length, StringIntIndex.REFERENCE)
+                + StringIntIndex.arrayBytes(counts.length, 4) + StringIntIndex.arrayBytes(sorted.length, 1);
+
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i] != null) {
+                bytes += StringIntIndex.arrayBytes(nodes[i].length, 4);
+            }
+            if (enclosing[i] != null) {
+                bytes += StringIntIndex.arrayBytes(enclosing[i].length, 4);
+            }
+        }
+        return bytes;
+    }
+}
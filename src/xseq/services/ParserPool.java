@@ -0,0 +1,286 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import generic.util.DebugException;
+
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentType;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Hand out configured DOM parsers. Looking up a DocumentBuilderFactory (which
+ * goes through the service loader) and creating a DocumentBuilder from it
+ * costs far more than actually parsing a small procedure, so we do the
+ * former once and the latter once per thread, resetting the thread's
+ * DocumentBuilder between uses.
+ *
+ * <P>
+ * DocumentBuilderFactory isn't thread safe and neither is DocumentBuilder;
+ * the factory is only ever touched while holding the pool's lock, and each
+ * DocumentBuilder only ever by the thread it was created for.
+ *
+ * <P>
+ * The parser features can be changed at any time. Doing so discards the
+ * pooled DocumentBuilders; each thread gets a new one made to the new
+ * configuration the next time it asks.
+ *
+ * <P>
+ * External entities, notably the DTD, are resolved through a DtdCache so
+ * they are read once, not once per parse. Validation is done against that
+ * cache's compiled DtdGrammar after parsing, rather than by the
+ * DocumentBuilder itself, which would reload and recompile the DTD for every
+ * document.
+ *
+ * <P>
+ * Validation is on by default: a document that declares a DTD must be valid
+ * against it. A document without a DOCTYPE has nothing to be checked
+ * against, and is let through unless the pool is set to require one.
+ *
+ * @author Andrew Cowie
+ */
+public class ParserPool
+{
+    private static ParserPool defaultPool = null;
+
+    private final DocumentBuilderFactory _factory;
+
+    /*
+     * Bumped every time the configuration changes, so that threads can tell
+     * their DocumentBuilder is stale.
+     */
+    private volatile int _generation;
+
+    private final ThreadLocal<Pooled> _builders;
+
+    private final DtdCache _dtds;
+
+    private volatile boolean _validating;
+
+    private volatile boolean _requiringDoctype;
+
+    private static class Pooled
+    {
+        DocumentBuilder builder;
+
+        int generation;
+    }
+
+    /**
+     * Create a pool of non namespace aware parsers, which is how xseq has
+     * always parsed procedures. Documents which declare a DTD are validated
+     * against it.
+     */
+    public ParserPool() {
+        _factory = DocumentBuilderFactory.newInstance();
+        _factory.setValidating(false);
+        _factory.setNamespaceAware(false);
+
+        _builders = new ThreadLocal<Pooled>();
+        _dtds = new DtdCache();
+        _validating = true;
+    }
+
+    /**
+     * Get the pool used by XmlUtils.xmlStringToDOM(). Configure it before
+     * parsing if you need something other than the defaults.
+     */
+    public static synchronized ParserPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new ParserPool();
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Validate documents against their DTD after parsing them. On by
+     * default.
+     */
+    public void setValidating(boolean setting) {
+        _validating = setting;
+    }
+
+    /**
+     * When validating, reject documents that don't declare a DTD rather than
+     * letting them through unchecked. Off by default.
+     */
+    public void setRequiringDoctype(boolean setting) {
+        _requiringDoctype = setting;
+    }
+
+    public synchronized void setNamespaceAware(boolean setting) {
+        _factory.setNamespaceAware(setting);
+        _generation++;
+    }
+
+    public synchronized void setIgnoringComments(boolean setting) {
+        _factory.setIgnoringComments(setting);
+        _generation++;
+    }
+
+    /**
+     * Only has an effect when there is a DTD to say which whitespace is
+     * ignorable.
+     */
+    public synchronized void setIgnoringElementContentWhitespace(boolean setting) {
+        _factory.setIgnoringElementContentWhitespace(setting);
+        _generation++;
+    }
+
+    public synchronized void setCoalescing(boolean setting) {
+        _factory.setCoalescing(setting);
+        _generation++;
+    }
+
+    public synchronized void setExpandEntityReferences(boolean setting) {
+        _factory.setExpandEntityReferences(setting);
+        _generation++;
+    }
+
+    /**
+     * Set an underlying parser feature by URI, for example
+     * "http://apache.org/xml/features/nonvalidating/load-external-dtd".
+     *
+     * @throws IllegalArgumentException
+     *             if the parser doesn't support the feature.
+     */
+    public synchronized void setFeature(String name, boolean value) {
+        try {
+            _factory.setFeature(name, value);
+        } catch (ParserConfigurationException pce) {
+            throw new IllegalArgumentException("Parser doesn't support feature " + name);
+        }
+        _generation++;
+    }
+
+    public synchronized boolean getFeature(String name) {
+        try {
+            return _factory.getFeature(name);
+        } catch (ParserConfigurationException pce) {
+            throw new IllegalArgumentException("Parser doesn't support feature " + name);
+        }
+    }
+
+    public boolean isValidating() {
+        return _validating;
+    }
+
+    public boolean isRequiringDoctype() {
+        return _requiringDoctype;
+    }
+
+    /**
+     * Get the cache external entities are resolved through, for example to
+     * preload a DTD.
+     */
+    public DtdCache getDtdCache() {
+        return _dtds;
+    }
+
+    /**
+     * Get this thread's DocumentBuilder, reset and ready to use. Don't hand
+     * it to another thread, and don't hold on to it across calls to
+     * acquire().
+     */
+    public DocumentBuilder acquire() {
+        Pooled pooled = _builders.get();
+
+        if (pooled == null) {
+            pooled = new Pooled();
+            _builders.set(pooled);
+        } else if ((pooled.builder != null) && (pooled.generation == _generation)) {
+            pooled.builder.reset();
+            pooled.builder.setEntityResolver(_dtds);
+            return pooled.builder;
+        }
+
+        synchronized (this) {
+            try {
+                pooled.builder = _factory.newDocumentBuilder();
+            } catch (ParserConfigurationException pce) {
+                /*
+                 * Only possible if someone configured a combination of
+                 * features the parser can't do, and setFeature() should
+                 * already have caught that.
+                 */
+                throw new DebugException(pce);
+            }
+            pooled.generation = _generation;
+        }
+        pooled.builder.setEntityResolver(_dtds);
+        return pooled.builder;
+    }
+
+    /**
+     * Parse a document using this thread's DocumentBuilder.
+     *
+     * @throws IllegalArgumentException
+     *             if the source isn't well formed (or, when validating,
+     *             valid) XML, or if something it refers to (ie the DTD)
+     *             couldn't be read.
+     */
+    public Document parse(InputSource source) {
+        DocumentBuilder parser = acquire();
+        Document dom;
+
+        try {
+            dom = parser.parse(source);
+            if (_validating && (_requiringDoctype || (dom.getDoctype() != null))) {
+                validate(dom, source.getSystemId());
+            }
+            return dom;
+        } catch (SAXException se) {
+            /*
+             * If we hit this exception, it in all likelihood means we had a
+             * basic parsing error - which could well mean that the thing
+             * we're parsing isn't XML.
+             */
+            throw new IllegalArgumentException(se.getMessage());
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException("Couldn't read while parsing: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Validate an already parsed Document against the DTD named in its
+     * DOCTYPE.
+     *
+     * @param base
+     *            the system ID the document was parsed with, against which a
+     *            relative DTD system ID is resolved. Can be null.
+     * @throws IllegalArgumentException
+     *             if the document isn't valid.
+     */
+    public void validate(Document dom, String base) throws IOException {
+        DocumentType doctype = dom.getDoctype();
+
+        if ((doctype == null) || (doctype.getSystemId() == null)) {
+            throw new IllegalArgumentException("Can't validate a document that doesn't declare its DTD");
+        }
+
+        _dtds.getGrammar(DtdCache.absolute(base, doctype.getSystemId())).validate(dom);
+    }
+}
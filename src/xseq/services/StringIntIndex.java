@@ -0,0 +1,203 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+/**
+ * A map from String to (non-negative) int, stored as two flat arrays with
+ * open addressing and linear probing. This is what the various indexes use
+ * to go from an ID to a slot in their own dense arrays. Compared to a
+ * HashMap there is no Entry object and no boxed Integer per mapping, and the
+ * table is kept at most two thirds full, rather than being sized however
+ * the caller's load factor happened to say.
+ *
+ * <P>
+ * Mappings can be added and changed, but not removed, which is all an index
+ * needs. Not thread safe.
+ *
+ * @author Andrew Cowie
+ */
+public class StringIntIndex
+{
+    /*
+     * Approximate sizes on a 64 bit VM with compressed references, for
+     * getMemoryUsage().
+     */
+    static final int OBJECT_HEADER = 12;
+
+    static final int ARRAY_HEADER = 16;
+
+    static final int REFERENCE = 4;
+
+    private String[] keys;
+
+    private int[] values;
+
+    private int size;
+
+    private int mask;
+
+    /**
+     * @param expected
+     *            how many mappings are expected. The table will grow if more
+     *            are added, but won't have to if not.
+     */
+    public StringIntIndex(int expected) {
+        if (expected < 0) {
+            throw new IllegalArgumentException("Can't expect a negative number of entries");
+        }
+        int capacity = 8;
+        while (capacity * 2 < expected * 3) {
+            capacity *= 2;
+        }
+        keys = new String[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /*
+     * String caches its hashCode, so this is cheap. Mix the high bits down,
+     * as only the low ones are used to pick a slot.
+     */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Add a mapping, or change an existing one.
+     *
+     * @return the previous value for key, or -1 if there wasn't one.
+     */
+    public int put(String key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Values must be non-negative");
+        }
+        int i = hash(key) & mask;
+
+        while (keys[i] != null) {
+            if (keys[i].equals(key)) {
+                int previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        size++;
+
+        if (size * 3 > keys.length * 2) {
+            grow();
+        }
+        return -1;
+    }
+
+    private void grow() {
+        final String[] oldKeys = keys;
+        final int[] oldValues = values;
+        final int capacity = oldKeys.length * 2;
+
+        keys = new String[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null) {
+                continue;
+            }
+            int i = hash(oldKeys[j]) & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    /**
+     * @return the value for key, or -1 if there isn't one.
+     */
+    public int get(String key) {
+        int i = hash(key) & mask;
+
+        while (keys[i] != null) {
+            if (keys[i].equals(key)) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean containsKey(String key) {
+        return get(key) != -1;
+    }
+
+    /**
+     * @return the number of mappings.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots in the table.
+     */
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    /**
+     * Estimate how much heap this index takes, not counting the key Strings
+     * themselves (which are shared with the Elements' id attributes).
+     *
+     * @return an approximate number of bytes.
+     */
+    public long getMemoryUsage() {
+        return align(OBJECT_HEADER + 2 * REFERENCE + 2 * 4) + arrayBytes(keys.length, REFERENCE)
+                + arrayBytes(values.length, 4);
+    }
+
+    /*
+     * What a HashMap<String, Integer> created with the given initial
+     * capacity and load factor would take to hold the given number of
+     * entries, by the same reckoning; for comparison.
+     */
+    static long estimateHashMap(int entries, int initialCapacity, float loadFactor) {
+        long capacity = 1;
+        long wanted = Math.max(initialCapacity, (long) Math.ceil(entries / loadFactor));
+        while (capacity < wanted) {
+            capacity *= 2;
+        }
+        final long node = align(OBJECT_HEADER + 4 + 3 * REFERENCE);
+        final long integer = align(OBJECT_HEADER + 4);
+
+        return align(OBJECT_HEADER + 3 * 4 + 4 + 4 * REFERENCE) + align(ARRAY_HEADER + capacity * REFERENCE)
+                + entries * (node + integer);
+    }
+
+    static long arrayBytes(int length, int width) {
+        return align(ARRAY_HEADER + (long) length * width);
+    }
+
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
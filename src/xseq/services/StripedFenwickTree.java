@@ -0,0 +1,173 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A FenwickTree that can be used from several threads at once. The counters
+ * are split into contiguous stripes, each a FenwickTree of its own with its
+ * own lock, so changes to counters in different stripes don't contend.
+ *
+ * <P>
+ * A range sum takes the locks of the stripes it covers, always in
+ * ascending order, so it sees every stripe as it was at one moment even if
+ * counters are being changed as it runs; a sum over a range within one
+ * stripe takes just that one lock. The grand total is kept separately in an
+ * atomic, so reading it takes no lock at all.
+ *
+ * @author Andrew Cowie
+ */
+public class StripedFenwickTree
+{
+    private static final int DEFAULT_STRIPES = 16;
+
+    private final int size;
+
+    /*
+     * counters per stripe; the last stripe may have fewer.
+     */
+    private final int width;
+
+    private final FenwickTree[] stripes;
+
+    private final ReentrantLock[] locks;
+
+    private final AtomicInteger total;
+
+    /**
+     * Create a tree with the given initial counts, split into a default
+     * number of stripes.
+     */
+    public StripedFenwickTree(int[] counts) {
+        this(counts, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Create a tree with the given initial counts, split into at most
+     * numStripes stripes.
+     */
+    public StripedFenwickTree(int[] counts, int numStripes) {
+        if (numStripes < 1) {
+            throw new IllegalArgumentException("Need at least one stripe");
+        }
+        size = counts.length;
+        width = Math.max(1, (size + numStripes - 1) / numStripes);
+
+        final int num = (size + width - 1) / width;
+        int sum = 0;
+
+        stripes = new FenwickTree[num];
+        locks = new ReentrantLock[num];
+
+        for (int i = 0; i < num; i++) {
+            int start = i * width;
+            int len = Math.min(width, size - start);
+            int[] part = new int[len];
+
+            System.arraycopy(counts, start, part, 0, len);
+            for (int j = 0; j < len; j++) {
+                sum += part[j];
+            }
+            stripes[i] = new FenwickTree(part);
+            locks[i] = new ReentrantLock();
+        }
+        total = new AtomicInteger(sum);
+    }
+
+    /**
+     * @return the number of counters.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Change the counter at position by delta.
+     */
+    public void add(int position, int delta) {
+        if ((position < 0) || (position >= size)) {
+            throw new IndexOutOfBoundsException("position " + position);
+        }
+        final int i = position / width;
+
+        locks[i].lock();
+        try {
+            stripes[i].add(position - i * width, delta);
+            total.addAndGet(delta);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * @return the sum of all the counters.
+     */
+    public int total() {
+        return total.get();
+    }
+
+    /**
+     * @return the sum of the counters before end, ie from 0 up to but not
+     *         including end.
+     */
+    public int prefix(int end) {
+        return sum(0, end);
+    }
+
+    /**
+     * @return the sum of the counters from start up to but not including
+     *         end.
+     */
+    public int sum(int start, int end) {
+        if ((start < 0) || (end > size) || (start > end)) {
+            throw new IndexOutOfBoundsException("range " + start + " to " + end);
+        }
+        if (start == end) {
+            return 0;
+        }
+        if ((start == 0) && (end == size)) {
+            return total.get();
+        }
+
+        final int first = start / width;
+        final int last = (end - 1) / width;
+
+        for (int i = first; i <= last; i++) {
+            locks[i].lock();
+        }
+        try {
+            if (first == last) {
+                return stripes[first].sum(start - first * width, end - first * width);
+            }
+
+            int sum = stripes[first].sum(start - first * width, stripes[first].size());
+            for (int i = first + 1; i < last; i++) {
+                sum += stripes[i].prefix(stripes[i].size());
+            }
+            sum += stripes[last].prefix(end - last * width);
+            return sum;
+        } finally {
+            for (int i = last; i >= first; i--) {
+                locks[i].unlock();
+            }
+        }
+    }
+}
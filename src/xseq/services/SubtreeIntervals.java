@@ -0,0 +1,138 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.util.Arrays;
+
+import org.w3c.dom.Element;
+
+/**
+ * The extent of every Element's subtree, in terms of the pre-order ordinals
+ * the Annotator numbers Elements with. Because an Element is numbered before
+ * all of its descendants and they are numbered consecutively, the subtree
+ * of node is exactly the ordinals from node up to, but not including,
+ * getEnd(node). Whether one Element is inside another is then a pair of
+ * integer comparisons, and everything under an Element (all the tasks in a
+ * step, say) is a contiguous range.
+ *
+ * <P>
+ * Can be filled in by registering it with an Annotator, or computed from an
+ * array of parent links such as a ProcedureModel has.
+ *
+ * @author Andrew Cowie
+ */
+public class SubtreeIntervals implements DocumentVisitor
+{
+    private int[] _ends = null;
+
+    private int _size;
+
+    /**
+     * Construct an empty set of intervals, to be populated as an Annotator
+     * runs over a Document with this registered as one of its visitors.
+     */
+    public SubtreeIntervals() {
+        _ends = new int[64];
+    }
+
+    /**
+     * Compute the intervals from the parent of each node.
+     *
+     * @param parent
+     *            the parent ordinal of each node, or -1 for the root. Nodes
+     *            must be numbered in pre-order.
+     * @param size
+     *            the number of nodes.
+     */
+    public SubtreeIntervals(int[] parent, int size) {
+        _ends = new int[size];
+        _size = size;
+
+        for (int i = 0; i < size; i++) {
+            _ends[i] = i + 1;
+        }
+
+        /*
+         * Working backwards, each node's end is final before it is passed
+         * up to its parent.
+         */
+        for (int i = size - 1; i > 0; i--) {
+            int p = parent[i];
+            if (p == -1) {
+                continue;
+            }
+            if (p >= i) {
+                throw new IllegalArgumentException("Node " + i + " is numbered before its parent, " + p);
+            }
+            if (_ends[i] > _ends[p]) {
+                _ends[p] = _ends[i];
+            }
+        }
+    }
+
+    public void startElement(Element element, int ordinal) {
+        if (ordinal >= _ends.length) {
+            _ends = Arrays.copyOf(_ends, Math.max(_ends.length * 2, ordinal + 1));
+        }
+        _size = ordinal + 1;
+    }
+
+    public void endElement(Element element, int ordinal) {
+        /*
+         * Every descendant has been started by now, and nothing after.
+         */
+        _ends[ordinal] = _size;
+    }
+
+    /**
+     * @return the number of nodes.
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * @return the ordinal one past the last descendant of node.
+     */
+    public int getEnd(int node) {
+        return _ends[node];
+    }
+
+    /**
+     * @return how many nodes are in the subtree rooted at node, counting
+     *         node itself.
+     */
+    public int getExtent(int node) {
+        return _ends[node] - node;
+    }
+
+    /**
+     * @return true if node is ancestor, or is somewhere below it.
+     */
+    public boolean contains(int ancestor, int node) {
+        return (ancestor <= node) && (node < _ends[ancestor]);
+    }
+
+    /**
+     * @return true if ancestor is a proper ancestor of node.
+     */
+    public boolean isAncestor(int ancestor, int node) {
+        return (ancestor < node) && (node < _ends[ancestor]);
+    }
+}
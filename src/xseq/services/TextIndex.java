@@ -0,0 +1,342 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * An inverted index over the words in a document's text, from each word to
+ * the (ordinal numbers of the) Elements it appears in. Text is broken into
+ * words at anything that isn't a letter or digit, and case is ignored.
+ *
+ * <P>
+ * Each word's postings are a sorted int array, so a query is a merge of
+ * arrays rather than a scan of the text. Every word in a query has to
+ * match, and matches as a prefix, so "rest dat" finds "Restart the
+ * database". Text can be added at any time, in any order; the sorted
+ * dictionary that prefix matching needs is rebuilt on the next query after
+ * a new word comes in. Not thread safe, except as described at prepare().
+ *
+ * @author Andrew Cowie
+ */
+public class TextIndex
+{
+    private final StringIntIndex ids;
+
+    private String[] terms;
+
+    private int[][] postings;
+
+    private int[] lengths;
+
+    private int numTerms;
+
+    /*
+     * term ids ordered by term, for finding the terms with a given prefix;
+     * null if terms have been added since it was last sorted.
+     */
+    private int[] sorted;
+
+    public TextIndex() {
+        ids = new StringIntIndex(256);
+        terms = new String[256];
+        postings = new int[256][];
+        lengths = new int[256];
+    }
+
+    /**
+     * Break text into lower case words.
+     */
+    public static String[] tokenize(String text) {
+        String[] words = new String[8];
+        int num = 0;
+        int start = -1;
+        final int len = text.length();
+
+        for (int i = 0; i <= len; i++) {
+            boolean word = (i < len) && Character.isLetterOrDigit(text.charAt(i));
+
+            if (word && (start == -1)) {
+                start = i;
+            } else if (!word && (start != -1)) {
+                if (num == words.length) {
+                    words = Arrays.copyOf(words, num * 2);
+                }
+                words[num++] = text.substring(start, i).toLowerCase();
+                start = -1;
+            }
+        }
+        return Arrays.copyOf(words, num);
+    }
+
+    /**
+     * Index the words of some text as appearing in node. Adding the same
+     * word for the same node more than once is harmless.
+     */
+    public void add(int node, String text) {
+        if (node < 0) {
+            throw new IllegalArgumentException("Node numbers can't be negative");
+        }
+        if (text == null) {
+            return;
+        }
+        String[] words = tokenize(text);
+
+        for (int i = 0; i < words.length; i++) {
+            post(term(words[i]), node);
+        }
+    }
+
+    /*
+     * Look up a word's term id, adding it if it's new.
+     */
+    private int term(String word) {
+        int id = ids.get(word);
+        if (id != -1) {
+            return id;
+        }
+
+        if (numTerms == terms.length) {
+            terms = Arrays.copyOf(terms, numTerms * 2);
+            postings = Arrays.copyOf(postings, numTerms * 2);
+            lengths = Arrays.copyOf(lengths, numTerms * 2);
+        }
+        id = numTerms++;
+        terms[id] = word;
+        postings[id] = new int[2];
+        ids.put(word, id);
+        sorted = null;
+
+        return id;
+    }
+
+    /*
+     * Add node to a term's postings, keeping them sorted. Text almost always
+     * comes in document order, so this is almost always an append.
+     */
+    private void post(int id, int node) {
+        int[] list = postings[id];
+        int len = lengths[id];
+
+        if ((len > 0) && (list[len - 1] >= node)) {
+            int at = Arrays.binarySearch(list, 0, len, node);
+            if (at >= 0) {
+                return;
+            }
+            at = -(at + 1);
+            if (len == list.length) {
+                list = postings[id] = Arrays.copyOf(list, len * 2);
+            }
+            System.arraycopy(list, at, list, at + 1, len - at);
+            list[at] = node;
+        } else {
+            if (len == list.length) {
+                list = postings[id] = Arrays.copyOf(list, len * 2);
+            }
+            list[len] = node;
+        }
+        lengths[id] = len + 1;
+    }
+
+    /**
+     * Sort the dictionary now, rather than on the next query. Once this has
+     * been done, an index that won't have anything more added to it can be
+     * searched from any number of threads at once.
+     */
+    public void prepare() {
+        if (sorted == null) {
+            sortTerms();
+        }
+    }
+
+    /**
+     * @return how many distinct words have been indexed.
+     */
+    public int getTermCount() {
+        return numTerms;
+    }
+
+    /**
+     * Find the nodes whose text has, for every word in the query, a word
+     * starting with it.
+     *
+     * @return the matching nodes in document order; empty if there are none
+     *         or the query has no words in it.
+     */
+    public int[] search(String query) {
+        String[] words = tokenize(query);
+        if (words.length == 0) {
+            return new int[0];
+        }
+
+        int[] result = null;
+
+        for (int i = 0; i < words.length; i++) {
+            int[] matches = prefixed(words[i]);
+            result = (result == null) ? matches : intersect(result, matches);
+            if (result.length == 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * The nodes having any term that starts with prefix, in order.
+     */
+    private int[] prefixed(String prefix) {
+        prepare();
+
+        int low = 0;
+        int high = numTerms;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (terms[sorted[mid]].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        int end = low;
+        while ((end < numTerms) && terms[sorted[end]].startsWith(prefix)) {
+            end++;
+        }
+
+        if (end == low) {
+            return new int[0];
+        }
+        if (end - low == 1) {
+            int id = sorted[low];
+            return Arrays.copyOf(postings[id], lengths[id]);
+        }
+        return merge(low, end);
+    }
+
+    /*
+     * The union of the postings of the terms sorted[from] to sorted[to - 1],
+     * in one pass: a binary heap of the lists, ordered by each one's next
+     * node, gives the smallest node next each time. A short prefix can match
+     * thousands of terms, and merging them in pairs instead would copy the
+     * result so far once per term.
+     */
+    private int[] merge(int from, int to) {
+        final int[] heap = new int[to - from];
+        final int[] next = new int[to - from];
+        int num = 0;
+        int total = 0;
+
+        for (int i = from; i < to; i++) {
+            int id = sorted[i];
+            if (lengths[id] > 0) {
+                heap[num] = id;
+                next[num] = 0;
+                num++;
+                total += lengths[id];
+            }
+        }
+        for (int i = num / 2 - 1; i >= 0; i--) {
+            siftDown(heap, next, num, i);
+        }
+
+        final int[] result = new int[total];
+        int k = 0;
+
+        while (num > 0) {
+            int id = heap[0];
+            int node = postings[id][next[0]];
+
+            if ((k == 0) || (result[k - 1] != node)) {
+                result[k++] = node;
+            }
+
+            next[0]++;
+            if (next[0] == lengths[id]) {
+                num--;
+                if (num == 0) {
+                    break;
+                }
+                heap[0] = heap[num];
+                next[0] = next[num];
+            }
+            siftDown(heap, next, num, 0);
+        }
+        return Arrays.copyOf(result, k);
+    }
+
+    private void siftDown(int[] heap, int[] next, int num, int i) {
+        final int id = heap[i];
+        final int at = next[i];
+        final int node = postings[id][at];
+
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= num) {
+                break;
+            }
+            if ((child + 1 < num)
+                    && (postings[heap[child + 1]][next[child + 1]] < postings[heap[child]][next[child]])) {
+                child++;
+            }
+            if (postings[heap[child]][next[child]] >= node) {
+                break;
+            }
+            heap[i] = heap[child];
+            next[i] = next[child];
+            i = child;
+        }
+        heap[i] = id;
+        next[i] = at;
+    }
+
+    private void sortTerms() {
+        Integer[] order = new Integer[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return terms[a].compareTo(terms[b]);
+            }
+        });
+
+        sorted = new int[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            sorted[i] = order[i];
+        }
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, k = 0;
+
+        while ((i < a.length) && (j < b.length)) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[k++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, k);
+    }
+}
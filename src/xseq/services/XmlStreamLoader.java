@@ -0,0 +1,260 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Build a DOM Document from a stream of bytes using the StAX pull parser.
+ * Unlike {@link XmlUtils#xmlStringToDOM(String)} the source is never
+ * materialized as a String (let alone as a String and then a StringReader
+ * copy of it); the Document is grown node by node as events come off the
+ * stream, so the only thing held on the heap at the end is the tree itself.
+ *
+ * <P>
+ * The resulting Document is shaped the same way that the (non namespace
+ * aware) DocumentBuilder in XmlUtils shapes it: element and attribute names
+ * are the qualified names as written, and xmlns declarations show up as
+ * ordinary attributes. The differences are that no DocumentType node is
+ * created (the DOCTYPE declaration is skipped, not resolved), and that
+ * elements with a prefix bound to the procedures namespace are given their
+ * local name, so that they look the same as in an unprefixed procedure; see
+ * NamespaceScope.
+ *
+ * @author Andrew Cowie
+ */
+public class XmlStreamLoader
+{
+    /*
+     * XMLInputFactory is expensive to look up and configure, but is safe to
+     * share for creating readers once it has been configured.
+     */
+    private static XMLInputFactory factory = null;
+
+    private static synchronized XMLInputFactory getFactory() {
+        if (factory == null) {
+            factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        }
+        return factory;
+    }
+
+    /**
+     * Get a StAX reader over a stream, configured the same way as the one
+     * used by streamToDOM(). This is for loaders which want to consume the
+     * events themselves rather than have a DOM built.
+     */
+    public static XMLStreamReader createReader(InputStream in) throws XMLStreamException {
+        return getFactory().createXMLStreamReader(in);
+    }
+
+    /**
+     * Get a new, empty, DOM Document to build into.
+     */
+    public static Document newDocument() {
+        return ParserPool.getDefault().acquire().newDocument();
+    }
+
+    /**
+     * Parse an XML document from a stream into a DOM Document in a single
+     * pass. The stream is read to the end but not closed; that is the
+     * caller's business.
+     *
+     * @param in
+     *            the bytes of the XML document. Encoding is detected from the
+     *            XML declaration, as usual.
+     * @return the resulting Document.
+     * @throws IllegalArgumentException
+     *             if the stream doesn't contain well formed XML, in keeping
+     *             with what xmlStringToDOM() does.
+     */
+    public static Document streamToDOM(InputStream in) {
+        return streamToDOM(in, false);
+    }
+
+    /**
+     * Parse an XML document from a stream into a DOM Document, optionally
+     * normalizing its text as it goes.
+     * 
+     * @param normalize
+     *            if true, whitespace-only Text nodes (ie the indenting
+     *            between Elements) are never created, and the whitespace in
+     *            the remaining text is collapsed as XmlUtils.normalizeRun()
+     *            does. For a procedure this roughly halves the number of
+     *            nodes, and means task, title and precis text can be used
+     *            as is.
+     */
+    public static Document streamToDOM(InputStream in, boolean normalize) {
+        if (in == null) {
+            throw new NullPointerException("Why are you trying to create a model out of an empty source?");
+        }
+
+        Document dom = newDocument();
+        build(in, dom, null, normalize);
+        return dom;
+    }
+
+    /**
+     * Parse an XML document from a stream into an existing Element. The
+     * stream's root element stands for target: its attributes are assumed
+     * to be on target already, and its content is built as target's
+     * children. This is how a part of a procedure which was skipped over
+     * when it was first loaded gets filled in later.
+     * 
+     * @param normalize
+     *            as for streamToDOM().
+     * @throws IllegalArgumentException
+     *             if the stream doesn't contain well formed XML.
+     */
+    public static void streamInto(InputStream in, Element target, boolean normalize) {
+        if (in == null) {
+            throw new NullPointerException("Why are you trying to create a model out of an empty source?");
+        }
+        build(in, target.getOwnerDocument(), target, normalize);
+    }
+
+    /*
+     * If target is null, build from the root element down into dom itself.
+     * When normalizing, text is gathered in pending until the next bit of
+     * markup, as only then do we know if the run ends its Element.
+     */
+    private static void build(InputStream in, Document dom, Element target, boolean normalize) {
+        XMLStreamReader reader = null;
+        StringBuilder pending = null;
+        NamespaceScope scope = new NamespaceScope();
+        int depth = 0;
+
+        if (normalize) {
+            pending = new StringBuilder();
+        }
+
+        if (target != null) {
+            scope.declareFrom(target);
+        }
+
+        try {
+            reader = createReader(in);
+
+            Node current = dom;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (normalize && (pending.length() > 0) && (event != XMLStreamConstants.CHARACTERS)
+                        && (event != XMLStreamConstants.CDATA) && (event != XMLStreamConstants.SPACE)) {
+                    if (current != dom) {
+                        String text = XmlUtils.normalizeRun(pending.toString(), current.getLastChild() == null,
+                                event == XMLStreamConstants.END_ELEMENT);
+                        if (text != null) {
+                            current.appendChild(dom.createTextNode(text));
+                        }
+                    }
+                    pending.setLength(0);
+                }
+
+                switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if ((target != null) && (current == dom)) {
+                        current = target;
+                        break;
+                    }
+
+                    int num = reader.getAttributeCount();
+                    String[] names = new String[num];
+                    for (int i = 0; i < num; i++) {
+                        names[i] = NamespaceScope.qualify(reader.getAttributePrefix(i), reader.getAttributeLocalName(i));
+                        scope.declare(names[i], reader.getAttributeValue(i), depth);
+                    }
+
+                    Element element = dom.createElement(scope.unify(reader.getLocalName()));
+
+                    for (int i = 0; i < num; i++) {
+                        element.setAttribute(names[i], reader.getAttributeValue(i));
+                    }
+
+                    current.appendChild(element);
+                    current = element;
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    scope.close(depth);
+                    depth--;
+                    current = (current == target) ? dom : current.getParentNode();
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    /*
+                     * Whitespace outside the root element isn't allowed as a
+                     * child of a Document.
+                     */
+                    if (normalize) {
+                        pending.append(reader.getText());
+                    } else if (current != dom) {
+                        current.appendChild(dom.createTextNode(reader.getText()));
+                    }
+                    break;
+
+                case XMLStreamConstants.COMMENT:
+                    if ((target == null) || (current != dom)) {
+                        current.appendChild(dom.createComment(reader.getText()));
+                    }
+                    break;
+
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    if ((target == null) || (current != dom)) {
+                        current.appendChild(dom.createProcessingInstruction(reader.getPITarget(),
+                                reader.getPIData()));
+                    }
+                    break;
+
+                default:
+                    // DTD, START_DOCUMENT, END_DOCUMENT: nothing to build.
+                }
+            }
+        } catch (XMLStreamException xse) {
+            /*
+             * As with the SAXException in xmlStringToDOM(), this almost
+             * certainly means that what we're parsing isn't well formed XML.
+             */
+            throw new IllegalArgumentException(xse.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException xse) {
+                    // nothing more we can do about it
+                }
+            }
+        }
+    }
+}
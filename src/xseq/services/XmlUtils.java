@@ -29,9 +29,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringReader;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -44,7 +41,6 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import com.darwinsys.RomanNumberFormat;
 
@@ -73,6 +69,9 @@ public class XmlUtils
      * @param xml
      *            A single String object containing the XML document to be
      *            loaded and transformed into a Model
+     * @throws IllegalArgumentException
+     *             if the String isn't well formed XML. The parser used is
+     *             this thread's one from the default ParserPool.
      */
     public static Document xmlStringToDOM(String xml) {
         if (xml == null) {
@@ -90,48 +89,13 @@ public class XmlUtils
          * significant makeover once we make this thing installable.
          * 
          * Or could use System property "user.dir"
-         * 
-         * STUPIDITY WARNING - there is no reason (other than thread safety,
-         * which is an accidental consequence) to instantiate and configure
-         * the parser *every* bloody time this is called. If it ends up
-         * getting called a lot, then abstract out the parser setup to
-         * somewhere else.
          */
 
         File cwd = new File("");
 
         source.setSystemId("file://" + cwd.getAbsolutePath() + "/");
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setValidating(false); // FIXME
-
-        DocumentBuilder parser = null;
-        Document dom = null;
 
-        try {
-            parser = factory.newDocumentBuilder();
-        } catch (ParserConfigurationException pce) {
-            // TODO - be nicer, but if the parser can't initialize, then
-            // that's
-            // just plain bad, so stop.
-            pce.printStackTrace();
-            System.exit(1);
-        }
-
-        try {
-            dom = parser.parse(source);
-        } catch (SAXException se) {
-            /*
-             * If we hit this exception, it in all likelihood means we had a
-             * basic parsing error - which could well mean that the thing
-             * we're parsing isn't XML.
-             */
-            throw new IllegalArgumentException(se.getMessage());
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-            // TODO and do ... what?
-        }
-
-        return dom;
+        return ParserPool.getDefault().parse(source);
     }
 
     /**
@@ -171,22 +135,53 @@ public class XmlUtils
      * adds (updates) an ID attribute called "id".
      * 
      * <P>
-     * For now the value is a simple sequence.
+     * For now the value is a simple sequence. If you're going to do anything
+     * else with the Document, you're better off registering your passes with
+     * an Annotator and having it add the IDs as part of the same traversal.
      * 
      * @param doc
      *            The DOM Document to which IDs are added
      */
     public static void addIDs(Document doc) {
-        // * means all elements
-        NodeList nodelist = doc.getElementsByTagName("*");
+        /*
+         * No locking needed: the Annotator keeps all its state in the
+         * instance, so any number of threads can be adding IDs to different
+         * Documents. A Document itself mustn't be changed by two threads at
+         * once, this included; Procedure queues up State changes made on
+         * other threads and writes them into its DOM under its own lock.
+         */
+        Annotator annotator = new Annotator();
+        annotator.run(doc);
+    }
 
-        // does this need to be thread protected?
+    /**
+     * Recognize an ID of the form "n" + ordinal, as assigned by addIDs() and
+     * the Annotator, and recover the ordinal, without allocating. Leading
+     * zeros are refused, so that only the String the Annotator would have
+     * written for that ordinal is accepted; an author supplied "n007" is just
+     * an ID like any other.
+     *
+     * @return the ordinal, or -1 if the ID isn't a generated one.
+     */
+    public static int parseId(String id) {
+        final int len = id.length();
 
-        for (int i = 0; i < nodelist.getLength(); i++) {
-            Element element = (Element) nodelist.item(i);
+        if ((len < 2) || (len > 10) || (id.charAt(0) != 'n')) {
+            return -1;
+        }
+        if ((id.charAt(1) == '0') && (len > 2)) {
+            return -1;
+        }
 
-            element.setAttribute("id", "n" + i);
+        int ordinal = 0;
+        for (int i = 1; i < len; i++) {
+            char ch = id.charAt(i);
+            if ((ch < '0') || (ch > '9')) {
+                return -1;
+            }
+            ordinal = ordinal * 10 + (ch - '0');
         }
+        return ordinal;
     }
 
     /**
@@ -337,6 +332,114 @@ public class XmlUtils
         return str;
     }
 
+    /**
+     * Collapse the whitespace in a run of text the way a browser would:
+     * leading and trailing whitespace removed, and any run of spaces, tabs
+     * and newlines inside replaced by a single space.
+     * 
+     * @return the normalized text, which will be "" if str was nothing but
+     *         whitespace.
+     */
+    public static String normalizeText(String str) {
+        final int len = str.length();
+        StringBuilder buf = null;
+        boolean space = false;
+        int start = -1;
+
+        for (int i = 0; i < len; i++) {
+            char ch = str.charAt(i);
+            if ((ch == ' ') || (ch == '\t') || (ch == '\n') || (ch == '\r')) {
+                space = true;
+                continue;
+            }
+            if (start == -1) {
+                start = i;
+                buf = new StringBuilder(len - i);
+            } else if (space) {
+                buf.append(' ');
+            }
+            space = false;
+            buf.append(ch);
+        }
+
+        if (buf == null) {
+            return "";
+        }
+        if ((start == 0) && (buf.length() == len)) {
+            // nothing changed, so don't make a copy
+            return str;
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Normalize one run of text in an Element's content. As with
+     * normalizeText(), inner whitespace is collapsed to a single space; but
+     * leading and trailing whitespace is only removed where the run starts
+     * or ends its Element, so that "a <b>bold</b> move" keeps its spaces.
+     *
+     * @param first
+     *            whether the run is the first thing in its Element.
+     * @param last
+     *            whether the run is the last thing in its Element.
+     * @return the normalized run, or null if it was nothing but whitespace
+     *         and so should be dropped.
+     */
+    public static String normalizeRun(String str, boolean first, boolean last) {
+        String text = normalizeText(str);
+
+        if (text.length() == 0) {
+            return null;
+        }
+        if (text == str) {
+            return str;
+        }
+        if (!first && isSpace(str.charAt(0))) {
+            text = " " + text;
+        }
+        if (!last && isSpace(str.charAt(str.length() - 1))) {
+            text = text + " ";
+        }
+        return text;
+    }
+
+    private static boolean isSpace(char ch) {
+        return (ch == ' ') || (ch == '\t') || (ch == '\n') || (ch == '\r');
+    }
+
+    /**
+     * Remove whitespace-only Text nodes from a DOM tree, and normalize the
+     * rest with normalizeRun(). This gives the same tree as loading with
+     * XmlStreamLoader's normalizing mode, for Documents that were built some
+     * other way.
+     */
+    public static void stripWhitespace(Node node) {
+        Node child, next;
+
+        node.normalize();
+
+        for (child = node.getFirstChild(); child != null; child = next) {
+            next = child.getNextSibling();
+
+            switch (child.getNodeType()) {
+            case Node.TEXT_NODE:
+                String text = normalizeRun(child.getNodeValue(), child.getPreviousSibling() == null,
+                        next == null);
+                if (text == null) {
+                    node.removeChild(child);
+                } else {
+                    child.setNodeValue(text);
+                }
+                break;
+            case Node.ELEMENT_NODE:
+                stripWhitespace(child);
+                break;
+            default:
+                // leave comments and processing instructions be
+            }
+        }
+    }
+
     /**
      * Move up the DOM tree and return the parent Element of the given
      * argument. This is essentially a convenience Element-only wrapper around
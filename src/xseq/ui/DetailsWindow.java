@@ -24,15 +24,19 @@ import generic.util.DebugException;
 import java.io.FileNotFoundException;
 
 import org.gnome.gdk.Event;
+import org.gnome.gdk.EventButton;
+import org.gnome.gdk.MouseButton;
 import org.gnome.glade.Glade;
 import org.gnome.glade.XML;
+import org.gnome.gtk.Entry;
+import org.gnome.gtk.ErrorMessageDialog;
 import org.gnome.gtk.Label;
 import org.gnome.gtk.TextBuffer;
 import org.gnome.gtk.TextIter;
-import org.gnome.gtk.TextMark;
 import org.gnome.gtk.TextTag;
 import org.gnome.gtk.TextTagTable;
 import org.gnome.gtk.TextView;
+import org.gnome.gtk.TextWindowType;
 import org.gnome.gtk.ToggleToolButton;
 import org.gnome.gtk.ToolButton;
 import org.gnome.gtk.Widget;
@@ -40,14 +44,15 @@ import org.gnome.gtk.Window;
 import org.gnome.pango.Scale;
 import org.gnome.pango.Underline;
 import org.gnome.pango.Weight;
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import xseq.client.ProcedureClient;
 import xseq.domain.Procedure;
+import xseq.domain.ProcedureModel;
+import xseq.domain.ProcedureOutline;
 import xseq.domain.State;
-import xseq.services.TextMarkIndex;
+import xseq.services.OffsetIndex;
 import xseq.services.XmlUtils;
 
 /**
@@ -76,11 +81,16 @@ public class DetailsWindow
 
     ToolButton next_toolbutton = null;
 
+    Entry search_entry = null;
+
     // the StateButtons, in particular, need to be accessible from outside
     StateButtons stateButtons = null;
 
+    private Procedure procedure = null;
+
     // holds a TextBuffer for each of the Sections in the document;
-    // we switch between them as we navigate.
+    // we switch between them as we navigate. Each is only built when its
+    // section is first shown or changed, so null until then.
     private TextBuffer[] buffers = null;
 
     private String[] titles = null;
@@ -94,13 +104,15 @@ public class DetailsWindow
     // we reuse the same tag (markup) table for each TextBuffer.
     private TextTagTable table = null;
 
-    private TextMarkIndex sectionMarkIndex = null;
+    // where each step, name and task is in the buffers, by node number.
+    private OffsetIndex offsets = null;
 
-    private TextMarkIndex stepMarkIndex = null;
+    // the IDs found by the last search, and which of them is showing.
+    private String lastQuery = null;
 
-    private TextMarkIndex nameMarkIndex = null;
+    private String[] matches = null;
 
-    private TextMarkIndex taskMarkIndex = null;
+    private int match;
 
     /**
      * The glade code to instantiate the Gtk window and attach basic handlers.
@@ -136,12 +148,27 @@ public class DetailsWindow
          * never.
          */
         section_textview = (TextView) glade.getWidget("section_textview");
+        section_textview.connect(new Widget.ButtonReleaseEvent() {
+            public boolean onButtonReleaseEvent(Widget source, EventButton event) {
+                if (event.getButton() == MouseButton.LEFT) {
+                    selectAt((int) event.getX(), (int) event.getY());
+                }
+                return false;
+            }
+        });
 
         section_label = (Label) glade.getWidget("currentsectiontitle_label");
         prev_toolbutton = (ToolButton) glade.getWidget("prev_toolbutton");
         current_toolbutton = (ToolButton) glade.getWidget("current_toolbutton");
         next_toolbutton = (ToolButton) glade.getWidget("next_toolbutton");
 
+        search_entry = (Entry) glade.getWidget("search_entry");
+        search_entry.connect(new Entry.Activate() {
+            public void onActivate(Entry source) {
+                showNextMatch();
+            }
+        });
+
         /*
          * Following the recommended optimization, create a TextTagTable for
          * use in the TextBuffers we will create later. First up are the tags
@@ -221,10 +248,12 @@ public class DetailsWindow
     public DetailsWindow(Procedure p) {
         this();
 
-        Document dom = p.getDOM();
+        procedure = p;
 
-        NodeList sections = dom.getElementsByTagName("section");
-        numSections = sections.getLength();
+        ProcedureModel model = p.getModel();
+        ProcedureOutline outline = p.getOutline();
+
+        numSections = outline.getSectionCount();
 
         if (numSections == 0) {
             throw new DebugException(
@@ -232,22 +261,20 @@ public class DetailsWindow
         }
 
         /*
-         * Initialize the TextMark indecies. They are populated in
-         * sectionToBuffer().
+         * Initialize the offset index. It is populated in sectionToBuffer().
+         * It's sized from the model, as the DOM of a lazily loaded procedure
+         * won't have the Elements yet.
          */
-        sectionMarkIndex = new TextMarkIndex(dom, "section");
-        stepMarkIndex = new TextMarkIndex(dom, "step");
-        nameMarkIndex = new TextMarkIndex(dom, "name");
-        taskMarkIndex = new TextMarkIndex(dom, "task");
+        offsets = new OffsetIndex(model.getSize(), numSections);
 
         /*
          * The entire UI strategy here revolves around turning <section>
          * elements into TextView widgets. We will display these UI element;
          * one at a time, paging between sections.
          * 
-         * FUTURE the section # -> mark indexes allowing us to find a buffer
-         * to know if we need to [re] construct one on update, but for now
-         * <procedures> are static once loaded.
+         * The TextBuffers themselves are built on demand by getBuffer(), so
+         * that opening a huge procedure doesn't mean rendering (or, if it was
+         * loaded lazily, parsing) every section before the window appears.
          * 
          * FUTURE If we ever support dynamic procedure changes, then we'll
          * need to convert this from an array to some sort of dynamic
@@ -257,10 +284,9 @@ public class DetailsWindow
         titles = new String[numSections];
 
         for (int i = 0; i < numSections; i++) {
-            Element section = (Element) sections.item(i);
+            int section = outline.getSectionNode(i);
 
-            titles[i] = section.getAttribute("num") + ". " + section.getAttribute("title");
-            buffers[i] = sectionToBuffer(section);
+            titles[i] = model.getNum(section) + ". " + outline.getTitle(section);
         }
         /*
          * And start up at the first section.
@@ -284,9 +310,10 @@ public class DetailsWindow
     /**
      * Given a <section>Element, generate the underlying data structures which
      * presents the details of the <steps>in that <section>. In addition to
-     * the TextBuffer which backs the TextView, TextMarks are created for each
-     * element and are added to an index for later use in controlling the
-     * markup in the display of the section.
+     * the TextBuffer which backs the TextView, the character offsets of each
+     * element are added to an index for later use in controlling the markup
+     * in the display of the section. The buffer is never edited, so the
+     * offsets stay put without needing a TextMark for each element.
      * 
      * @return a TextBuffer containing the UI for the section that was
      *         processed.
@@ -294,6 +321,9 @@ public class DetailsWindow
     public TextBuffer sectionToBuffer(Element section) {
         TextBuffer buf = new TextBuffer(table);
         TextIter iter = buf.getIterStart();
+        ProcedureModel model = procedure.getModel();
+        ProcedureOutline outline = procedure.getOutline();
+        int index = outline.getSectionIndex(model.toNode(section.getAttribute("id")));
 
         /*
          * Run through the <step> <name> <task> element groups and call the
@@ -313,10 +343,10 @@ public class DetailsWindow
             Element step = (Element) steps.item(i);
             String stepId = step.getAttribute("id");
 
-            TextMark stepStartMark = buf.createMark(iter, true);
+            int stepStart = iter.getOffset();
             // the third argument, a String, refers to a TextTag to apply
             buf.insert(iter, step.getAttribute("num") + ". ", tags.step);
-            buf.insert(iter, step.getAttribute("title") + "\n", tags.step);
+            buf.insert(iter, outline.getTitle(model.toNode(stepId)) + "\n", tags.step);
 
             NodeList names = step.getElementsByTagName("name");
             int num_names = names.getLength();
@@ -325,7 +355,7 @@ public class DetailsWindow
                 Element name = (Element) names.item(j);
                 String nameId = name.getAttribute("id");
 
-                TextMark nameStartMark = buf.createMark(iter, true);
+                int nameStart = iter.getOffset();
                 buf.insert(iter, name.getAttribute("who") + "\n", tags.name);
 
                 NodeList tasks = name.getElementsByTagName("task");
@@ -335,25 +365,80 @@ public class DetailsWindow
                     Element task = (Element) tasks.item(k);
                     String taskId = task.getAttribute("id");
 
-                    TextMark taskStartMark = buf.createMark(iter, true);
+                    int taskStart = iter.getOffset();
                     buf.insert(iter, task.getAttribute("num") + ". ", tags.taskNum);
-                    buf.insert(iter, XmlUtils.getElementText(task).replace("\n \t", " ") + "\n",
-                            tags.task);
-                    TextMark taskEndMark = buf.createMark(iter, true);
+                    buf.insert(iter, taskText(task) + "\n", tags.task);
 
-                    taskMarkIndex.addMarks(taskId, taskStartMark, taskEndMark);
+                    offsets.add(model.toNode(taskId), index, taskStart, iter.getOffset());
                 }
-                TextMark nameEndMark = buf.createMark(iter, true);
-                nameMarkIndex.addMarks(nameId, nameStartMark, nameEndMark);
+                offsets.add(model.toNode(nameId), index, nameStart, iter.getOffset());
             }
-            TextMark stepEndMark = buf.createMark(iter, true);
-            stepMarkIndex.addMarks(stepId, stepStartMark, stepEndMark);
+            offsets.add(model.toNode(stepId), index, stepStart, iter.getOffset());
+
+            /*
+             * The buffer isn't in buffers[] until we return, so tag the step
+             * as upcoming directly rather than through showStepAsUpcoming().
+             * Tagging invalidates iterators, so carry on from a fresh one.
+             */
+            buf.applyTag(tags.upcomingStep, buf.getIter(stepStart), iter);
+            iter = buf.getIterEnd();
+        }
+        return buf;
+    }
+
+    /*
+     * The text of a task, ready to display. If the procedure was loaded
+     * normalized that's just what's in the DOM.
+     */
+    private String taskText(Element task) {
+        if (procedure.isNormalized()) {
+            return task.getTextContent();
+        }
+        return XmlUtils.normalizeText(XmlUtils.getElementText(task));
+    }
 
-            showStepAsUpcoming(stepId);
+    /*
+     * Get the TextBuffer for a section, building it if this is the first
+     * time it has been needed. If the procedure was loaded lazily this is
+     * where the section gets parsed, and so where we find out it is broken;
+     * tell the user, and show them a page saying so rather than nothing.
+     */
+    private TextBuffer getBuffer(int index) {
+        if (buffers[index] == null) {
+            String sectionId = ProcedureModel.toId(procedure.getOutline().getSectionNode(index));
+            try {
+                buffers[index] = sectionToBuffer(procedure.getSection(sectionId));
+            } catch (IllegalArgumentException iae) {
+                Debug.print("main", "Couldn't render " + sectionId + ": " + iae.getMessage());
+                buffers[index] = unreadableBuffer(iae.getMessage());
+
+                ErrorMessageDialog error = new ErrorMessageDialog(top, "Unable to show section "
+                        + titles[index], iae.getMessage());
+                error.run();
+                error.hide();
+            }
         }
+        return buffers[index];
+    }
+
+    private TextBuffer unreadableBuffer(String message) {
+        TextBuffer buf = new TextBuffer(table);
+        buf.insert(buf.getIterStart(), "This section couldn't be read:\n\n" + message + "\n");
         return buf;
     }
 
+    /*
+     * Make sure the section containing an element has been rendered, so that
+     * its marks are in the indexes.
+     */
+    private void ensureRendered(int node) {
+        ProcedureModel model = procedure.getModel();
+        int section = (model.getTag(node) == ProcedureModel.SECTION) ? node : model.getAncestor(node,
+                ProcedureModel.SECTION);
+
+        getBuffer(procedure.getOutline().getSectionIndex(section));
+    }
+
     /**
      * This method, like all the activate{Prev,Next} methods, are the
      * callbacks invoked by the clicked handlers (as spec'd in the .glade
@@ -436,13 +521,94 @@ public class DetailsWindow
          * Now, do the UI alterations. First, bring up the appropriate
          * TextBuffer, then set the title.
          */
-        section_textview.setBuffer(buffers[index]);
+        section_textview.setBuffer(getBuffer(index));
         section_textview.showAll();
 
         section_label.setLabel("<span size=\"xx-large\">" + titles[index] + "</span>");
         currentSection = index;
     }
 
+    /*
+     * Jump to the next element matching what's in the search entry. A new
+     * query starts from its first match; pressing Enter again on the same
+     * one moves on through the rest, wrapping around at the end.
+     */
+    private void showNextMatch() {
+        String query = search_entry.getText();
+
+        if (!query.equals(lastQuery)) {
+            lastQuery = query;
+            matches = procedure.search(query);
+            match = -1;
+        }
+        if (matches.length == 0) {
+            return;
+        }
+        match = (match + 1) % matches.length;
+        showMatch(matches[match]);
+    }
+
+    /*
+     * Bring up the section an element is in, and scroll to and select its
+     * text. A section (or the procedure itself) is shown from the top.
+     */
+    private void showMatch(String id) {
+        ProcedureModel model = procedure.getModel();
+        int node = model.toNode(id);
+
+        switch (model.getTag(node)) {
+        case ProcedureModel.PROCEDURE:
+            ProcedureClient.ui.activateSection(0);
+            return;
+        case ProcedureModel.STEP:
+        case ProcedureModel.NAME:
+        case ProcedureModel.TASK:
+            break;
+        default:
+            ProcedureClient.ui.activateSection(id);
+            section_textview.scrollToIter(section_textview.getBuffer().getIterStart(), 0.0);
+            return;
+        }
+
+        ProcedureClient.ui.activateSection(id);
+        if (!offsets.contains(node)) {
+            return;
+        }
+
+        /*
+         * Scroll to the insert mark the buffer already has, rather than
+         * making one of our own.
+         */
+        TextBuffer buf = buffers[offsets.getBuffer(node)];
+        buf.selectRange(buf.getIter(offsets.getStart(node)), buf.getIter(offsets.getEnd(node)));
+        section_textview.scrollToMark(buf.getInsert(), 0.0, 0.0, 0.3);
+    }
+
+    /*
+     * Select the innermost step, name or task under a click. The default
+     * handler has already put the cursor there by the time the button comes
+     * back up, so the selection isn't undone. Leave a selection the user
+     * dragged out alone.
+     */
+    private void selectAt(int x, int y) {
+        TextBuffer buf = buffers[currentSection];
+
+        if ((buf == null) || buf.getHasSelection()) {
+            return;
+        }
+        int bufferX = section_textview.convertWindowToBufferCoordsX(TextWindowType.TEXT, x);
+        int bufferY = section_textview.convertWindowToBufferCoordsY(TextWindowType.TEXT, y);
+        TextIter iter = section_textview.getIterAtLocation(bufferX, bufferY);
+
+        int node = offsets.find(currentSection, iter.getOffset());
+        if (node == -1) {
+            return;
+        }
+        Debug.print("events", "clicked on " + ProcedureModel.toId(node));
+
+        buf.selectRange(buf.getIter(offsets.getStart(node)), buf.getIter(offsets.getEnd(node)));
+    }
+
     /**
      * As the last thing before main runs, we ask to grab focus. Called by
      * whatever runner. HACK. Does it even work?
@@ -482,15 +648,33 @@ public class DetailsWindow
      *            which <task>to change, by XML ID.
      */
     public void showTaskAsUpcoming(String taskId) {
-        showAs(taskId, taskMarkIndex, null, tags.upcomingTask);
+        showTaskAsUpcoming(node(taskId));
     }
 
     public void showTaskAsCurrent(String taskId) {
-        showAs(taskId, taskMarkIndex, tags.upcomingTask, tags.currentTask);
+        showTaskAsCurrent(node(taskId));
     }
 
     public void showTaskAsDone(String taskId) {
-        showAs(taskId, taskMarkIndex, tags.currentTask, tags.doneTask);
+        showTaskAsDone(node(taskId));
+    }
+
+    /**
+     * Set the display of a task to upcoming, current, or done
+     * 
+     * @param task
+     *            which <task>to change, by node number.
+     */
+    public void showTaskAsUpcoming(int task) {
+        showAs(task, null, tags.upcomingTask);
+    }
+
+    public void showTaskAsCurrent(int task) {
+        showAs(task, tags.upcomingTask, tags.currentTask);
+    }
+
+    public void showTaskAsDone(int task) {
+        showAs(task, tags.currentTask, tags.doneTask);
     }
 
     /**
@@ -500,15 +684,38 @@ public class DetailsWindow
      *            the <step>to show as [state]
      */
     public void showStepAsUpcoming(String stepId) {
-        showAs(stepId, stepMarkIndex, null, tags.upcomingStep);
+        showStepAsUpcoming(node(stepId));
     }
 
     public void showStepAsCurrent(String stepId) {
-        showAs(stepId, stepMarkIndex, tags.upcomingStep, tags.currentStep);
+        showStepAsCurrent(node(stepId));
     }
 
     public void showStepAsDone(String stepId) {
-        showAs(stepId, stepMarkIndex, tags.currentStep, tags.doneStep);
+        showStepAsDone(node(stepId));
+    }
+
+    public void showStepAsUpcoming(int step) {
+        showAs(step, null, tags.upcomingStep);
+    }
+
+    public void showStepAsCurrent(int step) {
+        showAs(step, tags.upcomingStep, tags.currentStep);
+    }
+
+    public void showStepAsDone(int step) {
+        showAs(step, tags.currentStep, tags.doneStep);
+    }
+
+    /*
+     * Look up the node number for an ID.
+     */
+    private int node(String id) {
+        int node = procedure.getModel().toNode(id);
+        if (node == -1) {
+            throw new DebugException("Asked to show " + id + ", which isn't there");
+        }
+        return node;
     }
 
     /**
@@ -516,8 +723,8 @@ public class DetailsWindow
      * list the tag name you want removed, and the tag you want to apply in
      * its place.
      * 
-     * @param id
-     *            which element block to change, by XML ID.
+     * @param node
+     *            which element block to change, by node number.
      * @param tagRemove
      *            the TextTag formatting to apply (the name given when the tag
      *            was created). Use null if you just want to add a tag.
@@ -525,34 +732,25 @@ public class DetailsWindow
      *            the TextTag formatting to apply (the name given when the tag
      *            was created). Use null if you just want to remove a tag.
      */
-    private void showAs(String id, TextMarkIndex markIndex, TextTag tagRemove, TextTag tagAdd) {
+    private void showAs(int node, TextTag tagRemove, TextTag tagAdd) {
         /*
-         * Mark can tell us what buffer it is in, so if we replaced the index
-         * use with this:
+         * By going through the index we aren't reliant on currentSection,
+         * and as a result could mark an arbitrary section as done, which we
+         * will need in order to process incoming events from other people.
          */
-        // TextMark startMark = _buffers[_currentSection].getMark(stepId +
-        // "start");
-        // TextIter startIter = _buffers[_currentSection].getIter(startMark);
-        /*
-         * then we could go directly. However, by going through the index we
-         * aren't reliant on _currentSection, and as a result could mark an
-         * arbitrary section as done, which we will need in order to process
-         * incoming events from other people.
-         */
-
-        TextBuffer buf;
-        TextMark startMark, endMark;
-
-        startMark = markIndex.getStartMarkById(id);
-        buf = startMark.getBuffer();
+        if (!offsets.contains(node)) {
+            ensureRendered(node);
+        }
 
-        endMark = markIndex.getEndMarkById(id);
+        TextBuffer buf = buffers[offsets.getBuffer(node)];
+        TextIter start = buf.getIter(offsets.getStart(node));
+        TextIter end = buf.getIter(offsets.getEnd(node));
 
         if (tagRemove != null) {
-            buf.removeTag(tagRemove, startMark.getIter(), endMark.getIter());
+            buf.removeTag(tagRemove, start, end);
         }
         if (tagAdd != null) {
-            buf.applyTag(tagAdd, startMark.getIter(), endMark.getIter());
+            buf.applyTag(tagAdd, start, end);
         }
     }
 
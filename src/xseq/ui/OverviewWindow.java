@@ -37,13 +37,12 @@ import org.gnome.gtk.TreeView;
 import org.gnome.gtk.TreeViewColumn;
 import org.gnome.gtk.Widget;
 import org.gnome.gtk.Window;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import xseq.client.ProcedureClient;
 import xseq.domain.Procedure;
+import xseq.domain.ProcedureModel;
+import xseq.domain.ProcedureOutline;
+import xseq.domain.Progress;
 import xseq.services.XmlUtils;
 
 /**
@@ -71,6 +70,15 @@ public class OverviewWindow
 
     private int _numSections;
 
+    private DataColumnString progress_DataColumn;
+
+    /*
+     * The row for each section, so its progress can be updated in place.
+     */
+    private TreeIter[] rows = null;
+
+    private Procedure procedure = null;
+
     /*
      * The entire program has only one procedure open at a time. [FUTURE Maybe
      * not? - This should be a member of the (a?) MasterWindow if more than
@@ -96,9 +104,10 @@ public class OverviewWindow
          * Setup the underlying TreeModel
          */
         summary_DataColumn = new DataColumnString();
+        progress_DataColumn = new DataColumnString();
 
         sectionModel = new ListStore(new DataColumn[] {
-            summary_DataColumn
+                summary_DataColumn, progress_DataColumn
         });
     }
 
@@ -111,7 +120,7 @@ public class OverviewWindow
      */
     public OverviewWindow(Procedure p) {
         this();
-        createSectionModel(p.getDOM());
+        createSectionModel(p);
 
         /**
          * The glade code to instantiate the Gtk window and attach basic
@@ -149,16 +158,23 @@ public class OverviewWindow
         view.setModel(sectionModel);
 
         TreeViewColumn viewColumn0 = view.appendColumn();
+        TreeViewColumn viewColumn1 = view.appendColumn();
         sectionTreeViewColumns = new TreeViewColumn[] {
-            viewColumn0
+                viewColumn0, viewColumn1
         };
         // Nastiest API since EJB
         viewColumn0.setClickable(true);
         viewColumn0.setResizable(true);
         viewColumn0.setReorderable(false);
+        viewColumn0.setExpand(true);
         CellRendererText renderer0 = new CellRendererText(viewColumn0);
         renderer0.setMarkup(summary_DataColumn);
 
+        viewColumn1.setResizable(false);
+        viewColumn1.setReorderable(false);
+        CellRendererText renderer1 = new CellRendererText(viewColumn1);
+        renderer1.setMarkup(progress_DataColumn);
+
         view.setRulesHint(true);
         view.setEnableSearch(true);
         // this is the one that prevents the thing
@@ -181,6 +197,7 @@ public class OverviewWindow
 
         top.resize(1, 400);
         top.move(10, 5);
+        showOverallProgress();
 
         /*
          * And start up at the first section.
@@ -198,106 +215,115 @@ public class OverviewWindow
     }
 
     /**
-     * Given a DOM Document of our procedure, iterate through and instanitate
-     * the data backends that will be used by the OverviewWindow.
+     * Given our procedure, iterate through and instanitate the data backends
+     * that will be used by the OverviewWindow.
      * 
      * <P>
      * The OverviewWindow is essentially a condensed summation of <section>and
      * <step>Elements. So we get the <sections>, and then iterate through them
      * to get the groups of steps, which we combine into a fancy Pango markup
-     * label and stick it into the Model cell.
+     * label and stick it into the Model cell. All of this comes from the
+     * Procedure's outline, so no section's DOM needs to be built (or, if it
+     * was loaded lazily, parsed) to show this window.
      */
-    void createSectionModel(Document dom) {
+    void createSectionModel(Procedure p) {
+        ProcedureModel model = p.getModel();
+        ProcedureOutline outline = p.getOutline();
+
+        procedure = p;
 
         /*
-         * Get the section elements and walk through them
+         * Get the sections and walk through them
          */
 
-        NodeList sections = dom.getElementsByTagName("section");
-        _numSections = sections.getLength();
+        _numSections = outline.getSectionCount();
+        rows = new TreeIter[_numSections];
 
         for (int i = 0; i < _numSections; i++) {
-            Element section = (Element) sections.item(i);
-
-            String summary = sectionToPango(section);
+            String summary = sectionToPango(model, outline, i, p.isNormalized());
 
             TreeIter iter = sectionModel.appendRow();
             sectionModel.setValue(iter, summary_DataColumn, summary);
+            rows[i] = iter;
+            showSectionProgress(i);
+        }
+    }
+
+    /**
+     * Update the progress shown for the section containing a task (and for
+     * the procedure as a whole), as after it has been done. The counts come
+     * from the Procedure's Progress, so nothing is rescanned.
+     */
+    public void showProgress(String taskId) {
+        int node = procedure.getModel().toNode(taskId);
+        if (node == -1) {
+            throw new DebugException("Asked to show progress for " + taskId + ", which isn't there");
         }
+        showProgress(node);
     }
 
     /**
-     * Given a <section>Element, generate the Label which summarizes the
+     * As showProgress(String), with the task by node number.
+     */
+    public void showProgress(int node) {
+        ProcedureModel model = procedure.getModel();
+        int which = model.getOrdinals().rank(ProcedureModel.SECTION, node);
+        if (which != -1) {
+            showSectionProgress(which);
+        }
+        showOverallProgress();
+    }
+
+    private void showSectionProgress(int which) {
+        Progress progress = procedure.getProgress();
+        int section = procedure.getOutline().getSectionNode(which);
+        int done = progress.getDoneCount(section);
+        int total = progress.getTaskCount(section);
+
+        sectionModel.setValue(rows[which], progress_DataColumn, "<big>" + Progress.toPercent(done, total)
+                + "%</big>\n<small>" + done + "/" + total + "</small>");
+    }
+
+    private void showOverallProgress() {
+        Progress progress = procedure.getProgress();
+
+        top.setTitle("Section Overview - " + Progress.toPercent(progress.getDoneCount(), progress.getTaskCount())
+                + "% complete");
+    }
+
+    /**
+     * Given a section (by index), generate the Label which summarizes the
      * details of the <steps>in that <section>. There is Pango Markup here!!!
-     * 
-     * HARDCODE This is really tightly tied to the procedure DTD, getting
-     * titles from attributes, etc.
+     * If the procedure was loaded normalized, the precis is used as is.
      */
-    private static String sectionToPango(Element section) {
+    private static String sectionToPango(ProcedureModel model, ProcedureOutline outline, int which,
+            boolean normalized) {
         StringBuffer text = new StringBuffer();
+        int section = outline.getSectionNode(which);
 
         /*
          * First the title.
          */
         text.append("<big>");
-        text.append(section.getAttribute("num"));
+        text.append(model.getNum(section));
         text.append(". ");
-        text.append(section.getAttribute("title"));
+        text.append(outline.getTitle(section));
         text.append("</big>\n");
 
         /*
          * Now the precis
          */
 
-        // If a <precis> is present in a <section>, it has to be first by the
-        // current DTD. Yes, this is clumsy.
-        NodeList precisList = section.getElementsByTagName("precis");
+        String str = outline.getPrecis(which);
 
-        if (precisList.getLength() == 1) {
-            Node precis = precisList.item(0);
-            precis.normalize();
+        if ((str != null) && !normalized) {
+            str = XmlUtils.normalizeText(str);
+        }
 
+        if ((str != null) && (str.length() > 0)) {
             text.append("<i>");
-            // TODO this is probably not sufficient if there are any child
-            // nodes
-            // besides the text node
-            Node child = precis.getFirstChild();
-
-            if (child.getNodeType() != Node.TEXT_NODE) {
-                throw new DebugException("FIXME Not a Text Node");
-            }
-
-            String str = precis.getFirstChild().getNodeValue();
-            if (str == null) {
-                throw new DebugException("FIXME The Text Node was empty. (isn't that allowed?)");
-            }
-
-            /*
-             * Clean up the node. TODO, generalize this; we'll need it again.
-             */
 
             StringBuffer buf = new StringBuffer(str);
-            int index;
-            while ((index = buf.indexOf("\n")) != -1) {
-                buf.setCharAt(index, ' ');
-            }
-            while ((index = buf.indexOf("\t")) != -1) {
-                buf.setCharAt(index, ' ');
-            }
-            /*
-             * trim. Yes, I know about String.trim(), but we've already done
-             * half the work it does; no need to be inefficient.
-             */
-            while (buf.charAt(0) == ' ') {
-                buf.deleteCharAt(0);
-            }
-            while (buf.charAt(buf.length() - 1) == ' ') {
-                buf.deleteCharAt(buf.length() - 1);
-            }
-
-            while ((index = buf.indexOf("  ")) != -1) {
-                buf.deleteCharAt(index);
-            }
 
             /*
              * Word wrap. Unfortunately, Pango markup has no syntax for
@@ -326,17 +352,14 @@ public class OverviewWindow
          * Now the text of the step titles.
          */
 
-        NodeList steps = section.getElementsByTagName("step");
-        int num_steps = steps.getLength();
-
-        for (int i = 0; i < num_steps; i++) {
-            Element step = (Element) steps.item(i);
+        for (int step = model.getFirstChild(section); step != -1; step = model.getNextSibling(step)) {
+            if (model.getTag(step) != ProcedureModel.STEP) {
+                continue;
+            }
             text.append("\t"); // or some such spacer.
-            text.append(step.getAttribute("num"));
+            text.append(model.getNum(step));
             text.append(". ");
-            NodeList titles = step.getElementsByTagName("title");
-            Element title = (Element) titles.item(0);
-            text.append(XmlUtils.getElementText(title).trim());
+            text.append(outline.getTitle(step));
             text.append("\n");
         }
 
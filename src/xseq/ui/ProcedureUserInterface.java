@@ -19,14 +19,16 @@
 package xseq.ui;
 
 import generic.util.Debug;
+import generic.util.DebugException;
 
+import org.gnome.gdk.Gdk;
 import org.gnome.gtk.Gtk;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 import xseq.domain.Procedure;
+import xseq.domain.ProcedureModel;
 import xseq.domain.State;
+import xseq.engine.ProcedureListener;
+import xseq.engine.ProcedureRun;
 
 /**
  * This is just an expedient holding ground for app specific global UI code.
@@ -52,13 +54,15 @@ public class ProcedureUserInterface
     // displaying.
     public Procedure _procedure;
 
-    public String _currentStepId;
+    // the run of _procedure, which keeps track of the current step and of
+    // who is on what task; this UI is one of its listeners.
+    public ProcedureRun _run;
 
     // which participant am I?
     private String _whoAmI;
 
-    // used when I have a current task.
-    private String _myCurrentTaskId;
+    // used when I have a current task; -1 otherwise.
+    private int _myCurrentTask;
 
     private int _myCurrentState;
 
@@ -71,13 +75,10 @@ public class ProcedureUserInterface
     public ProcedureUserInterface(Procedure p) {
         this._procedure = p;
 
-        Document dom = p.getDOM();
-        NodeList sections = dom.getElementsByTagName("section");
         _currentSection = 0;
-        _numSections = sections.getLength();
+        _numSections = p.getModel().count(ProcedureModel.SECTION);
 
-        _currentStepId = null;
-        _myCurrentTaskId = null;
+        _myCurrentTask = -1;
         _myCurrentState = -1;
 
         _overview = new OverviewWindow(p);
@@ -85,6 +86,68 @@ public class ProcedureUserInterface
         _quick = new QuickButtonsWindow();
 
         _details.initialGrabFocus();
+
+        /*
+         * The run tells its listeners about changes on whatever thread made
+         * them, which for tasks done by other participants is the network
+         * thread, not the one running the GTK main loop. So each of these
+         * takes the GDK lock (which the main loop holds while dispatching
+         * signals) before touching any widgets, or the fields that
+         * the signal handlers also use.
+         */
+        _run = new ProcedureRun(p.getOutline().getTitle(0), p);
+        _run.addListener(new ProcedureListener() {
+            public void stepStarted(ProcedureRun run, int step) {
+                synchronized (Gdk.lock) {
+                    _details.showStepAsCurrent(step);
+                }
+            }
+
+            public void taskStarted(ProcedureRun run, int task, String who) {
+                if (who.equals(_whoAmI)) {
+                    synchronized (Gdk.lock) {
+                        startMyTask(task);
+                    }
+                }
+            }
+
+            public void taskDone(ProcedureRun run, int task) {
+                synchronized (Gdk.lock) {
+                    // in case it was mine...
+                    if (task == _myCurrentTask) {
+                        _myCurrentTask = -1;
+                    }
+                    _details.showTaskAsDone(task);
+                    _overview.showProgress(task);
+                }
+            }
+
+            public void stepDone(ProcedureRun run, int step) {
+                synchronized (Gdk.lock) {
+                    _details.showStepAsDone(step);
+                    setButtonState(State.STANDBY);
+                }
+            }
+
+            public void sectionDone(ProcedureRun run, int section) {
+                if (run.isFinished()) {
+                    return;
+                }
+                /*
+                 * The run has already moved on to the next step, so that the
+                 * logic controlling the CurrentStep buttons (which relies on
+                 * the current step) will work as we cross section
+                 * boundaries. This seems silly, but it's necessary to get to
+                 * the current section page before advancing one.
+                 */
+                synchronized (Gdk.lock) {
+                    activateSectionOf(section);
+                    activateNextSection();
+                }
+            }
+
+            public void procedureDone(ProcedureRun run) {}
+        });
     }
 
     /**
@@ -101,20 +164,11 @@ public class ProcedureUserInterface
          * This is repeatitive - we end up doing almost the same code again
          * below.
          */
-        if (_currentStepId == null) {
+        int step = _run.getCurrentStep();
+        if (step == -1) {
             _currentSection = 0;
         } else {
-            String currentSectionId = _procedure.getParentId(_currentStepId, "section");
-
-            Document dom = _procedure.getDOM();
-            NodeList sections = dom.getElementsByTagName("section");
-
-            for (int i = 0; i < _numSections; i++) {
-                Element section = (Element) sections.item(i);
-                if (section.getAttribute("id").equals(currentSectionId)) {
-                    _currentSection = i;
-                }
-            }
+            _currentSection = sectionOf(step);
         }
         activateSection();
     }
@@ -133,19 +187,27 @@ public class ProcedureUserInterface
      * Display the section that contains (is) a specified ID
      */
     public void activateSection(String id) {
-        String sectionId = _procedure.getParentId(id, "section");
-
-        Document dom = _procedure.getDOM();
-        NodeList sections = dom.getElementsByTagName("section");
-        for (int i = 0; i < _numSections; i++) {
-            Element section = (Element) sections.item(i);
-            if (section.getAttribute("id").equals(sectionId)) {
-                activateSection(i);
-                return;
-            }
+        int node = _procedure.getModel().toNode(id);
+        if (node != -1) {
+            activateSectionOf(node);
         }
     }
 
+    private void activateSectionOf(int node) {
+        int i = sectionOf(node);
+        if (i != -1) {
+            activateSection(i);
+        }
+    }
+
+    /*
+     * Which section (counting from 0) the given node is, or is in; -1 if
+     * neither.
+     */
+    private int sectionOf(int node) {
+        return _procedure.getModel().getOrdinals().rank(ProcedureModel.SECTION, node);
+    }
+
     /**
      * Activate what is set in _currentSection.
      */
@@ -163,19 +225,14 @@ public class ProcedureUserInterface
         }
 
         boolean isCurrentStepInSection = false;
+        int step = _run.getCurrentStep();
 
-        if (_currentStepId == null) {
+        if (step == -1) {
             if (_currentSection == 0) {
                 isCurrentStepInSection = true;
             }
         } else {
-            String currentSectionId = _procedure.getParentId(_currentStepId, "section");
-
-            Document dom = _procedure.getDOM();
-            NodeList sections = dom.getElementsByTagName("section");
-
-            Element section = (Element) sections.item(_currentSection);
-            if (section.getAttribute("id").equals(currentSectionId)) {
+            if (sectionOf(step) == _currentSection) {
                 isCurrentStepInSection = true;
             }
         }
@@ -223,10 +280,9 @@ public class ProcedureUserInterface
              * _currentTaskId being set as the marker that it actually needs
              * action.
              */
-            if ((state == State.DONE) && (_myCurrentTaskId != null)) {
-                Debug.print("events", "further, ui decided to call setTaskAsDone(" + _myCurrentTaskId
-                        + ")");
-                setTaskAsDone(_myCurrentTaskId);
+            if ((state == State.DONE) && (_myCurrentTask != -1)) {
+                Debug.print("events", "further, ui decided to call setTaskAsDone(" + _myCurrentTask + ")");
+                setTaskAsDone(_myCurrentTask);
             }
         } else {
             Debug.print("events", "No action needed");
@@ -258,12 +314,9 @@ public class ProcedureUserInterface
         activateSection(0);
 
         /*
-         * Set first <step> as current.
+         * Set first <step> as current; the run tells us which it is.
          */
-        String firstTaskId = _procedure.getFirstTaskId("n0");
-        String firstStepId = _procedure.getParentId(firstTaskId, "step");
-
-        startStep(firstStepId);
+        _run.start();
     }
 
     /**
@@ -273,23 +326,7 @@ public class ProcedureUserInterface
      * TODO stop timers
      */
     public void stopProcedure() {
-        _currentStepId = null;
-    }
-
-    /**
-     * Assumed that the step is not already marked done...
-     * 
-     * @param stepId
-     *            the id of the step to show as current.
-     */
-    private void startStep(String stepId) {
-        _currentStepId = stepId;
-        _details.showStepAsCurrent(stepId);
-
-        String taskId = _procedure.getFirstTaskId(stepId, _whoAmI);
-        if (taskId != null) {
-            startMyTask(taskId);
-        }
+        _run.stop();
     }
 
     /**
@@ -299,8 +336,12 @@ public class ProcedureUserInterface
      *            a task ID string, assumed to belong to _who.
      */
     public void startMyTask(String taskId) {
-        _myCurrentTaskId = taskId;
-        _details.showTaskAsCurrent(taskId);
+        startMyTask(node(taskId));
+    }
+
+    public void startMyTask(int task) {
+        _myCurrentTask = task;
+        _details.showTaskAsCurrent(task);
         _details.top.present();
         setButtonState(State.WORKING);
     }
@@ -320,70 +361,31 @@ public class ProcedureUserInterface
      *            The task which is to be set as done.
      */
     public void setTaskAsDone(String taskId) {
-        Document doc = _procedure.getDOM();
-
-        // in case it was mine...
-        if (_procedure.isTaskMine(taskId, _whoAmI)) {
-            _myCurrentTaskId = null;
-        }
-
-        /*
-         * Update the DOM tree; conveniently returns the next Task in line (or
-         * null) the consequences of which we deal with below.
-         */
-        String nextTaskId = _procedure.setTaskAsDone(taskId);
-
-        /*
-         * Update the UI for this task
-         */
-        _details.showTaskAsDone(taskId);
+        setTaskAsDone(node(taskId));
+    }
 
+    /**
+     * As setTaskAsDone(String), by node number. IDs are only turned into
+     * node numbers at the edges (the network, and the DOM); from here on
+     * everything is done in terms of ints.
+     */
+    public void setTaskAsDone(int task) {
         /*
-         * Start working through what else has to change as a consequence of
-         * this task being done.
+         * The run updates the Procedure and works out what comes next; the
+         * displays are brought up to date as it tells us about it.
          */
-        if (nextTaskId == null) {
-            // this is functionally equivalent to calling isNameDone(). Do we
-            // need to call that anyway?
-
-            if (_procedure.isStepDone(taskId)) {
-                String stepId = _procedure.getParentId(taskId, "step");
-                _details.showStepAsDone(stepId);
-                setButtonState(State.STANDBY);
-
-                /*
-                 * Fire up the next step
-                 */
-                String nextStepId = _procedure.getNextStepId(stepId);
-                if (nextStepId == null) {
-                    if (_procedure.isProcedureDone(taskId)) {
-                        stopProcedure();
-                        return;
-                    }
-                } else {
-                    startStep(nextStepId);
-                }
-
-                /*
-                 * taskId is still the old, just completed one - this is
-                 * backwards here so that the logic controlling the
-                 * CurrentStep buttons (which relies on currentStepId) will
-                 * work as we cross section boundaries.
-                 */
-
-                if (_procedure.isSectionDone(taskId)) {
-                    // This seems silly, but it's necessary to get to the
-                    // current section page before advancing one.
-                    activateSection(taskId);
-                    activateNextSection();
-                }
-            }
+        _run.setTaskAsDone(task);
+    }
 
-        } else {
-            if (_procedure.isTaskMine(nextTaskId, _whoAmI)) {
-                startMyTask(nextTaskId);
-            }
+    /*
+     * Look up the node number for an ID coming in from outside.
+     */
+    private int node(String id) {
+        int node = _procedure.getModel().toNode(id);
+        if (node == -1) {
+            throw new DebugException("Asked about " + id + ", which isn't in this procedure");
         }
+        return node;
     }
 
     /**
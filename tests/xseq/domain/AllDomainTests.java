@@ -38,6 +38,13 @@ public class AllDomainTests
         TestSuite suite = new TestSuite("Test for xseq.domain");
         // $JUnit-BEGIN$
         suite.addTestSuite(ProcedureTest.class);
+        suite.addTestSuite(ProcedureModelTest.class);
+        suite.addTestSuite(ProcedureCodecTest.class);
+        suite.addTestSuite(LazyProcedureTest.class);
+        suite.addTestSuite(ProcedureLibraryTest.class);
+        suite.addTestSuite(ProcedureOutlineTest.class);
+        suite.addTestSuite(StateVectorTest.class);
+        suite.addTestSuite(ProcedureTemplateTest.class);
         // $JUnit-END$
         return suite;
     }
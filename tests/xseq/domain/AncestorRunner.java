@@ -0,0 +1,166 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.w3c.dom.Element;
+
+import xseq.services.XmlUtils;
+
+/**
+ * Compare the three ways of finding the enclosing section, step, etc of a
+ * task: walking up the DOM comparing tag names, as XmlUtils does; walking up
+ * the ProcedureModel's parent links; and reading the model's ancestor table.
+ * Timings are rough (a warm up pass, then the best of several), which is
+ * good enough to see orders of magnitude. Not a unit test, so it is named
+ * ...Runner.
+ *
+ * @author Andrew Cowie
+ */
+public class AncestorRunner
+{
+    private static final byte[] CODES = new byte[] {
+            ProcedureModel.PROCEDURE, ProcedureModel.SECTION, ProcedureModel.STEP, ProcedureModel.NAME
+    };
+
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws UnsupportedEncodingException {
+        int sections = 200;
+        if (args.length > 0) {
+            sections = Integer.parseInt(args[0]);
+        }
+
+        Procedure p = Procedure.load(new ByteArrayInputStream(generate(sections).getBytes("UTF-8")));
+        ProcedureModel model = p.getModel();
+
+        int num = model.count(ProcedureModel.TASK);
+        int[] tasks = new int[num];
+        Element[] elements = new Element[num];
+        for (int i = 0, j = 0; i < model.getSize(); i++) {
+            if (model.getTag(i) == ProcedureModel.TASK) {
+                tasks[j] = i;
+                elements[j] = p.getElement(i);
+                j++;
+            }
+        }
+
+        System.out.println(model.getSize() + " elements, " + num + " tasks, " + CODES.length
+                + " ancestors each");
+
+        long dom = Long.MAX_VALUE;
+        long walk = Long.MAX_VALUE;
+        long table = Long.MAX_VALUE;
+        long check = 0;
+
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            check += byDocument(elements);
+            long t1 = System.nanoTime();
+            check += byWalking(model, tasks);
+            long t2 = System.nanoTime();
+            check += byTable(model, tasks);
+            long t3 = System.nanoTime();
+
+            if (round == 0) {
+                // warm up
+                continue;
+            }
+            dom = Math.min(dom, t1 - start);
+            walk = Math.min(walk, t2 - t1);
+            table = Math.min(table, t3 - t2);
+        }
+
+        long queries = (long) num * CODES.length;
+        report("DOM walk", dom, queries);
+        report("parent links", walk, queries);
+        report("ancestor table", table, queries);
+
+        // so the work can't be optimized away
+        System.out.println("(" + check + ")");
+    }
+
+    private static void report(String what, long nanos, long queries) {
+        System.out.println(what + ": " + (nanos / 1000) + " us, " + (nanos / queries) + " ns per lookup");
+    }
+
+    private static long byDocument(Element[] elements) {
+        long sum = 0;
+        for (int i = 0; i < elements.length; i++) {
+            for (int j = 0; j < CODES.length; j++) {
+                Element parent = XmlUtils.getParentElement(elements[i], ProcedureModel.tagNames[CODES[j]]);
+                sum += parent.getAttribute("id").length();
+            }
+        }
+        return sum;
+    }
+
+    /*
+     * What ProcedureModel.getAncestor() used to do.
+     */
+    private static long byWalking(ProcedureModel model, int[] tasks) {
+        long sum = 0;
+        for (int i = 0; i < tasks.length; i++) {
+            for (int j = 0; j < CODES.length; j++) {
+                int candidate = model.getParent(tasks[i]);
+                while (model.getTag(candidate) != CODES[j]) {
+                    candidate = model.getParent(candidate);
+                }
+                sum += candidate;
+            }
+        }
+        return sum;
+    }
+
+    private static long byTable(ProcedureModel model, int[] tasks) {
+        long sum = 0;
+        for (int i = 0; i < tasks.length; i++) {
+            for (int j = 0; j < CODES.length; j++) {
+                sum += model.getAncestor(tasks[i], CODES[j]);
+            }
+        }
+        return sum;
+    }
+
+    private static String generate(int sections) {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("<procedure>\n<title>Benchmark</title>\n");
+        for (int s = 0; s < sections; s++) {
+            buf.append("  <section>\n    <title>Section</title>\n");
+            for (int t = 0; t < 10; t++) {
+                buf.append("    <step>\n      <title>Step</title>\n");
+                for (int n = 0; n < 2; n++) {
+                    buf.append("      <name who=\"person").append(n).append("\">\n");
+                    for (int k = 0; k < 5; k++) {
+                        buf.append("        <task>Do something</task>\n");
+                    }
+                    buf.append("      </name>\n");
+                }
+                buf.append("    </step>\n");
+            }
+            buf.append("  </section>\n");
+        }
+        buf.append("</procedure>\n");
+
+        return buf.toString();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Load a procedure lazily and make sure that what comes out, section by
+ * section, is the same as loading it all at once.
+ * 
+ * @author Andrew Cowie
+ */
+public class LazyProcedureTest extends TestCase
+{
+    String xml = null;
+
+    Procedure eager = null;
+
+    Procedure lazy = null;
+
+    public void setUp() throws UnsupportedEncodingException {
+        xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!DOCTYPE procedure SYSTEM \"xml/procedure.dtd\" [ <!-- not > really --> ]>\n"
+                + "<procedure>\n" + "  <title>Fish &amp; Chips</title>\n" + "  <!-- a comment -->\n"
+                + "  <section title=\"Préparation\">\n" + "    <precis>Get\n  ready</precis>\n"
+                + "    <step title=\"One\"><name who=\"joe\"><task>Blah</task>"
+                + "<task status=\"done\">Fee &lt;fi&gt;</task></name></step>\n"
+                + "    <step><title>Two</title><name who=\"fred\"><task><![CDATA[x < y]]></task></name></step>\n"
+                + "  </section>\n" + "  <section>\n" + "    <title>Cooking</title>\n"
+                + "    <step title=\"Three\"><name who=\"joe\"><task>Fry</task><task>Serve</task></name>"
+                + "<name who=\"fred\"><task>Eat</task></name></step>\n" + "  </section>\n" + "</procedure>\n";
+
+        eager = Procedure.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        lazy = Procedure.loadLazily(ByteBuffer.wrap(xml.getBytes("UTF-8")));
+    }
+
+    public void testSameModel() {
+        ProcedureModel e = eager.getModel();
+        ProcedureModel l = lazy.getModel();
+
+        assertEquals(e.getSize(), l.getSize());
+        for (int i = 0; i < e.getSize(); i++) {
+            assertEquals(e.getTag(i), l.getTag(i));
+            assertEquals(e.getParent(i), l.getParent(i));
+            assertEquals(e.getNextSibling(i), l.getNextSibling(i));
+            assertEquals(e.getNum(i), l.getNum(i));
+            assertEquals(e.getStatus(i), l.getStatus(i));
+            assertEquals(e.getWho(i), l.getWho(i));
+        }
+    }
+
+    public void testOutline() {
+        ProcedureOutline outline = lazy.getOutline();
+
+        assertEquals(2, outline.getSectionCount());
+        assertEquals("Fish & Chips", outline.getTitle(0));
+
+        int first = outline.getSectionNode(0);
+        int second = outline.getSectionNode(1);
+        assertEquals("Préparation", outline.getTitle(first));
+        assertEquals("Cooking", outline.getTitle(second));
+        assertEquals("Get\n  ready", outline.getPrecis(0));
+        assertNull(outline.getPrecis(1));
+
+        ProcedureOutline expected = eager.getOutline();
+        for (int i = 0; i < eager.getModel().getSize(); i++) {
+            assertEquals(expected.getTitle(i), outline.getTitle(i));
+        }
+        assertEquals("Two", outline.getTitle(lazy.getModel().toNode(lazy.getNextStepId("n4"))));
+    }
+
+    public void testNothingBuiltUntilAsked() {
+        String first = ProcedureModel.toId(lazy.getOutline().getSectionNode(0));
+        String second = ProcedureModel.toId(lazy.getOutline().getSectionNode(1));
+
+        assertTrue(lazy.isLazy());
+        assertFalse(lazy.isMaterialized(first));
+        assertFalse(lazy.isMaterialized(second));
+
+        /*
+         * Navigation works off the model, and global step numbering is
+         * already right.
+         */
+        String step = lazy.getNextStepId(lazy.getNextStepId("n4"));
+        assertEquals("3", lazy.getModel().getNum(lazy.getModel().toNode(step)));
+        assertFalse(lazy.isMaterialized(second));
+
+        Element section = lazy.getSection(second);
+        assertTrue(lazy.isMaterialized(second));
+        assertFalse(lazy.isMaterialized(first));
+        assertEquals("II", section.getAttribute("num"));
+        assertEquals(1, section.getElementsByTagName("step").getLength());
+    }
+
+    public void testSameElements() {
+        for (int i = 0; i < eager.getModel().getSize(); i++) {
+            Element e = eager.getElement(i);
+            Element l = lazy.getElement(i);
+
+            assertEquals(e.getTagName(), l.getTagName());
+            assertEquals(e.getAttribute("id"), l.getAttribute("id"));
+            assertEquals(e.getAttribute("num"), l.getAttribute("num"));
+            assertEquals(e.getAttribute("status"), l.getAttribute("status"));
+            if (e.getTagName().equals("task")) {
+                assertEquals(e.getTextContent(), l.getTextContent());
+            }
+        }
+    }
+
+    public void testNormalized() throws UnsupportedEncodingException {
+        Procedure e = Procedure.load(new ByteArrayInputStream(xml.getBytes("UTF-8")), true);
+        Procedure l = Procedure.loadLazily(ByteBuffer.wrap(xml.getBytes("UTF-8")), true);
+
+        assertTrue(e.isNormalized());
+        assertTrue(l.isNormalized());
+        assertFalse(lazy.isNormalized());
+
+        assertEquals(eager.getModel().getSize(), e.getModel().getSize());
+        assertEquals("Get ready", e.getOutline().getPrecis(0));
+        assertEquals("Get ready", l.getOutline().getPrecis(0));
+
+        /*
+         * Backwards, so all the sections are built by the time we compare
+         * the text of the whole procedure.
+         */
+        for (int i = e.getModel().getSize() - 1; i >= 0; i--) {
+            Element ee = e.getElement(i);
+            Element le = l.getElement(i);
+            assertEquals(ee.getTextContent(), le.getTextContent());
+
+            for (Node child = le.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.TEXT_NODE) {
+                    assertTrue(child.getNodeValue().trim().length() > 0);
+                }
+            }
+        }
+    }
+
+    public void testStateBeforeBuilt() {
+        String task = lazy.getFirstTaskId(ProcedureModel.toId(lazy.getOutline().getSectionNode(1)));
+        lazy.setTaskAsDone(task);
+        assertTrue(lazy.isTaskDone(task));
+
+        Element element = lazy.getElement(lazy.getModel().toNode(task));
+        assertEquals("done", element.getAttribute("status"));
+    }
+
+    /*
+     * Node numbers: 0 procedure, 2 and 12 sections, 5 and 15 joe, 10 and 18
+     * fred, 16 "Fry", 11 "x < y".
+     */
+    public void testSearch() {
+        String second = ProcedureModel.toId(lazy.getOutline().getSectionNode(1));
+
+        assertFalse(lazy.isMaterialized(second));
+        assertEquals(Arrays.asList(new String[] {
+                "n16"
+        }), Arrays.asList(lazy.search("fry")));
+        assertTrue(lazy.isMaterialized(second));
+
+        String[] queries = new String[] {
+                "fry", "JOE", "chips fish", "prép", "get", "f", "x y", "", "  ", "nothing", "cook"
+        };
+
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(queries[i], Arrays.asList(eager.search(queries[i])), Arrays.asList(lazy
+                    .search(queries[i])));
+        }
+
+        assertEquals(Arrays.asList(new String[] {
+                "n5", "n15"
+        }), Arrays.asList(eager.search("JOE")));
+        assertEquals(Arrays.asList(new String[] {
+                "n0", "n7", "n10", "n16", "n18"
+        }), Arrays.asList(eager.search("f")));
+        assertEquals(Arrays.asList(new String[] {
+                "n2"
+        }), Arrays.asList(eager.search("prép get")));
+        assertEquals(Arrays.asList(new String[] {
+                "n11"
+        }), Arrays.asList(eager.search("x y")));
+        assertEquals(0, eager.search("fry joe").length);
+    }
+
+    /*
+     * Nothing inside a literal, comment, or PI in the internal subset may be
+     * taken for the end of the DOCTYPE. (The JDK's StAX reader, with DTD
+     * support off as XmlStreamLoader has it, gets every one of these wrong,
+     * so there's no eager Procedure to compare against.)
+     */
+    public void testDoctypeSubset() throws UnsupportedEncodingException {
+        final String body = "<procedure><title>T</title><section><title>S</title><step><title>One</title>"
+                + "<name who=\"joe\"><task>Blah</task></name></step></section></procedure>";
+        String[] subsets = new String[] {
+                "<!ENTITY note \"a ] > b\">",
+                "<!-- don't ] > stop here --><!ELEMENT title (#PCDATA)>",
+                "<?pi ] > ?><!ATTLIST task note CDATA 'x]>y'>",
+                "<!ENTITY a 'it\"s'> <!-- \" --> <!ENTITY b \"]]>\">",
+        };
+
+        for (int i = 0; i < subsets.length; i++) {
+            String doc = "<!DOCTYPE procedure [ " + subsets[i] + " ]>\n" + body;
+            Procedure p = Procedure.loadLazily(ByteBuffer.wrap(doc.getBytes("UTF-8")));
+
+            assertEquals(doc, 8, p.getModel().getSize());
+            assertEquals(doc, ProcedureModel.SECTION, p.getModel().getTag(2));
+            assertEquals(doc, "S", p.getOutline().getTitle(2));
+            assertEquals(doc, "Blah", p.getElement(7).getTextContent());
+        }
+
+        try {
+            Procedure.loadLazily(ByteBuffer.wrap("<!DOCTYPE procedure [ <!ENTITY x \"oops ]><procedure/>"
+                    .getBytes("UTF-8")));
+            fail("Should have rejected an unterminated literal");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    public void testRejected() throws UnsupportedEncodingException {
+        String[] bad = new String[] {
+                "<procedure><section><step></section></procedure>",
+                "<procedure><section><step/></section>",
+                "<procedure><title>&nbsp;</title><section><step/></section></procedure>",
+                "<?xml version=\"1.0\" encoding=\"UTF-16\"?><procedure/>",
+        };
+
+        for (int i = 0; i < bad.length; i++) {
+            try {
+                Procedure.loadLazily(ByteBuffer.wrap(bad[i].getBytes("UTF-8")));
+                fail("Should have rejected " + bad[i]);
+            } catch (IllegalArgumentException iae) {
+                // good
+            }
+        }
+    }
+
+    /*
+     * Text in a section isn't looked at until the section is built, so a
+     * bad entity there only shows up then; it has to come out as an
+     * IllegalArgumentException, every time, with the rest still usable.
+     */
+    public void testMalformedSection() throws UnsupportedEncodingException {
+        String doc = "<procedure><title>T</title>"
+                + "<section title=\"A\"><step title=\"One\"><name who=\"joe\"><task>Fine</task></name></step></section>"
+                + "<section title=\"B\"><step title=\"Two\"><name who=\"joe\"><task>Fish &chips;</task></name></step></section>"
+                + "</procedure>";
+        Procedure p = Procedure.loadLazily(ByteBuffer.wrap(doc.getBytes("UTF-8")));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                p.getSection("n6");
+                fail("Should have rejected the undeclared entity");
+            } catch (IllegalArgumentException iae) {
+                assertTrue(iae.getMessage().startsWith("Section II "));
+            }
+            assertFalse(p.isMaterialized("n6"));
+        }
+
+        Element a = p.getSection("n2");
+        assertEquals("Fine", a.getElementsByTagName("task").item(0).getTextContent());
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+
+/**
+ * Round trip procedures through the precompiled binary form, and through
+ * the cache directory.
+ * 
+ * @author Andrew Cowie
+ */
+public class ProcedureCodecTest extends TestCase
+{
+    String xml = null;
+
+    Procedure original = null;
+
+    public void setUp() {
+        xml = "<procedure>" + "<section>" + "<step>" + "<name who=\"joe\">" + "<task>Blah</task>"
+                + "<task status=\"done\">Fee   fi\n fo fum</task>" + "</name>" + "<name who=\"fred\">"
+                + "<task>Bling</task>" + "<task>MoreBling</task>" + "</name>" + "</step>"
+                + "<step><name who=\"joe\"><task>Jumping up and down</task></name></step>"
+                + "</section>" + "</procedure>";
+
+        original = Procedure.load(new ByteArrayInputStream(xml.getBytes()));
+    }
+
+    private static Procedure roundTrip(Procedure p) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProcedureCodec.write(p, out);
+        return ProcedureCodec.read(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    public void testRoundTrip() throws IOException {
+        Procedure p = roundTrip(original);
+        ProcedureModel model = p.getModel();
+
+        assertEquals(12, model.getSize());
+        assertEquals(ProcedureModel.TASK, model.getTag(5));
+        assertEquals("fred", model.getWho(6));
+        assertEquals(State.DONE, model.getStatus(5));
+
+        assertEquals("n4", p.getFirstTaskId("n2"));
+        assertEquals("n9", p.getNextStepId("n2"));
+        assertTrue(p.isTaskDone("n5"));
+        assertFalse(p.isTaskDone("n4"));
+        assertTrue(p.isTaskMine("n7", "fred"));
+    }
+
+    public void testDocumentRebuilt() throws IOException {
+        Procedure p = roundTrip(original);
+
+        Element task = p.getElement(5);
+        assertEquals("task", task.getTagName());
+        assertEquals("n5", task.getAttribute("id"));
+        assertEquals("b", task.getAttribute("num"));
+        assertEquals("done", task.getAttribute("status"));
+        assertEquals("Fee fi fo fum", task.getTextContent());
+
+        assertEquals("procedure", p.getDOM().getDocumentElement().getTagName());
+        assertEquals(2, p.getDOM().getElementsByTagName("step").getLength());
+    }
+
+    public void testNotCodec() {
+        try {
+            ProcedureCodec.read(ByteBuffer.wrap(xml.getBytes()));
+            fail("Should have rejected something that isn't a precompiled procedure");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    /*
+     * Every prefix of a good file must be refused as such, never by some
+     * other exception escaping out of the decoding.
+     */
+    public void testTruncated() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProcedureCodec.write(original, out);
+        byte[] whole = out.toByteArray();
+
+        for (int length = 0; length < whole.length; length++) {
+            try {
+                ProcedureCodec.read(ByteBuffer.wrap(whole, 0, length));
+                fail("Should have rejected a file cut short at " + length + " bytes");
+            } catch (IllegalArgumentException iae) {
+                // good
+            }
+        }
+    }
+
+    /*
+     * Damage to any one byte either goes unnoticed (it was in some text, say)
+     * or is refused; it must not crash.
+     */
+    public void testDamaged() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProcedureCodec.write(original, out);
+        byte[] whole = out.toByteArray();
+        final byte[] values = {
+                0, 1, 0x7F, (byte) 0x80, (byte) 0xFF
+        };
+
+        for (int i = 0; i < whole.length; i++) {
+            for (int j = 0; j < values.length; j++) {
+                byte[] damaged = whole.clone();
+                damaged[i] = values[j];
+                try {
+                    ProcedureCodec.read(ByteBuffer.wrap(damaged));
+                } catch (IllegalArgumentException iae) {
+                    // good
+                }
+            }
+        }
+    }
+
+    public void testCache() throws IOException {
+        File dir = new File("tmp/unittests/cache");
+        File source = new File("tmp/unittests/codec.xml");
+        dir.mkdirs();
+        for (File stale : dir.listFiles()) {
+            stale.delete();
+        }
+
+        FileOutputStream out = new FileOutputStream(source);
+        out.write(xml.getBytes());
+        out.close();
+
+        ProcedureCache cache = new ProcedureCache(dir);
+
+        Procedure first = cache.load(source.toPath());
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        Procedure second = cache.load(source.toPath());
+        assertEquals(1, cache.getHits());
+        assertEquals(first.getModel().getSize(), second.getModel().getSize());
+        assertEquals("n9", second.getNextStepId("n2"));
+
+        /*
+         * A hit and a miss must give the same thing.
+         */
+        assertTrue(first.isNormalized());
+        assertTrue(second.isNormalized());
+        assertEquals("Fee fi fo fum", first.getElement(5).getTextContent());
+        assertEquals("Fee fi fo fum", second.getElement(5).getTextContent());
+    }
+
+    /*
+     * A cache entry that has been cut short is treated as a miss, and
+     * replaced.
+     */
+    public void testDamagedEntry() throws IOException {
+        File dir = new File("tmp/unittests/damaged");
+        File source = new File("tmp/unittests/damaged.xml");
+        dir.mkdirs();
+        for (File stale : dir.listFiles()) {
+            stale.delete();
+        }
+
+        FileOutputStream out = new FileOutputStream(source);
+        out.write(xml.getBytes());
+        out.close();
+
+        ProcedureCache cache = new ProcedureCache(dir);
+        cache.load(source.toPath());
+
+        File[] entries = dir.listFiles();
+        assertEquals(1, entries.length);
+        RandomAccessFile raf = new RandomAccessFile(entries[0], "rw");
+        raf.setLength(raf.length() / 2);
+        raf.close();
+
+        Procedure p = cache.load(source.toPath());
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals("n9", p.getNextStepId("n2"));
+
+        cache.load(source.toPath());
+        assertEquals(1, cache.getHits());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+/**
+ * Load a directory of procedures in parallel, some of which are broken.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureLibraryTest extends TestCase
+{
+    private static final String GOOD = "<procedure><title>T</title>" + "<section><title>S</title>"
+            + "<step><title>One</title><name who=\"joe\"><task>Blah</task></name></step>"
+            + "</section></procedure>";
+
+    private File dir = null;
+
+    public void setUp() throws IOException {
+        dir = new File("tmp/unittests/library");
+        new File(dir, "nested").mkdirs();
+
+        write("a.xml", GOOD);
+        write("nested/b.xml", GOOD.replace("joe", "fred"));
+        write("broken.xml", "<procedure><section>");
+        write("invalid.xml", GOOD.replace(" who=\"joe\"", ""));
+        write("untitled.xml", GOOD.replace("<title>S</title>", ""));
+        write("README", "not a procedure");
+    }
+
+    private void write(String name, String contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(new File(dir, name));
+        out.write(contents.getBytes("UTF-8"));
+        out.close();
+    }
+
+    public void testLoad() throws IOException {
+        ProcedureLibrary library = new ProcedureLibrary(dir);
+        ProcedureCatalog catalog = library.load();
+
+        assertEquals(2, catalog.getSize());
+        Iterator<String> names = catalog.getNames().iterator();
+        assertEquals("a.xml", names.next());
+        assertEquals("nested/b.xml", names.next());
+
+        Procedure b = catalog.getProcedure("nested/b.xml");
+        assertTrue(b.isTaskMine(b.getFirstTaskId("n2"), "fred"));
+
+        /*
+         * Validated against xml/procedure.dtd without having been asked.
+         */
+        assertEquals(3, catalog.getFailed().size());
+        assertNotNull(catalog.getFailure("broken.xml"));
+        assertTrue(catalog.getFailure("invalid.xml").startsWith("Invalid document"));
+        assertTrue(catalog.getFailure("untitled.xml").startsWith("Invalid document"));
+        assertNull(catalog.getProcedure("broken.xml"));
+        assertNull(catalog.getFailure("a.xml"));
+
+        assertTrue(catalog.getTime("a.xml") > 0);
+        assertTrue(catalog.getTime("broken.xml") > 0);
+        assertEquals(-1, catalog.getTime("README"));
+        assertTrue(catalog.getElapsed() >= catalog.getTime("a.xml"));
+    }
+
+    public void testValidating() throws IOException {
+        ProcedureLibrary library = new ProcedureLibrary(dir);
+        library.setDtd(new File("xml/procedure.dtd"));
+        library.setPool(new ForkJoinPool(2));
+
+        ProcedureCatalog catalog = library.load();
+
+        assertEquals(2, catalog.getSize());
+        assertNotNull(catalog.getProcedure("a.xml"));
+        assertNull(catalog.getProcedure("invalid.xml"));
+        assertNull(catalog.getProcedure("untitled.xml"));
+        assertTrue(catalog.getFailure("invalid.xml").startsWith("Invalid document"));
+    }
+
+    public void testNotValidating() throws IOException {
+        ProcedureLibrary library = new ProcedureLibrary(dir);
+        library.setDtd(null);
+
+        ProcedureCatalog catalog = library.load();
+
+        assertEquals(4, catalog.getSize());
+        assertNotNull(catalog.getProcedure("invalid.xml"));
+        assertNotNull(catalog.getProcedure("untitled.xml"));
+        assertEquals(1, catalog.getFailed().size());
+    }
+
+    public void testNotDirectory() throws IOException {
+        try {
+            new ProcedureLibrary(new File(dir, "a.xml")).load();
+            fail("Should have refused to load a file as a library");
+        } catch (FileNotFoundException fnfe) {
+            // good
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+
+import xseq.services.XmlUtils;
+
+/**
+ * Exercise the array backed ProcedureModel, and a Procedure running on one
+ * without a DOM.
+ * 
+ * @author Andrew Cowie
+ */
+public class ProcedureModelTest extends TestCase
+{
+    String xml = null;
+
+    ProcedureModel model = null;
+
+    public void setUp() {
+        xml = "<procedure>" + "<section>" + "<step>" + "<name who=\"joe\">" + "<task>Blah</task>"
+                + "<task status=\"done\">Fee fi fo fum</task>" + "</name>" + "<name who=\"fred\">"
+                + "<task>Bling</task>" + "<task>MoreBling</task>" + "</name>" + "</step>"
+                + "<step><name who=\"joe\"><task>Jumping up and down</task></name></step>"
+                + "</section>" + "</procedure>";
+
+        model = ProcedureModel.load(new ByteArrayInputStream(xml.getBytes()));
+    }
+
+    public void testStructure() {
+        assertEquals(12, model.getSize());
+
+        assertEquals(-1, model.getParent(0));
+        assertEquals(ProcedureModel.PROCEDURE, model.getTag(0));
+        assertEquals(1, model.getFirstChild(0));
+
+        assertEquals(ProcedureModel.NAME, model.getTag(3));
+        assertEquals(4, model.getFirstChild(3));
+        assertEquals(5, model.getNextSibling(4));
+        assertEquals(-1, model.getNextSibling(5));
+        assertEquals(6, model.getNextSibling(3));
+        assertEquals(9, model.getNextSibling(2));
+    }
+
+    public void testInternedWho() {
+        assertEquals("joe", model.getWho(3));
+        assertEquals("fred", model.getWho(6));
+        assertEquals("joe", model.getWho(10));
+        assertSame(model.getWho(3), model.getWho(10));
+        assertEquals(2, model.getPeople().length);
+        assertEquals(-1, model.getWhoCode("sammy"));
+        assertNull(model.getWho(4));
+    }
+
+    public void testStatusAndNumbers() {
+        assertEquals(State.STANDBY, model.getStatus(4));
+        assertEquals(State.DONE, model.getStatus(5));
+
+        assertEquals("I", model.getNum(1));
+        assertEquals("1", model.getNum(2));
+        assertEquals("2", model.getNum(9));
+        assertEquals("b", model.getNum(5));
+        assertEquals("a", model.getNum(7));
+        assertEquals("", model.getNum(3));
+    }
+
+    public void testIdConversion() {
+        assertEquals(11, model.toNode("n11"));
+        assertEquals("n11", ProcedureModel.toId(11));
+        assertEquals(-1, model.toNode("n12"));
+        assertEquals(-1, model.toNode("x1"));
+        assertEquals(-1, model.toNode("n1a"));
+        assertEquals(-1, model.toNode("n"));
+    }
+
+    public void testAncestors() {
+        assertEquals(-1, model.getAncestor(0, ProcedureModel.PROCEDURE));
+        assertEquals(0, model.getAncestor(1, ProcedureModel.PROCEDURE));
+        assertEquals(-1, model.getAncestor(1, ProcedureModel.SECTION));
+        assertEquals(1, model.getAncestor(2, ProcedureModel.SECTION));
+        assertEquals(2, model.getAncestor(7, ProcedureModel.STEP));
+        assertEquals(6, model.getAncestor(7, ProcedureModel.NAME));
+        assertEquals(9, model.getAncestor(11, ProcedureModel.STEP));
+        assertEquals(-1, model.getAncestor(9, ProcedureModel.NAME));
+        assertEquals(-1, model.getAncestor(4, ProcedureModel.TASK));
+    }
+
+    public void testOrdinals() {
+        OrdinalIndex ordinals = model.getOrdinals();
+
+        assertEquals(5, ordinals.count(ProcedureModel.TASK));
+        assertEquals(2, ordinals.count(ProcedureModel.STEP));
+        assertEquals(5, model.count(ProcedureModel.TASK));
+
+        assertEquals(0, ordinals.rank(2));
+        assertEquals(1, ordinals.rank(9));
+        assertEquals(4, ordinals.rank(11));
+        assertEquals(2, ordinals.rank(7));
+
+        assertEquals(0, ordinals.rank(ProcedureModel.SECTION, 11));
+        assertEquals(0, ordinals.rank(ProcedureModel.SECTION, 1));
+        assertEquals(1, ordinals.rank(ProcedureModel.STEP, 11));
+        assertEquals(-1, ordinals.rank(ProcedureModel.STEP, 1));
+
+        assertEquals(9, ordinals.select(ProcedureModel.STEP, 1));
+        assertEquals(-1, ordinals.select(ProcedureModel.STEP, 2));
+        assertEquals(-1, ordinals.select(ProcedureModel.STEP, -1));
+
+        // across <name>s and <step>s
+        assertEquals(7, ordinals.next(5));
+        assertEquals(11, ordinals.next(8));
+        assertEquals(-1, ordinals.next(11));
+        assertEquals(5, ordinals.prev(7));
+        assertEquals(-1, ordinals.prev(4));
+        assertEquals(10, ordinals.next(6));
+    }
+
+    /*
+     * The table must agree with walking up the DOM, for every Element in a
+     * real procedure.
+     */
+    public void testAncestorsAgainstDocument() throws IOException {
+        Procedure p = Procedure.load(new File("doc/examples/DatabaseUpgrade_Procedure.xml").toPath());
+        ProcedureModel m = p.getModel();
+        final byte[] codes = new byte[] {
+                ProcedureModel.PROCEDURE, ProcedureModel.SECTION, ProcedureModel.STEP, ProcedureModel.NAME
+        };
+
+        for (int i = 0; i < m.getSize(); i++) {
+            Element element = p.getElement(i);
+            for (int j = 0; j < codes.length; j++) {
+                Element expected = XmlUtils.getParentElement(element, ProcedureModel.tagNames[codes[j]]);
+                int ancestor = m.getAncestor(i, codes[j]);
+                if (expected == null) {
+                    assertEquals(-1, ancestor);
+                } else {
+                    assertEquals(expected.getAttribute("id"), ProcedureModel.toId(ancestor));
+                }
+            }
+        }
+    }
+
+    /*
+     * Work through the whole procedure; the counters must say each
+     * container is done exactly when its last task is, and not count a task
+     * done twice.
+     */
+    public void testCompletion() {
+        Procedure p = new Procedure(model);
+
+        assertFalse(p.isStepDone("n4"));
+        p.setTaskAsDone("n4");
+        p.setTaskAsDone("n5");
+        p.setTaskAsDone("n5");
+        assertTrue(p.isNameDone("n4"));
+        assertFalse(p.isStepDone("n4"));
+
+        p.setTaskAsDone("n7");
+        assertFalse(p.isStepDone("n7"));
+        p.setTaskAsDone("n8");
+        assertTrue(p.isStepDone("n8"));
+        assertFalse(p.isSectionDone("n8"));
+        assertFalse(p.isProcedureDone("n8"));
+
+        p.setTaskAsDone("n11");
+        assertTrue(p.isStepDone("n11"));
+        assertTrue(p.isSectionDone("n11"));
+        assertTrue(p.isProcedureDone("n4"));
+    }
+
+    public void testParticipants() {
+        Procedure p = new Procedure(model);
+
+        assertEquals("n4", p.getFirstTaskId("n2", "joe"));
+        assertEquals("n11", p.getFirstTaskId("n9", "joe"));
+        assertNull(p.getFirstTaskId("n9", "fred"));
+        assertNull(p.getFirstTaskId("n2", "sammy"));
+
+        // n5 was loaded done
+        assertEquals("n4", p.nextPendingTaskFor("joe"));
+        p.setTaskAsDone("n4");
+        assertEquals("n11", p.nextPendingTaskFor("joe"));
+        assertNull(p.nextPendingTaskFor("n2", "joe"));
+        assertEquals("n11", p.nextPendingTaskFor("n9", "joe"));
+
+        p.setTaskAsDone("n8");
+        assertEquals("n7", p.nextPendingTaskFor("fred"));
+        assertEquals("n7", p.nextPendingTaskFor("n2", "fred"));
+        p.setTaskAsDone("n7");
+        assertNull(p.nextPendingTaskFor("fred"));
+        assertNull(p.nextPendingTaskFor("n2", "fred"));
+        assertNull(p.nextPendingTaskFor("sammy"));
+    }
+
+    public void testProgress() {
+        Procedure p = new Procedure(model);
+        Progress progress = p.getProgress();
+
+        assertEquals(5, progress.getTaskCount());
+        assertEquals(1, progress.getDoneCount());
+        assertEquals(4, progress.getTaskCount(2));
+        assertEquals(1, progress.getDoneCount(2));
+        assertEquals(3, progress.getTaskCount("joe"));
+        assertEquals(1, progress.getDoneCount("joe"));
+        assertEquals(0, progress.getTaskCount("sammy"));
+
+        p.setTaskAsDone("n7");
+        p.setTaskAsDone("n7");
+        assertEquals(2, progress.getDoneCount());
+        assertEquals(2, progress.getDoneCount(2));
+        assertEquals(0, progress.getDoneCount(9));
+        assertEquals(1, progress.getDoneCount(7));
+        assertEquals(1, progress.getDoneCount("fred"));
+        assertEquals(50, Progress.toPercent(progress.getDoneCount(2), progress.getTaskCount(2)));
+        assertEquals(100, Progress.toPercent(0, 0));
+    }
+
+    /*
+     * The counters kept for containers must agree with counting the tasks
+     * under each node by hand, as tasks are done in any order.
+     */
+    public void testContainerCounts() {
+        Procedure p = new Procedure(model);
+        Progress progress = p.getProgress();
+        int[] order = {
+                11, 7, 4, 8, 5
+        };
+
+        for (int i = 0; i <= order.length; i++) {
+            for (int node = 0; node < model.getSize(); node++) {
+                int tasks = 0;
+                int done = 0;
+                for (int j = node; j < model.getSubtreeEnd(node); j++) {
+                    if (model.getTag(j) == ProcedureModel.TASK) {
+                        tasks++;
+                        if (p.isTaskDone(ProcedureModel.toId(j))) {
+                            done++;
+                        }
+                    }
+                }
+                assertEquals(tasks, progress.getTaskCount(node));
+                assertEquals(done, progress.getDoneCount(node));
+                assertEquals(tasks == done, progress.isComplete(node));
+            }
+            if (i < order.length) {
+                p.markDone(order[i]);
+            }
+        }
+    }
+
+    public void testProcedureWithoutDocument() {
+        Procedure p = new Procedure(model);
+
+        assertNull(p.getDOM());
+        assertTrue(p.isTaskDone("n5"));
+        assertFalse(p.isNameDone("n4"));
+        assertEquals("n5", p.setTaskAsDone("n4"));
+        assertTrue(p.isNameDone("n4"));
+        assertFalse(p.isStepDone("n4"));
+
+        assertEquals("n2", p.getParentId("n7", "step"));
+        assertEquals("n1", p.getParentId("n7", ProcedureModel.SECTION));
+        assertEquals("n7", p.getFirstTaskId("n2", "fred"));
+        assertEquals("n11", p.getFirstTaskId("n9", "joe"));
+        assertNull(p.getFirstTaskId("n9", "fred"));
+        assertEquals("n9", p.getNextStepId("n2"));
+        assertTrue(p.isTaskMine("n11", "joe"));
+        assertFalse(p.isTaskMine("n11", "fred"));
+
+        // the model itself is not changed by running the procedure
+        assertEquals(State.STANDBY, model.getStatus(4));
+    }
+
+    /*
+     * The node number API must give the same answers as the ID one.
+     */
+    public void testNodeNumbers() {
+        Procedure p = new Procedure(model);
+
+        assertEquals(4, p.getFirstTask(0));
+        assertEquals(4, p.getFirstTask(2, "joe"));
+        assertEquals(7, p.getFirstTask(2, "fred"));
+        assertEquals(-1, p.getFirstTask(9, "fred"));
+        assertEquals(-1, p.getFirstTask(2, "sammy"));
+        assertEquals(2, p.getParent(7, ProcedureModel.STEP));
+        assertEquals(-1, p.getParent(0, ProcedureModel.STEP));
+        assertEquals(9, p.getNextStep(2));
+        assertEquals(-1, p.getNextStep(9));
+        assertEquals(8, p.getNextTask(7));
+        assertEquals(-1, p.getNextTask(8));
+
+        assertFalse(p.isTaskDone(4));
+        assertEquals(5, p.setTaskAsDone(4));
+        assertTrue(p.isTaskDone(4));
+        assertTrue(p.isDone(4, ProcedureModel.NAME));
+        assertFalse(p.isDone(4, ProcedureModel.STEP));
+        assertEquals(7, p.nextPendingTaskFor(2, "fred"));
+        assertEquals(-1, p.nextPendingTaskFor(2, "joe"));
+        assertTrue(p.isTaskMine(11, "joe"));
+
+        assertEquals(-1, p.setTaskAsDone(11));
+        assertTrue(p.isStepDone("n11"));
+
+        try {
+            p.setTaskAsDone(12);
+            fail("Should have refused a node past the end");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Titles given either as attributes or as <title> Elements, and procedures
+ * with or without a namespace prefix, should all come out the same.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureOutlineTest extends TestCase
+{
+    private static final String ATTRIBUTES = "<procedure title=\"Upgrade\">"
+            + "<section title=\"Down\"><precis>Stop it</precis>"
+            + "<step title=\"Maintenance\"><name who=\"joe\"><task>Blah</task></name></step>"
+            + "</section></procedure>";
+
+    private static final String ELEMENTS = "<procedure><title>Upgrade</title>"
+            + "<section><title>\n  Down\n</title><precis>Stop it</precis>"
+            + "<step><title>Maintenance</title><name who=\"joe\"><task>Blah</task></name></step>"
+            + "</section></procedure>";
+
+    private static final String PREFIXED = "<p:procedure xmlns:p=\"http://namespace.operationaldynamics.com/procedures/0.4\">"
+            + "<p:title>Upgrade</p:title>"
+            + "<p:section><p:title>Down</p:title><p:precis>Stop it</p:precis>"
+            + "<p:step><p:title>Maintenance</p:title><p:name who=\"joe\"><p:task>Blah</p:task></p:name></p:step>"
+            + "</p:section></p:procedure>";
+
+    private static Procedure eager(String xml) throws UnsupportedEncodingException {
+        return Procedure.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    private static Procedure lazy(String xml) throws UnsupportedEncodingException {
+        return Procedure.loadLazily(ByteBuffer.wrap(xml.getBytes("UTF-8")));
+    }
+
+    private static void assertOutline(Procedure p) {
+        ProcedureModel model = p.getModel();
+        ProcedureOutline outline = p.getOutline();
+
+        assertEquals(1, outline.getSectionCount());
+        int section = outline.getSectionNode(0);
+        int step = model.getFirstChild(section);
+        while (model.getTag(step) != ProcedureModel.STEP) {
+            step = model.getNextSibling(step);
+        }
+
+        assertEquals("Upgrade", outline.getTitle(0));
+        assertEquals("Down", outline.getTitle(section));
+        assertEquals("Maintenance", outline.getTitle(step));
+        assertEquals("Stop it", outline.getPrecis(0));
+    }
+
+    public void testAttributes() throws UnsupportedEncodingException {
+        assertOutline(eager(ATTRIBUTES));
+        assertOutline(lazy(ATTRIBUTES));
+    }
+
+    public void testElements() throws UnsupportedEncodingException {
+        assertOutline(eager(ELEMENTS));
+        assertOutline(lazy(ELEMENTS));
+    }
+
+    public void testPrefixed() throws UnsupportedEncodingException {
+        Procedure e = eager(PREFIXED);
+        Procedure l = lazy(PREFIXED);
+
+        assertOutline(e);
+        assertOutline(l);
+
+        assertEquals(eager(ELEMENTS).getModel().getSize(), e.getModel().getSize());
+        assertEquals("task", e.getElement(e.getModel().getSize() - 1).getTagName());
+        assertEquals("task", l.getElement(l.getModel().getSize() - 1).getTagName());
+        assertEquals("procedure", e.getDOM().getDocumentElement().getTagName());
+    }
+
+    /*
+     * Every public way in, not just the stream and lazy loaders, has to
+     * understand the prefixed form.
+     */
+    public void testPrefixedEverywhere() throws UnsupportedEncodingException {
+        final int size = eager(ELEMENTS).getModel().getSize();
+
+        Procedure parsed = new Procedure(PREFIXED);
+        assertOutline(parsed);
+        assertEquals(size, parsed.getModel().getSize());
+        assertEquals("procedure", parsed.getDOM().getDocumentElement().getTagName());
+        assertEquals("task", parsed.getElement(size - 1).getTagName());
+        assertEquals(1, parsed.getDOM().getElementsByTagName("step").getLength());
+
+        ProcedureModel model = ProcedureModel.load(new ByteArrayInputStream(PREFIXED.getBytes("UTF-8")));
+        assertEquals(size, model.getSize());
+        assertEquals(1, model.count(ProcedureModel.STEP));
+        assertEquals(1, model.count(ProcedureModel.TASK));
+        assertEquals("joe", model.getWho(size - 2));
+
+        Procedure modelled = new Procedure(model);
+        assertEquals("n" + (size - 1), modelled.getFirstTaskId("n2", "joe"));
+    }
+
+    public void testForeignPrefix() throws UnsupportedEncodingException {
+        Procedure p = eager(ELEMENTS.replace("<task>Blah</task>",
+                "<task>Blah<x:em xmlns:x=\"urn:other\">!</x:em></task>"));
+        assertEquals("x:em", p.getElement(p.getModel().getSize() - 1).getTagName());
+    }
+
+    public void testExample() throws IOException {
+        Procedure p = Procedure.load(new File("doc/examples/DatabaseUpgrade_Procedure.xml").toPath());
+        ProcedureOutline outline = p.getOutline();
+
+        assertEquals("Production Database Upgrade", outline.getTitle(0));
+        assertEquals(3, outline.getSectionCount());
+        assertEquals("Take site down", outline.getTitle(outline.getSectionNode(0)));
+    }
+}
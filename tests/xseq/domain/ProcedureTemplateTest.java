@@ -0,0 +1,130 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs started from the same ProcedureTemplate must share everything but
+ * their state, and not see each other's progress.
+ * 
+ * @author Andrew Cowie
+ */
+public class ProcedureTemplateTest extends TestCase
+{
+    ProcedureTemplate template = null;
+
+    /*
+     * Node numbers: 0 procedure, 1 section, 2 step, 3 name joe, 4 task, 5
+     * task (done), 6 name fred, 7 task, 8 task, 9 step, 10 name joe, 11 task.
+     */
+    public void setUp() throws UnsupportedEncodingException {
+        String xml = "<procedure><section title=\"Upgrade\"><step title=\"Stop\">"
+                + "<name who=\"joe\"><task>Stop the database</task>"
+                + "<task status=\"done\">Warn users</task></name>" + "<name who=\"fred\">"
+                + "<task>Back up</task><task>Verify backup</task></name></step>"
+                + "<step title=\"Start\"><name who=\"joe\"><task>Start the database</task></name></step>"
+                + "</section></procedure>";
+
+        template = ProcedureTemplate.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    public void testIndependentRuns() {
+        Procedure first = template.newRun();
+        Procedure second = template.newRun();
+
+        assertNull(first.getDOM());
+        assertSame(template.getModel(), first.getModel());
+        assertSame(first.getModel(), second.getModel());
+        assertSame(first.getOutline(), second.getOutline());
+
+        assertTrue(first.isTaskDone("n5"));
+        assertTrue(second.isTaskDone("n5"));
+
+        first.setTaskAsDone("n4");
+        assertTrue(first.isNameDone("n4"));
+        assertFalse(second.isTaskDone("n4"));
+        assertFalse(second.isNameDone("n4"));
+        assertEquals(2, first.getProgress().getDoneCount());
+        assertEquals(1, second.getProgress().getDoneCount());
+
+        assertEquals("n11", first.nextPendingTaskFor("joe"));
+        assertEquals("n4", second.nextPendingTaskFor("joe"));
+
+        // and the template itself is untouched
+        assertEquals(State.STANDBY, template.getModel().getStatus(4));
+        assertEquals(1, template.newRun().getProgress().getDoneCount());
+    }
+
+    public void testSearch() {
+        assertEquals(Arrays.asList(new String[] {
+                "n4", "n11"
+        }), Arrays.asList(template.search("datab")));
+        assertEquals(Arrays.asList(template.search("back")), Arrays.asList(template.newRun().search("back")));
+        assertEquals("Stop", template.getOutline().getTitle(2));
+    }
+
+    public void testFromLazy() throws UnsupportedEncodingException {
+        Procedure lazy = Procedure.loadLazily(ByteBuffer.wrap(("<procedure><section><step>"
+                + "<name who=\"joe\"><task>Reboot</task></name></step></section></procedure>").getBytes("UTF-8")));
+        ProcedureTemplate t = lazy.toTemplate();
+
+        assertEquals(Arrays.asList(new String[] {
+                "n4"
+        }), Arrays.asList(t.search("reboot")));
+    }
+
+    /*
+     * Many runs going at once on different threads, all on one template.
+     */
+    public void testConcurrentRuns() throws InterruptedException {
+        final Procedure[] runs = new Procedure[8];
+        final Thread[] threads = new Thread[runs.length];
+
+        for (int i = 0; i < runs.length; i++) {
+            final Procedure run = template.newRun();
+            runs[i] = run;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int round = 0; round < 1000; round++) {
+                        run.search("st");
+                        run.isStepDone("n4");
+                    }
+                    run.setTaskAsDone("n7");
+                    run.setTaskAsDone("n8");
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+
+        for (int i = 0; i < runs.length; i++) {
+            assertEquals(3, runs[i].getProgress().getDoneCount());
+            assertTrue(runs[i].isNameDone("n7"));
+            assertFalse(runs[i].isStepDone("n7"));
+        }
+    }
+}
@@ -18,8 +18,13 @@
  */
 package xseq.domain;
 
+import java.io.ByteArrayInputStream;
+
 import junit.framework.TestCase;
 
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
 /**
  * Exercise the Procedure class's ID string navigation.
  * 
@@ -144,6 +149,26 @@ public class ProcedureTest extends TestCase
         assertTrue(p.isTaskMine("n7", "fred"));
     }
 
+    public void testLoadFromStream() {
+        Procedure streamed = Procedure.load(new ByteArrayInputStream(xml.getBytes()));
+
+        assertEquals("n5", streamed.getNextTaskId("n4"));
+        assertEquals("n2", streamed.getParentId("n4", "step"));
+        assertEquals("n7", streamed.getFirstTaskId("n2", "fred"));
+        assertEquals("n9", streamed.getNextStepId("n2"));
+    }
+
+    public void testNumAttributes() {
+        NodeList steps = p.getDOM().getElementsByTagName("step");
+        assertEquals("1", ((Element) steps.item(0)).getAttribute("num"));
+        assertEquals("2", ((Element) steps.item(1)).getAttribute("num"));
+
+        NodeList tasks = p.getDOM().getElementsByTagName("task");
+        assertEquals("a", ((Element) tasks.item(0)).getAttribute("num"));
+        assertEquals("b", ((Element) tasks.item(1)).getAttribute("num"));
+        assertEquals("a", ((Element) tasks.item(2)).getAttribute("num"));
+    }
+
     public void testIsTaskDone() {
         assertFalse(p.isTaskDone("n4"));
         p.setTaskAsDone("n4");
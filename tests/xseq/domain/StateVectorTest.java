@@ -0,0 +1,278 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+
+/**
+ * The packed State store, on its own and underneath a Procedure.
+ *
+ * @author Andrew Cowie
+ */
+public class StateVectorTest extends TestCase
+{
+    public void testGetSet() {
+        StateVector v = new StateVector(20);
+
+        assertEquals(20, v.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(State.STANDBY, v.get(i));
+        }
+
+        assertEquals(State.STANDBY, v.set(7, State.CRITICAL));
+        assertEquals(State.STANDBY, v.set(8, State.DONE));
+        assertEquals(State.CRITICAL, v.get(7));
+        assertEquals(State.DONE, v.get(8));
+        assertEquals(State.STANDBY, v.get(6));
+        assertEquals(State.STANDBY, v.get(9));
+
+        assertEquals(State.CRITICAL, v.set(7, State.WORKING));
+        assertEquals(State.WORKING, v.get(7));
+    }
+
+    public void testCompareAndSet() {
+        StateVector v = new StateVector(new byte[] {
+                State.STANDBY, State.WORKING, State.PROBLEM
+        });
+
+        assertFalse(v.compareAndSet(1, State.STANDBY, State.DONE));
+        assertEquals(State.WORKING, v.get(1));
+        assertTrue(v.compareAndSet(1, State.WORKING, State.DONE));
+        assertEquals(State.DONE, v.get(1));
+        assertEquals(State.PROBLEM, v.get(2));
+
+        try {
+            v.compareAndSet(0, State.STANDBY, State.NUM_BUTTONS);
+            fail("Should have refused something that isn't a State");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+        try {
+            v.get(3);
+            fail("Should have refused a node past the end");
+        } catch (IndexOutOfBoundsException ioobe) {
+            // good
+        }
+    }
+
+    public void testBulkAndSnapshot() {
+        StateVector v = new StateVector(11);
+        v.set(0, State.DONE);
+        v.set(10, State.PROBLEM);
+
+        StateVector copy = v.snapshot();
+        v.set(0, State.CRITICAL);
+        assertEquals(State.DONE, copy.get(0));
+        assertEquals(State.PROBLEM, copy.get(10));
+
+        byte[] all = new byte[11];
+        v.getAll(all);
+        assertEquals(State.CRITICAL, all[0]);
+        assertEquals(State.STANDBY, all[5]);
+        assertEquals(State.PROBLEM, all[10]);
+    }
+
+    /*
+     * Several threads each working their own nodes, all of which share
+     * words with the others' nodes; no update may be lost.
+     */
+    public void testConcurrent() throws InterruptedException {
+        final int num = 4;
+        final int size = 64;
+        final int states = State.NUM_BUTTONS;
+        final StateVector v = new StateVector(size);
+        Thread[] threads = new Thread[num];
+
+        for (int t = 0; t < num; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int round = 0; round < 1000; round++) {
+                        for (int i = offset; i < size; i += num) {
+                            int state = v.get(i);
+                            assertTrue(v.compareAndSet(i, state, (state + 1) % states));
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < num; t++) {
+            threads[t].join();
+        }
+
+        for (int i = 0; i < size; i++) {
+            assertEquals(1000 % State.NUM_BUTTONS, v.get(i));
+        }
+    }
+
+    /*
+     * One thread sets nodes to DONE in order, and so only ever leaves a run
+     * of DONE nodes at the front; a snapshot taken while it goes must never
+     * show a gap, even though it copies word by word.
+     */
+    public void testConsistentSnapshot() throws InterruptedException {
+        final int size = 4096;
+        final StateVector v = new StateVector(size);
+        final int done = State.DONE; // not Thread.State
+        Thread writer = new Thread() {
+            public void run() {
+                for (int i = 0; i < size; i++) {
+                    v.set(i, done);
+                }
+            }
+        };
+        byte[] all = new byte[size];
+
+        writer.start();
+        while (v.get(size - 1) != State.DONE) {
+            v.getAll(all);
+
+            int i = 0;
+            while ((i < size) && (all[i] == State.DONE)) {
+                i++;
+            }
+            while (i < size) {
+                assertEquals(State.STANDBY, all[i]);
+                i++;
+            }
+        }
+        writer.join();
+    }
+
+    /*
+     * Several writers, each sweeping its own part of the vector over and over
+     * so that a reader rarely finds every stripe quiet. Copies must still
+     * finish, and each part must show at most one sweep in progress.
+     */
+    public void testSnapshotUnderLoad() throws InterruptedException {
+        final int num = 4;
+        final int part = 1024;
+        final int states = State.NUM_BUTTONS;
+        final StateVector v = new StateVector(num * part);
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread[] threads = new Thread[num];
+
+        for (int t = 0; t < num; t++) {
+            final int offset = t * part;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int round = 1; !stop.get(); round++) {
+                        for (int i = offset; i < offset + part; i++) {
+                            v.set(i, round % states);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        byte[] all = new byte[num * part];
+        for (int copy = 0; copy < 500; copy++) {
+            v.getAll(all);
+            for (int t = 0; t < num; t++) {
+                int boundaries = 0;
+                for (int i = t * part + 1; i < (t + 1) * part; i++) {
+                    if (all[i] != all[i - 1]) {
+                        assertEquals((all[i] + 1) % states, all[i - 1]);
+                        boundaries++;
+                    }
+                }
+                assertTrue(boundaries <= 1);
+            }
+        }
+
+        stop.set(true);
+        for (int t = 0; t < num; t++) {
+            threads[t].join();
+        }
+    }
+
+    /*
+     * Status attributes are written to the DOM only when it is asked for.
+     */
+    public void testProcedure() throws UnsupportedEncodingException {
+        String xml = "<procedure><section><step><name who=\"joe\"><task>Blah</task>"
+                + "<task status=\"problem\">Fee</task></name></step></section></procedure>";
+        Procedure p = Procedure.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+
+        StateVector before = p.getStates();
+        assertEquals(State.PROBLEM, before.get(5));
+
+        p.setTaskAsDone("n4");
+        assertTrue(p.isTaskDone("n4"));
+        assertEquals(State.STANDBY, before.get(4));
+        assertEquals(State.DONE, p.getStates().get(4));
+
+        Element task = (Element) p.getDOM().getElementsByTagName("task").item(0);
+        assertEquals("done", task.getAttribute("status"));
+    }
+
+    /*
+     * Several participants reporting the same tasks at once: each task is
+     * done exactly once, and counted once.
+     */
+    public void testConcurrentCompletions() throws InterruptedException {
+        StringBuilder xml = new StringBuilder("<procedure><section><step><name who=\"joe\">");
+        for (int i = 0; i < 200; i++) {
+            xml.append("<task>Blah</task>");
+        }
+        xml.append("</name></step></section></procedure>");
+
+        final Procedure p = new Procedure(xml.toString());
+        final int first = p.getFirstTask(0);
+        final int[] wins = new int[4];
+        Thread[] threads = new Thread[wins.length];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int which = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int task = first; task != -1; task = p.getNextTask(task)) {
+                        if (p.markDone(task)) {
+                            wins[which]++;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+
+        int total = 0;
+        for (int t = 0; t < wins.length; t++) {
+            total += wins[t];
+        }
+        assertEquals(200, total);
+        assertEquals(200, p.getProgress().getDoneCount());
+        assertEquals(200, p.getProgress().getDoneCount("joe"));
+        assertTrue(p.isDone(first, ProcedureModel.PROCEDURE));
+
+        Element task = (Element) p.getDOM().getElementsByTagName("task").item(199);
+        assertEquals("done", task.getAttribute("status"));
+    }
+}
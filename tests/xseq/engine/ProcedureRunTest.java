@@ -0,0 +1,414 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import xseq.domain.Procedure;
+import xseq.domain.ProcedureModel;
+import xseq.domain.ProcedureTemplate;
+
+/**
+ * Drive ProcedureRuns through a procedure with no user interface, and check
+ * that the events come out in the right order and that runs don't interfere
+ * with each other.
+ *
+ * @author Andrew Cowie
+ */
+public class ProcedureRunTest extends TestCase
+{
+    ProcedureTemplate template = null;
+
+    /*
+     * Node numbers: 0 procedure, 1 section, 2 step, 3 name joe, 4 task, 5
+     * task (done), 6 name fred, 7 task, 8 task, 9 step, 10 name joe, 11 task.
+     */
+    public void setUp() throws UnsupportedEncodingException {
+        String xml = "<procedure><section title=\"Upgrade\"><step title=\"Stop\">"
+                + "<name who=\"joe\"><task>Stop the database</task>"
+                + "<task status=\"done\">Warn users</task></name>" + "<name who=\"fred\">"
+                + "<task>Back up</task><task>Verify backup</task></name></step>"
+                + "<step title=\"Start\"><name who=\"joe\"><task>Start the database</task></name></step>"
+                + "</section></procedure>";
+
+        template = ProcedureTemplate.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    /*
+     * Writes down everything it's told, checking along the way that the run
+     * has already been updated by the time each event arrives. Listeners
+     * can be called on any thread, and exceptions from them don't get back
+     * to the test, so anything wrong is noted down and reported by take().
+     */
+    private static class Recorder implements ProcedureListener
+    {
+        final List<String> events = new ArrayList<String>();
+
+        final List<String> problems = new ArrayList<String>();
+
+        /*
+         * Whether the run is driven from one thread, so that it can't have
+         * moved on past an event by the time the event arrives.
+         */
+        final boolean exact;
+
+        Recorder(boolean exact) {
+            this.exact = exact;
+        }
+
+        public synchronized void stepStarted(ProcedureRun run, int step) {
+            int current = run.getCurrentStep();
+            if (exact ? (current != step) : ((current != -1) && (current < step))) {
+                problems.add("stepStarted " + step + " but current step is " + current);
+            }
+            events.add(run.getName() + " stepStarted " + ProcedureModel.toId(step));
+        }
+
+        public synchronized void taskStarted(ProcedureRun run, int task, String who) {
+            events.add(run.getName() + " taskStarted " + ProcedureModel.toId(task) + " " + who);
+        }
+
+        public synchronized void taskDone(ProcedureRun run, int task) {
+            if (!run.getProcedure().isTaskDone(task)) {
+                problems.add("taskDone " + task + " but it isn't");
+            }
+            events.add(run.getName() + " taskDone " + ProcedureModel.toId(task));
+        }
+
+        public synchronized void stepDone(ProcedureRun run, int step) {
+            events.add(run.getName() + " stepDone " + ProcedureModel.toId(step));
+        }
+
+        public synchronized void sectionDone(ProcedureRun run, int section) {
+            events.add(run.getName() + " sectionDone " + ProcedureModel.toId(section));
+        }
+
+        public synchronized void procedureDone(ProcedureRun run) {
+            if (!run.isFinished() || (run.getCurrentStep() != -1)) {
+                problems.add("procedureDone but the run isn't finished");
+            }
+            events.add(run.getName() + " procedureDone");
+        }
+
+        synchronized List<String> take() {
+            assertTrue(problems.toString(), problems.isEmpty());
+            List<String> result = new ArrayList<String>(events);
+            events.clear();
+            return result;
+        }
+    }
+
+    public void testWholeRun() {
+        ProcedureRun run = new ProcedureRun("a", template.newRun());
+        Recorder recorder = new Recorder(true);
+        run.addListener(recorder);
+
+        assertFalse(run.isStarted());
+        assertEquals(-1, run.getCurrentStep());
+
+        run.start();
+        assertEquals(Arrays.asList(new String[] {
+                "a stepStarted n2", "a taskStarted n4 joe", "a taskStarted n7 fred"
+        }), recorder.take());
+        assertEquals(2, run.getCurrentStep());
+        assertEquals(4, run.getCurrentTask("joe"));
+        assertEquals(7, run.getCurrentTask("fred"));
+        assertEquals(-1, run.getCurrentTask("nobody"));
+
+        /*
+         * joe's other task in this step was already done, so he's finished
+         * here, but the step isn't until fred is.
+         */
+        run.setTaskAsDone(4);
+        assertEquals(Arrays.asList(new String[] {
+            "a taskDone n4"
+        }), recorder.take());
+        assertEquals(-1, run.getCurrentTask("joe"));
+
+        run.setTaskAsDone("n7");
+        assertEquals(Arrays.asList(new String[] {
+                "a taskDone n7", "a taskStarted n8 fred"
+        }), recorder.take());
+
+        run.setTaskAsDone(8);
+        assertEquals(Arrays.asList(new String[] {
+                "a taskDone n8", "a stepDone n2", "a stepStarted n9", "a taskStarted n11 joe"
+        }), recorder.take());
+        assertEquals(9, run.getCurrentStep());
+        assertEquals(-1, run.getCurrentTask("fred"));
+
+        run.setTaskAsDone(11);
+        assertEquals(Arrays.asList(new String[] {
+                "a taskDone n11", "a stepDone n9", "a sectionDone n1", "a procedureDone"
+        }), recorder.take());
+        assertTrue(run.isFinished());
+
+        // the same news arriving again is harmless
+        run.setTaskAsDone(11);
+        assertEquals(0, recorder.take().size());
+    }
+
+    public void testNotATask() {
+        ProcedureRun run = new ProcedureRun("a", template.newRun());
+        run.start();
+
+        try {
+            run.setTaskAsDone(2);
+            fail("Should have refused a step");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+        try {
+            run.setTaskAsDone("n99");
+            fail("Should have refused an ID that isn't there");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    /*
+     * A listener that blows up mustn't stop the others hearing about things,
+     * nor the run from carrying on.
+     */
+    public void testBadListener() {
+        ProcedureRun run = new ProcedureRun("a", template.newRun());
+        Recorder recorder = new Recorder(true);
+
+        run.addListener(new ProcedureListener() {
+            public void stepStarted(ProcedureRun run, int step) {
+                throw new IllegalStateException("Expected failure, testing listener isolation");
+            }
+
+            public void taskStarted(ProcedureRun run, int task, String who) {}
+
+            public void taskDone(ProcedureRun run, int task) {
+                throw new IllegalStateException("Expected failure, testing listener isolation");
+            }
+
+            public void stepDone(ProcedureRun run, int step) {}
+
+            public void sectionDone(ProcedureRun run, int section) {}
+
+            public void procedureDone(ProcedureRun run) {}
+        });
+        run.addListener(recorder);
+
+        run.start();
+        run.setTaskAsDone(4);
+        run.setTaskAsDone(7);
+        run.setTaskAsDone(8);
+        assertEquals(Arrays.asList(new String[] {
+                "a stepStarted n2", "a taskStarted n4 joe", "a taskStarted n7 fred", "a taskDone n4",
+                "a taskDone n7", "a taskStarted n8 fred", "a taskDone n8", "a stepDone n2",
+                "a stepStarted n9", "a taskStarted n11 joe"
+        }), recorder.take());
+        assertEquals(9, run.getCurrentStep());
+    }
+
+    public void testEngine() {
+        ProcedureEngine engine = new ProcedureEngine();
+        Recorder recorder = new Recorder(true);
+        engine.addListener(recorder);
+
+        ProcedureRun a = engine.start("a", template);
+        ProcedureRun b = engine.start("b", template);
+        assertEquals(2, engine.getRunCount());
+        assertSame(a, engine.getRun("a"));
+        assertNull(engine.getRun("c"));
+
+        try {
+            engine.start("a", template);
+            fail("Should have refused a second run with the same name");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+        recorder.take();
+
+        a.setTaskAsDone(7);
+        assertEquals(Arrays.asList(new String[] {
+                "a taskDone n7", "a taskStarted n8 fred"
+        }), recorder.take());
+        assertEquals(8, a.getCurrentTask("fred"));
+        assertEquals(7, b.getCurrentTask("fred"));
+        assertFalse(b.getProcedure().isTaskDone(7));
+
+        assertSame(b, engine.remove("b"));
+        assertTrue(b.isFinished());
+        b.setTaskAsDone(7);
+        assertEquals(0, recorder.take().size());
+        assertEquals(1, engine.getRunCount());
+    }
+
+    /*
+     * Participants on different threads all working through the same run,
+     * each at their own pace, as completions come in over the network. The
+     * run must still see every task, step and section finished once.
+     */
+    public void testConcurrentParticipants() throws InterruptedException {
+        final String[] people = {
+                "joe", "fred", "mary", "anne"
+        };
+        StringBuilder xml = new StringBuilder("<procedure>");
+        for (int section = 0; section < 2; section++) {
+            xml.append("<section>");
+            for (int step = 0; step < 5; step++) {
+                xml.append("<step>");
+                for (int p = 0; p < people.length; p++) {
+                    xml.append("<name who=\"" + people[p] + "\"><task>One</task><task>Two</task></name>");
+                }
+                xml.append("</step>");
+            }
+            xml.append("</section>");
+        }
+        xml.append("</procedure>");
+
+        final ProcedureRun run = new ProcedureRun("a", new Procedure(xml.toString()));
+        final Recorder recorder = new Recorder(false);
+        final Thread[] threads = new Thread[people.length];
+        run.addListener(recorder);
+        run.start();
+
+        for (int p = 0; p < people.length; p++) {
+            final String who = people[p];
+            threads[p] = new Thread() {
+                public void run() {
+                    Procedure procedure = run.getProcedure();
+                    String task;
+                    while ((task = procedure.nextPendingTaskFor(who)) != null) {
+                        run.setTaskAsDone(task);
+                        run.getCurrentTask(who);
+                        run.setTaskAsDone(task);
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        for (int p = 0; p < threads.length; p++) {
+            threads[p].join();
+        }
+
+        assertTrue(run.isFinished());
+        assertEquals(-1, run.getCurrentStep());
+
+        int tasks = 0, steps = 0, sections = 0, finished = 0;
+        List<String> events = recorder.take();
+        for (String event : events) {
+            if (event.contains("taskDone")) {
+                tasks++;
+            } else if (event.contains("stepDone")) {
+                steps++;
+            } else if (event.contains("sectionDone")) {
+                sections++;
+            } else if (event.contains("procedureDone")) {
+                finished++;
+            }
+        }
+        assertEquals(80, tasks);
+        assertEquals(10, steps);
+        assertEquals(2, sections);
+        assertEquals(1, finished);
+        assertEquals("a procedureDone", events.get(events.size() - 1));
+    }
+
+    /*
+     * Lots of runs at once, each driven to the end on its own thread.
+     */
+    public void testConcurrentRuns() throws InterruptedException {
+        final ProcedureEngine engine = new ProcedureEngine();
+        final Recorder recorder = new Recorder(true);
+        final Thread[] threads = new Thread[8];
+        engine.addListener(recorder);
+
+        for (int i = 0; i < threads.length; i++) {
+            final String name = "run" + i;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int round = 0; round < 100; round++) {
+                        ProcedureRun run = engine.start(name + "." + round, template);
+                        run.setTaskAsDone(8);
+                        run.setTaskAsDone(7);
+                        run.setTaskAsDone(4);
+                        run.setTaskAsDone(11);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+
+        assertEquals(800, engine.getRunCount());
+        String[] names = engine.getRunNames();
+        for (int i = 0; i < names.length; i++) {
+            assertTrue(engine.getRun(names[i]).isFinished());
+        }
+
+        int finished = 0;
+        for (String event : recorder.take()) {
+            if (event.endsWith("procedureDone")) {
+                finished++;
+            }
+        }
+        assertEquals(800, finished);
+    }
+
+    /*
+     * A participant with two name blocks in one step goes on from the
+     * first block to the second, rather than being left with nothing.
+     * Nodes: 2 step, 3 name joe, 4 task, 5 name fred, 6 task, 7 name joe, 8
+     * task, 9 task.
+     */
+    public void testRepeatedNames() throws UnsupportedEncodingException {
+        String xml = "<procedure><section title=\"S\"><step title=\"One\">"
+                + "<name who=\"joe\"><task>First</task></name>"
+                + "<name who=\"fred\"><task>Meanwhile</task></name>"
+                + "<name who=\"joe\"><task>Second</task><task>Third</task></name>"
+                + "</step></section></procedure>";
+        ProcedureRun run = new ProcedureRun("r", Procedure.load(new ByteArrayInputStream(xml.getBytes("UTF-8"))));
+        Recorder recorder = new Recorder(true);
+        run.addListener(recorder);
+
+        run.start();
+        assertEquals(Arrays.asList(new String[] {
+                "r stepStarted n2", "r taskStarted n4 joe", "r taskStarted n6 fred"
+        }), recorder.take());
+
+        run.setTaskAsDone(4);
+        assertEquals(Arrays.asList(new String[] {
+                "r taskDone n4", "r taskStarted n8 joe"
+        }), recorder.take());
+        assertEquals(8, run.getCurrentTask("joe"));
+
+        run.setTaskAsDone(8);
+        assertEquals(9, run.getCurrentTask("joe"));
+        run.setTaskAsDone(9);
+        assertEquals(-1, run.getCurrentTask("joe"));
+        assertEquals(Arrays.asList(new String[] {
+                "r taskDone n8", "r taskStarted n9 joe", "r taskDone n9"
+        }), recorder.take());
+        assertEquals(2, run.getCurrentStep());
+    }
+}
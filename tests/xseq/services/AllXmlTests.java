@@ -42,6 +42,16 @@ public class AllXmlTests
         suite.addTestSuite(XmlNumsTest.class);
         suite.addTestSuite(DocumentTraversalTest.class);
         suite.addTestSuite(IdIndexTest.class);
+        suite.addTestSuite(XmlStreamLoaderTest.class);
+        suite.addTestSuite(AnnotatorTest.class);
+        suite.addTestSuite(ParserPoolTest.class);
+        suite.addTestSuite(DtdGrammarTest.class);
+        suite.addTestSuite(StringIntIndexTest.class);
+        suite.addTestSuite(SubtreeIntervalsTest.class);
+        suite.addTestSuite(FenwickTreeTest.class);
+        suite.addTestSuite(TextIndexTest.class);
+        suite.addTestSuite(OffsetIndexTest.class);
+        suite.addTestSuite(StripedFenwickTreeTest.class);
         // $JUnit-END$
         return suite;
     }
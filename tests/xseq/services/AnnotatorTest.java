@@ -0,0 +1,100 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Exercise the single pass Annotator and the visitors hooked into it.
+ * 
+ * @author Andrew Cowie
+ */
+public class AnnotatorTest extends TestCase
+{
+    String xml = null;
+
+    Document dom = null;
+
+    public void setUp() {
+        xml = "<procedure>" + "<section>" + "<step>" + "<name who=\"joe\">" + "<task>Blah</task>"
+                + "<task>Fee fi fo fum</task>" + "</name>" + "</step>"
+                + "<step><name who=\"scarlet\"><task>Jumping up and down</task></name></step>"
+                + "</section>" + "<!-- trailing comment -->" + "</procedure>";
+
+        dom = XmlUtils.xmlStringToDOM(xml);
+    }
+
+    public void testIdsInDocumentOrder() {
+        Annotator annotator = new Annotator();
+        annotator.run(dom);
+
+        NodeList list = dom.getElementsByTagName("*");
+        for (int i = 0; i < list.getLength(); i++) {
+            Element element = (Element) list.item(i);
+            assertEquals("n" + i, element.getAttribute("id"));
+        }
+        assertEquals(list.getLength(), annotator.getElementsVisited());
+    }
+
+    public void testNodesVisited() {
+        Annotator annotator = new Annotator();
+
+        // 9 elements, 3 text nodes, 1 comment
+        assertEquals(13, annotator.run(dom));
+        assertEquals(13, annotator.getNodesVisited());
+        assertEquals(9, annotator.getElementsVisited());
+    }
+
+    public void testVisitorsNest() {
+        final StringBuffer trace = new StringBuffer();
+
+        Annotator annotator = new Annotator();
+        annotator.addVisitor(new DocumentVisitor() {
+            public void startElement(Element element, int ordinal) {
+                trace.append("<" + ordinal + ">");
+            }
+
+            public void endElement(Element element, int ordinal) {
+                trace.append("</" + ordinal + ">");
+            }
+        });
+        annotator.run(dom);
+
+        assertEquals("<0><1><2><3><4></4><5></5></3></2><6><7><8></8></7></6></1></0>", trace.toString());
+    }
+
+    public void testIndexesAsVisitors() {
+        ElementIndex elements = new ElementIndex();
+        IdIndex steps = new IdIndex("step");
+
+        Annotator annotator = new Annotator();
+        annotator.addVisitor(elements);
+        annotator.addVisitor(steps);
+        annotator.run(dom);
+
+        assertEquals("task", elements.getElementById("n5").getTagName());
+        assertEquals(2, steps.size());
+        assertEquals("n6", steps.getNextId("n2"));
+        assertNull(steps.getNextId("n6"));
+    }
+}
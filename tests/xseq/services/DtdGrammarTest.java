@@ -0,0 +1,208 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Validate documents against a compiled DTD, and make sure the DTD behind a
+ * validating ParserPool is only read and compiled once.
+ * 
+ * @author Andrew Cowie
+ */
+public class DtdGrammarTest extends TestCase
+{
+    private static final String DTD = "<!-- a comment -->\n" + "<!ELEMENT list (title, item+, note?)>\n"
+            + "<!ATTLIST list id ID #IMPLIED>\n" + "<!ELEMENT title (#PCDATA)>\n"
+            + "<!ELEMENT item (#PCDATA | em)*>\n"
+            + "<!ATTLIST item id ID #IMPLIED kind (big | small) 'small' owner CDATA #REQUIRED>\n"
+            + "<!ELEMENT em (#PCDATA)>\n" + "<!ELEMENT note EMPTY>\n";
+
+    private static final String VALID_PROCEDURE = "<!DOCTYPE procedure SYSTEM \"xml/procedure.dtd\">"
+            + "<procedure><title>Upgrade</title><section><title>First</title><step><title>Do it</title>"
+            + "<name who=\"joe\"><task status=\"done\">Blah</task></name></step></section></procedure>";
+
+    DtdGrammar grammar = null;
+
+    ParserPool pool = null;
+
+    public void setUp() {
+        grammar = DtdGrammar.compile(DTD);
+        pool = new ParserPool();
+    }
+
+    private Document parse(String xml) {
+        return pool.parse(new InputSource(new StringReader(xml)));
+    }
+
+    private void assertInvalid(String xml) {
+        Document dom = parse(xml);
+        try {
+            grammar.validate(dom);
+            fail("Should have been rejected as invalid: " + xml);
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    public void testValid() {
+        grammar.validate(parse("<list id=\"a\"><title>T</title><item owner=\"me\">one</item>"
+                + "<item owner=\"you\" kind=\"big\">two <em>2</em></item><note/></list>"));
+    }
+
+    public void testInvalid() {
+        // missing required title
+        assertInvalid("<list><item owner=\"me\"/></list>");
+        // wrong order
+        assertInvalid("<list><item owner=\"me\"/><title>T</title></list>");
+        // missing required attribute
+        assertInvalid("<list><title>T</title><item>one</item></list>");
+        // not one of the enumerated values
+        assertInvalid("<list><title>T</title><item owner=\"me\" kind=\"huge\">one</item></list>");
+        // undeclared attribute
+        assertInvalid("<list colour=\"red\"><title>T</title><item owner=\"me\"/></list>");
+        // undeclared element
+        assertInvalid("<list><title>T</title><item owner=\"me\"/><bogus/></list>");
+        // text where only elements are allowed
+        assertInvalid("<list><title>T</title>stray<item owner=\"me\"/></list>");
+        // content in an EMPTY element
+        assertInvalid("<list><title>T</title><item owner=\"me\"/><note>x</note></list>");
+        // duplicate ID
+        assertInvalid("<list id=\"x\"><title>T</title><item id=\"x\" owner=\"me\"/></list>");
+    }
+
+    public void testBadDtd() {
+        try {
+            DtdGrammar.compile("<!ELEMENT list (a, b | c)>");
+            fail("Should have rejected mixing , and |");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    /*
+     * Out of the box, a document that declares the DTD is checked against
+     * it; both ways of giving a section or step its title are allowed.
+     */
+    public void testValidatingByDefault() {
+        String base = new File("").getAbsoluteFile().toURI().toString();
+        String attributes = "<!DOCTYPE procedure SYSTEM \"xml/procedure.dtd\">"
+                + "<procedure><title>Upgrade</title><section title=\"First\"><step title=\"Do it\">"
+                + "<name who=\"joe\"><task>Blah</task></name></step></section></procedure>";
+
+        assertTrue(pool.isValidating());
+        assertFalse(pool.isRequiringDoctype());
+
+        InputSource source = new InputSource(new StringReader(attributes));
+        source.setSystemId(base);
+        pool.parse(source);
+
+        source = new InputSource(new StringReader(attributes.replace("<task>", "<task status=\"finished\">")));
+        source.setSystemId(base);
+        try {
+            pool.parse(source);
+            fail("Should have rejected an invalid status without being asked to validate");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    public void testValidatingPool() throws IOException {
+        String base = new File("").getAbsoluteFile().toURI().toString();
+
+        pool.setValidating(true);
+
+        for (int i = 0; i < 3; i++) {
+            InputSource source = new InputSource(new StringReader(VALID_PROCEDURE));
+            source.setSystemId(base);
+            pool.parse(source);
+        }
+        assertEquals(1, pool.getDtdCache().getLoads());
+
+        InputSource source = new InputSource(new StringReader(VALID_PROCEDURE.replace("done", "finished")));
+        source.setSystemId(base);
+        try {
+            pool.parse(source);
+            fail("Should have rejected an invalid status");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+
+        pool.parse(new InputSource(new StringReader("<procedure/>")));
+
+        pool.setRequiringDoctype(true);
+        try {
+            pool.parse(new InputSource(new StringReader("<procedure/>")));
+            fail("Should have rejected a document without a DOCTYPE");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    /*
+     * The real procedure.dtd: a section or step has to be titled, by a
+     * child element or by the attribute standing in for one, and the shipped
+     * examples (one of each style) are valid.
+     */
+    public void testProcedureDtd() throws IOException {
+        final String head = "<procedure><title>T</title>";
+        final String step = "<step title=\"S\"><name who=\"joe\"><task>Blah</task></name></step>";
+
+        grammar = new DtdCache().getGrammar(new File("xml/procedure.dtd").getAbsoluteFile().toURI().toString());
+        pool.setValidating(false);
+
+        grammar.validate(parse(head + "<section><title>A</title><precis>P</precis>" + step
+                + "</section></procedure>"));
+        grammar.validate(parse(head + "<section title=\"A\"><precis>P</precis>" + step + step
+                + "</section></procedure>"));
+        grammar.validate(parse(head + "<section title=\"A\"><title>A</title>" + step + "</section></procedure>"));
+        grammar.validate(parse(head + "<section title=\"A\"><step><title>S</title>"
+                + "<name who=\"joe\"><task>Blah</task></name></step></section></procedure>"));
+
+        // untitled section
+        assertInvalid(head + "<section><precis>P</precis>" + step + "</section></procedure>");
+        // untitled step
+        assertInvalid(head + "<section title=\"A\">" + step.replace(" title=\"S\"", "")
+                + "</section></procedure>");
+        // a title attribute can't stand in for anything but a leading child
+        assertInvalid(head + "<section title=\"A\"><precis>P</precis><title>A</title>" + step
+                + "</section></procedure>");
+        // section with no steps
+        assertInvalid(head + "<section title=\"A\"><precis>P</precis></section></procedure>");
+        // the procedure itself has no title attribute to stand in
+        assertInvalid("<procedure title=\"T\"></procedure>");
+
+        String[] examples = {
+                "doc/examples/DatabaseUpgrade_Procedure.xml", "tests/xseq/services/simpleProcedure_v1_Example.xml"
+        };
+        for (String example : examples) {
+            InputSource source = new InputSource(new FileInputStream(example));
+            source.setSystemId(new File("").getAbsoluteFile().toURI().toString());
+            grammar.validate(pool.parse(source));
+        }
+    }
+}
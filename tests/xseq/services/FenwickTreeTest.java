@@ -0,0 +1,78 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Range sums out of the FenwickTree must match adding things up by hand.
+ *
+ * @author Andrew Cowie
+ */
+public class FenwickTreeTest extends TestCase
+{
+    public void testEmpty() {
+        FenwickTree tree = new FenwickTree(0);
+        assertEquals(0, tree.size());
+        assertEquals(0, tree.prefix(0));
+    }
+
+    public void testAgainstArray() {
+        final int size = 77;
+        Random random = new Random(42);
+        int[] counts = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            counts[i] = random.nextInt(3);
+        }
+        FenwickTree tree = new FenwickTree(counts);
+
+        for (int round = 0; round < 200; round++) {
+            int i = random.nextInt(size);
+            tree.add(i, 1);
+            counts[i]++;
+
+            int start = random.nextInt(size + 1);
+            int end = start + random.nextInt(size + 1 - start);
+            int expected = 0;
+            for (int j = start; j < end; j++) {
+                expected += counts[j];
+            }
+            assertEquals(expected, tree.sum(start, end));
+        }
+
+        int total = 0;
+        for (int j = 0; j < size; j++) {
+            total += counts[j];
+            assertEquals(total, tree.prefix(j + 1));
+        }
+    }
+
+    public void testBounds() {
+        FenwickTree tree = new FenwickTree(4);
+        try {
+            tree.add(4, 1);
+            fail("Should have refused a position past the end");
+        } catch (IndexOutOfBoundsException ioobe) {
+            // good
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import junit.framework.TestCase;
+
+/**
+ * Ranges recorded in an OffsetIndex must come back out, and lookups by
+ * offset must find the innermost range covering it.
+ *
+ * @author Andrew Cowie
+ */
+public class OffsetIndexTest extends TestCase
+{
+    private OffsetIndex index;
+
+    /*
+     * Two buffers, laid out the way DetailsWindow renders a section: a step
+     * heading, then names each with their tasks. Added in the order
+     * DetailsWindow does, innermost first.
+     *
+     * buffer 0: step 2 [0,40) heading [0,8); name 3 [8,40) heading [8,12);
+     * task 4 [12,25); task 5 [25,40). buffer 1: step 7 [0,20); name 8
+     * [10,20); task 9 [14,20).
+     */
+    public void setUp() {
+        index = new OffsetIndex(10, 2);
+        index.add(4, 0, 12, 25);
+        index.add(5, 0, 25, 40);
+        index.add(3, 0, 8, 40);
+        index.add(2, 0, 0, 40);
+        index.add(9, 1, 14, 20);
+        index.add(8, 1, 10, 20);
+        index.add(7, 1, 0, 20);
+    }
+
+    public void testRanges() {
+        assertTrue(index.contains(5));
+        assertFalse(index.contains(6));
+        assertEquals(-1, index.getBuffer(6));
+        assertEquals(1, index.getBuffer(8));
+        assertEquals(25, index.getStart(5));
+        assertEquals(40, index.getEnd(5));
+
+        try {
+            index.getStart(6);
+            fail("Should have refused a node that wasn't added");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+        try {
+            index.add(5, 1, 0, 1);
+            fail("Should have refused a node added twice");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    public void testFind() {
+        assertEquals(2, index.find(0, 0));
+        assertEquals(2, index.find(0, 7));
+        assertEquals(3, index.find(0, 8));
+        assertEquals(3, index.find(0, 11));
+        assertEquals(4, index.find(0, 12));
+        assertEquals(4, index.find(0, 24));
+        assertEquals(5, index.find(0, 25));
+        assertEquals(5, index.find(0, 39));
+        assertEquals(-1, index.find(0, 40));
+
+        assertEquals(7, index.find(1, 9));
+        assertEquals(8, index.find(1, 13));
+        assertEquals(9, index.find(1, 19));
+        assertEquals(-1, index.find(1, 20));
+    }
+
+    public void testAddAfterFind() {
+        OffsetIndex later = new OffsetIndex(4, 1);
+        later.add(0, 0, 0, 10);
+        assertEquals(0, later.find(0, 5));
+        assertEquals(-1, later.find(0, 12));
+
+        later.add(1, 0, 10, 30);
+        later.add(2, 0, 12, 16);
+        assertEquals(0, later.find(0, 5));
+        assertEquals(2, later.find(0, 12));
+        assertEquals(1, later.find(0, 16));
+        assertEquals(1, later.find(0, 29));
+    }
+
+    public void testEmpty() {
+        OffsetIndex empty = new OffsetIndex(3, 2);
+        assertEquals(-1, empty.find(0, 0));
+        assertTrue(empty.getMemoryUsage() > 0);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Make sure DocumentBuilders are reused within a thread, not shared between
+ * threads, and replaced when the configuration changes.
+ * 
+ * @author Andrew Cowie
+ */
+public class ParserPoolTest extends TestCase
+{
+    ParserPool pool = null;
+
+    public void setUp() {
+        pool = new ParserPool();
+    }
+
+    public void testReusedWithinThread() {
+        DocumentBuilder first = pool.acquire();
+        DocumentBuilder second = pool.acquire();
+        assertSame(first, second);
+    }
+
+    public void testNotSharedBetweenThreads() throws InterruptedException {
+        final DocumentBuilder mine = pool.acquire();
+        final DocumentBuilder[] theirs = new DocumentBuilder[1];
+
+        Thread t = new Thread() {
+            public void run() {
+                theirs[0] = pool.acquire();
+            }
+        };
+        t.start();
+        t.join();
+
+        assertNotNull(theirs[0]);
+        assertNotSame(mine, theirs[0]);
+    }
+
+    public void testReconfigure() {
+        DocumentBuilder before = pool.acquire();
+        assertFalse(before.isNamespaceAware());
+
+        pool.setNamespaceAware(true);
+
+        DocumentBuilder after = pool.acquire();
+        assertNotSame(before, after);
+        assertTrue(after.isNamespaceAware());
+    }
+
+    public void testBadFeature() {
+        try {
+            pool.setFeature("http://example.com/no/such/feature", true);
+            fail("Should have rejected an unknown feature");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    public void testParse() {
+        Document dom = pool.parse(new InputSource(new StringReader("<procedure><section/></procedure>")));
+        assertEquals("procedure", dom.getDocumentElement().getTagName());
+
+        try {
+            pool.parse(new InputSource(new StringReader("This is not XML")));
+            fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+
+        /*
+         * And the pooled parser must still work after a failure.
+         */
+        dom = pool.parse(new InputSource(new StringReader("<procedure/>")));
+        assertEquals("procedure", dom.getDocumentElement().getTagName());
+    }
+}
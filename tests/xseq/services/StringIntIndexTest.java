@@ -0,0 +1,211 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Exercise the open addressing index underneath ElementIndex and friends,
+ * along with ElementIndex's array for generated IDs, and check that it is as much smaller than the HashMaps it replaced as it
+ * ought to be.
+ *
+ * @author Andrew Cowie
+ */
+public class StringIntIndexTest extends TestCase
+{
+    public void testPutGet() {
+        StringIntIndex index = new StringIntIndex(4);
+
+        assertEquals(-1, index.get("n0"));
+        assertEquals(-1, index.put("n0", 0));
+        assertEquals(-1, index.put("n1", 1));
+        assertEquals(0, index.get("n0"));
+        assertEquals(1, index.get("n1"));
+        assertTrue(index.containsKey("n1"));
+        assertFalse(index.containsKey("n2"));
+
+        assertEquals(1, index.put("n1", 7));
+        assertEquals(7, index.get("n1"));
+        assertEquals(2, index.size());
+    }
+
+    public void testGrow() {
+        StringIntIndex index = new StringIntIndex(0);
+        int capacity = index.getCapacity();
+
+        for (int i = 0; i < 1000; i++) {
+            index.put("n" + i, i);
+        }
+        assertTrue(index.getCapacity() > capacity);
+        assertEquals(1000, index.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, index.get("n" + i));
+        }
+        assertEquals(-1, index.get("n1000"));
+    }
+
+    /*
+     * "Aa" and "BB" have the same hashCode, so they must probe.
+     */
+    public void testCollisions() {
+        StringIntIndex index = new StringIntIndex(2);
+
+        index.put("Aa", 1);
+        index.put("BB", 2);
+        index.put("AaAa", 3);
+        index.put("BBBB", 4);
+        index.put("AaBB", 5);
+
+        assertEquals(1, index.get("Aa"));
+        assertEquals(2, index.get("BB"));
+        assertEquals(3, index.get("AaAa"));
+        assertEquals(4, index.get("BBBB"));
+        assertEquals(5, index.get("AaBB"));
+        assertEquals(-1, index.get("BBAa"));
+    }
+
+    public void testNegative() {
+        try {
+            new StringIntIndex(4).put("n0", -1);
+            fail("Should have refused a value that looks like a miss");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    public void testMemory() {
+        final int num = 50000;
+
+        StringIntIndex index = new StringIntIndex(num);
+        for (int i = 0; i < num; i++) {
+            index.put("n" + i, i);
+        }
+
+        /*
+         * Sized up front, so it must not have had to grow, and it should be
+         * between a third and two thirds full.
+         */
+        assertTrue(index.getCapacity() * 2 >= num * 3);
+        assertTrue(index.getCapacity() < num * 3);
+
+        long hashMap = StringIntIndex.estimateHashMap(num, num, 0.01f);
+        assertTrue(index.getMemoryUsage() * 10 < hashMap);
+    }
+
+    public void testElementIndex() {
+        Document dom = XmlStreamLoader.newDocument();
+        Element root = dom.createElement("procedure");
+        dom.appendChild(root);
+        for (int i = 0; i < 100; i++) {
+            root.appendChild(dom.createElement("task"));
+        }
+        XmlUtils.addIDs(dom);
+
+        ElementIndex index = new ElementIndex(dom);
+        assertEquals(101, index.size());
+        assertSame(root, index.getElementById("n0"));
+        assertEquals("n57", index.getElementById("n57").getAttribute("id"));
+        assertNull(index.getElementById("n101"));
+        assertTrue(index.getMemoryUsage() > 0);
+        assertTrue(index.getMemoryUsage() < StringIntIndex.estimateHashMap(101, 101, 0.01f));
+    }
+
+    public void testParseId() {
+        assertEquals(0, XmlUtils.parseId("n0"));
+        assertEquals(57, XmlUtils.parseId("n57"));
+        assertEquals(123456789, XmlUtils.parseId("n123456789"));
+
+        assertEquals(-1, XmlUtils.parseId("n"));
+        assertEquals(-1, XmlUtils.parseId(""));
+        assertEquals(-1, XmlUtils.parseId("x5"));
+        assertEquals(-1, XmlUtils.parseId("n5a"));
+        assertEquals(-1, XmlUtils.parseId("n007"));
+        assertEquals(-1, XmlUtils.parseId("n1234567890"));
+    }
+
+    /*
+     * Generated IDs go to ElementIndex's array, anything else through the
+     * hash; the two must not get confused with one another.
+     */
+    public void testAuthorIds() {
+        Document dom = XmlStreamLoader.newDocument();
+        Element root = dom.createElement("procedure");
+        dom.appendChild(root);
+        Element first = dom.createElement("section");
+        Element second = dom.createElement("section");
+        Element third = dom.createElement("section");
+        root.appendChild(first);
+        root.appendChild(second);
+        root.appendChild(third);
+
+        root.setAttribute("id", "n0");
+        first.setAttribute("id", "install");
+        second.setAttribute("id", "n007");
+        third.setAttribute("id", "n9");
+
+        ElementIndex index = new ElementIndex(dom);
+        assertEquals(4, index.size());
+        assertSame(root, index.getElementById("n0"));
+        assertSame(first, index.getElementById("install"));
+        assertSame(second, index.getElementById("n007"));
+        assertSame(third, index.getElementById("n9"));
+        assertNull(index.getElementById("n7"));
+        assertNull(index.getElementById("n8"));
+        assertNull(index.getElementById("n10"));
+        assertNull(index.getElementById("nope"));
+
+        second.setAttribute("id", "n9");
+        try {
+            new ElementIndex(dom);
+            fail("Should have refused a duplicate generated ID");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+
+    /*
+     * An author supplied ID that looks generated but is far beyond the size
+     * of the Document must not grow the array to fit it.
+     */
+    public void testHugeOrdinal() {
+        Document dom = XmlStreamLoader.newDocument();
+        Element root = dom.createElement("procedure");
+        dom.appendChild(root);
+        Element section = dom.createElement("section");
+        root.appendChild(section);
+
+        root.setAttribute("id", "n0");
+        section.setAttribute("id", "n999999999");
+
+        ElementIndex index = new ElementIndex(dom);
+        assertEquals(2, index.size());
+        assertSame(section, index.getElementById("n999999999"));
+        assertSame(root, index.getElementById("n0"));
+        assertTrue(index.getMemoryUsage() < 1024);
+
+        index = new ElementIndex(2);
+        index.startElement(root, 0);
+        index.startElement(section, 1);
+        assertSame(section, index.getElementById("n999999999"));
+        assertTrue(index.getMemoryUsage() < 1024);
+    }
+}
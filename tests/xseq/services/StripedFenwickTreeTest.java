@@ -0,0 +1,122 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Range sums out of a StripedFenwickTree must match adding things up by
+ * hand, however many stripes, and however many threads are adding.
+ *
+ * @author Andrew Cowie
+ */
+public class StripedFenwickTreeTest extends TestCase
+{
+    public void testEmpty() {
+        StripedFenwickTree tree = new StripedFenwickTree(new int[0]);
+        assertEquals(0, tree.size());
+        assertEquals(0, tree.prefix(0));
+        assertEquals(0, tree.total());
+    }
+
+    public void testAgainstArray() {
+        final int size = 77;
+        final int[] stripes = {
+                1, 3, 16, 77, 100
+        };
+        Random random = new Random(42);
+
+        for (int w = 0; w < stripes.length; w++) {
+            int[] counts = new int[size];
+            for (int i = 0; i < size; i++) {
+                counts[i] = random.nextInt(3);
+            }
+            StripedFenwickTree tree = new StripedFenwickTree(counts, stripes[w]);
+
+            for (int round = 0; round < 200; round++) {
+                int i = random.nextInt(size);
+                tree.add(i, 1);
+                counts[i]++;
+
+                int start = random.nextInt(size + 1);
+                int end = start + random.nextInt(size + 1 - start);
+                int expected = 0;
+                for (int j = start; j < end; j++) {
+                    expected += counts[j];
+                }
+                assertEquals(expected, tree.sum(start, end));
+            }
+
+            int total = 0;
+            for (int j = 0; j < size; j++) {
+                total += counts[j];
+                assertEquals(total, tree.prefix(j + 1));
+            }
+            assertEquals(total, tree.total());
+        }
+    }
+
+    public void testBounds() {
+        StripedFenwickTree tree = new StripedFenwickTree(new int[4], 2);
+        try {
+            tree.add(4, 1);
+            fail("Should have refused a position past the end");
+        } catch (IndexOutOfBoundsException ioobe) {
+            // good
+        }
+        try {
+            tree.sum(3, 2);
+            fail("Should have refused a backwards range");
+        } catch (IndexOutOfBoundsException ioobe) {
+            // good
+        }
+    }
+
+    /*
+     * Each thread adds one to every counter; whichever stripes they land in,
+     * nothing may be lost.
+     */
+    public void testConcurrent() throws InterruptedException {
+        final int size = 1000;
+        final StripedFenwickTree tree = new StripedFenwickTree(new int[size]);
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 250;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < size; i++) {
+                        tree.add((i + offset) % size, 1);
+                        tree.sum(0, (i + offset) % size);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+
+        assertEquals(size * threads.length, tree.total());
+        assertEquals(size * threads.length, tree.prefix(size));
+        assertEquals(threads.length * 10, tree.sum(495, 505));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Subtree extents, gathered during an Annotator traversal or computed from
+ * parent links, must agree with each other and with the DOM.
+ *
+ * @author Andrew Cowie
+ */
+public class SubtreeIntervalsTest extends TestCase
+{
+    private static final String XML = "<procedure><title>T</title>"
+            + "<section><step><name who=\"joe\"><task>a</task><task>b</task></name></step>"
+            + "<step><name who=\"fred\"><task>c</task></name></step></section>"
+            + "<section><step/></section></procedure>";
+
+    private Document dom;
+
+    private SubtreeIntervals visited;
+
+    private int[] parents;
+
+    public void setUp() throws UnsupportedEncodingException {
+        dom = XmlStreamLoader.streamToDOM(new ByteArrayInputStream(XML.getBytes("UTF-8")));
+        visited = new SubtreeIntervals();
+        parents = new int[32];
+
+        Annotator annotator = new Annotator();
+        annotator.addVisitor(visited);
+        annotator.addVisitor(new DocumentVisitor() {
+            private int[] stack = new int[16];
+
+            private int depth;
+
+            public void startElement(Element element, int ordinal) {
+                parents[ordinal] = (depth == 0) ? -1 : stack[depth - 1];
+                stack[depth++] = ordinal;
+            }
+
+            public void endElement(Element element, int ordinal) {
+                depth--;
+            }
+        });
+        annotator.run(dom);
+    }
+
+    /*
+     * Node numbers: 0 procedure, 1 title, 2 section, 3 step, 4 name, 5 task,
+     * 6 task, 7 step, 8 name, 9 task, 10 section, 11 step.
+     */
+    public void testVisited() {
+        assertEquals(12, visited.size());
+        assertEquals(12, visited.getEnd(0));
+        assertEquals(2, visited.getEnd(1));
+        assertEquals(10, visited.getEnd(2));
+        assertEquals(7, visited.getEnd(3));
+        assertEquals(12, visited.getEnd(11));
+        assertEquals(4, visited.getExtent(3));
+
+        assertTrue(visited.contains(2, 9));
+        assertTrue(visited.contains(2, 2));
+        assertFalse(visited.isAncestor(2, 2));
+        assertTrue(visited.isAncestor(3, 6));
+        assertFalse(visited.contains(3, 7));
+        assertFalse(visited.contains(10, 9));
+        assertFalse(visited.contains(9, 2));
+    }
+
+    public void testFromParents() {
+        SubtreeIntervals computed = new SubtreeIntervals(parents, visited.size());
+
+        assertEquals(visited.size(), computed.size());
+        for (int i = 0; i < visited.size(); i++) {
+            assertEquals(visited.getEnd(i), computed.getEnd(i));
+        }
+    }
+
+    public void testNotPreorder() {
+        try {
+            new SubtreeIntervals(new int[] {
+                    -1, 2, 0
+            }, 3);
+            fail("Should have refused a child numbered before its parent");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+}
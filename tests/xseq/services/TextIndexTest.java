@@ -0,0 +1,135 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Words go in, and queries must find exactly the nodes whose text has every
+ * query word as a prefix of one of its words.
+ *
+ * @author Andrew Cowie
+ */
+public class TextIndexTest extends TestCase
+{
+    private TextIndex index;
+
+    public void setUp() {
+        index = new TextIndex();
+        index.add(3, "Restart the database");
+        index.add(5, "Check the database is up");
+        index.add(8, "Restore from backup");
+        index.add(1, "Database Upgrade");
+    }
+
+    private static void assertNodes(int[] expected, int[] actual) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+    public void testTokenize() {
+        assertEquals(Arrays.asList(new String[] {
+                "don", "t", "panic", "42", "times"
+        }), Arrays.asList(TextIndex.tokenize("  Don't PANIC, 42 times!")));
+        assertEquals(0, TextIndex.tokenize(" -- ").length);
+    }
+
+    public void testWords() {
+        assertNodes(new int[] {
+                1, 3, 5
+        }, index.search("database"));
+        assertNodes(new int[] {
+                3, 8
+        }, index.search("RESt"));
+        assertNodes(new int[] {
+                3
+        }, index.search("rest dat"));
+        assertNodes(new int[] {
+                1, 5
+        }, index.search("up"));
+        assertNodes(new int[0], index.search("rest check"));
+        assertNodes(new int[0], index.search("zebra"));
+        assertNodes(new int[0], index.search(""));
+    }
+
+    public void testAddedLater() {
+        assertNodes(new int[] {
+                1, 3, 5
+        }, index.search("data"));
+
+        index.add(0, "data");
+        index.add(5, "dataset");
+
+        assertNodes(new int[] {
+                0, 1, 3, 5
+        }, index.search("data"));
+        assertNodes(new int[] {
+                5
+        }, index.search("datas"));
+    }
+
+    public void testGrowing() {
+        TextIndex big = new TextIndex();
+        for (int i = 999; i >= 0; i--) {
+            big.add(i, "word" + i + " common");
+        }
+        assertEquals(1001, big.getTermCount());
+        assertEquals(1000, big.search("common").length);
+        assertNodes(new int[] {
+                99, 990, 991, 992, 993, 994, 995, 996, 997, 998, 999
+        }, big.search("word99 com"));
+    }
+
+    /*
+     * A prefix matching many terms, whose postings overlap, must come back
+     * as their sorted union without duplicates.
+     */
+    public void testManyPrefixed() {
+        TextIndex many = new TextIndex();
+        boolean[] expected = new boolean[600];
+
+        for (int t = 0; t < 50; t++) {
+            for (int node = t; node < 600; node += 7 + t) {
+                many.add(node, "term" + t);
+                expected[node] = true;
+            }
+        }
+        many.add(599, "other");
+
+        int num = 0;
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i]) {
+                num++;
+            }
+        }
+        int[] result = many.search("term");
+        assertEquals(num, result.length);
+        for (int i = 0; i < result.length; i++) {
+            assertTrue(expected[result[i]]);
+            if (i > 0) {
+                assertTrue(result[i - 1] < result[i]);
+            }
+        }
+
+        assertNodes(new int[] {
+                49, 105, 161, 217, 273, 329, 385, 441, 497, 553
+        }, many.search("term49 term"));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * XML Sequences for mission critical IT procedures
+ *
+ * Copyright © 2010 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/xseq/.
+ */
+package xseq.services;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Check that the StAX based loader builds the same tree as the String based
+ * one does.
+ * 
+ * @author Andrew Cowie
+ */
+public class XmlStreamLoaderTest extends TestCase
+{
+    private static final String SOURCE_XML = "tests/xseq/services/simpleProcedure_v1_Example.xml";
+
+    private static Document load() throws IOException {
+        InputStream in = new FileInputStream(SOURCE_XML);
+        try {
+            return XmlStreamLoader.streamToDOM(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testSameElements() throws IOException {
+        Document streamed = load();
+        Document parsed = XmlUtils.xmlStringToDOM(XmlUtils.fileToString(SOURCE_XML));
+
+        NodeList expected = parsed.getElementsByTagName("*");
+        NodeList actual = streamed.getElementsByTagName("*");
+
+        assertEquals(expected.getLength(), actual.getLength());
+
+        for (int i = 0; i < expected.getLength(); i++) {
+            Element e = (Element) expected.item(i);
+            Element a = (Element) actual.item(i);
+
+            assertEquals(e.getTagName(), a.getTagName());
+            assertEquals(e.getAttribute("who"), a.getAttribute("who"));
+            assertEquals(e.getAttribute("title"), a.getAttribute("title"));
+
+            /*
+             * The DTD means the DOM parser drops element content whitespace,
+             * which the StAX loader (which doesn't read DTDs) keeps, so only
+             * compare leaf text.
+             */
+            if (e.getTagName().equals("task")) {
+                assertEquals(e.getTextContent(), a.getTextContent());
+            }
+        }
+    }
+
+    public void testElementText() throws IOException {
+        Document dom = load();
+
+        Element task = (Element) dom.getElementsByTagName("task").item(0);
+        assertTrue(XmlUtils.getElementText(task).startsWith("Put web site into maintenance mode"));
+    }
+
+    public void testNormalizing() throws IOException {
+        Document dom = XmlStreamLoader.streamToDOM(new java.io.ByteArrayInputStream(
+                "<procedure>\n  <section>\n    <task>\n\tPut web   site\n into <b>maintenance</b> mode\n</task>\n  </section>\n</procedure>"
+                        .getBytes()), true);
+
+        Element procedure = dom.getDocumentElement();
+        assertEquals(1, procedure.getChildNodes().getLength());
+
+        Element section = (Element) procedure.getFirstChild();
+        assertEquals(1, section.getChildNodes().getLength());
+
+        Element task = (Element) section.getFirstChild();
+        assertEquals("Put web site into ", XmlUtils.getElementText(task));
+        assertEquals("Put web site into maintenance mode", task.getTextContent());
+    }
+
+    public void testStripWhitespace() throws IOException {
+        Document streamed;
+        InputStream in = new FileInputStream(SOURCE_XML);
+        try {
+            streamed = XmlStreamLoader.streamToDOM(in, true);
+        } finally {
+            in.close();
+        }
+
+        Document stripped = load();
+        XmlUtils.stripWhitespace(stripped);
+
+        NodeList expected = stripped.getElementsByTagName("*");
+        NodeList actual = streamed.getElementsByTagName("*");
+
+        assertEquals(expected.getLength(), actual.getLength());
+        for (int i = 0; i < expected.getLength(); i++) {
+            Element e = (Element) expected.item(i);
+            Element a = (Element) actual.item(i);
+            assertEquals(e.getChildNodes().getLength(), a.getChildNodes().getLength());
+            assertEquals(e.getTextContent(), a.getTextContent());
+        }
+    }
+
+    public void testNotXml() {
+        try {
+            XmlStreamLoader.streamToDOM(new java.io.ByteArrayInputStream("<procedure>".getBytes()));
+            fail("should have rejected an unterminated document");
+        } catch (IllegalArgumentException iae) {
+            // good
+        }
+    }
+}
@@ -19,8 +19,6 @@
 package xseq.ui;
 
 import java.io.FileNotFoundException;
-import java.util.HashSet;
-import java.util.Iterator;
 
 import org.gnome.gdk.Event;
 import org.gnome.gdk.Pixbuf;
@@ -38,11 +36,10 @@ import org.gnome.gtk.VBox;
 import org.gnome.gtk.VButtonBox;
 import org.gnome.gtk.Widget;
 import org.gnome.gtk.Window;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 import xseq.client.ProcedureClient;
 import xseq.domain.Procedure;
+import xseq.engine.ProcedureRun;
 
 /**
  * A test harness to aid working through procedures. Until the full front end
@@ -121,18 +118,13 @@ public class TestControlWindow
         Image construction_image = (Image) _glade.getWidget("construction");
         construction_image.setImage(construction_pixbuf);
 
-        NodeList names = p.getDOM().getElementsByTagName("name");
-        int num_names = names.getLength();
         /*
-         * A list of the names of participants
+         * A list of the names of participants. Ask the model rather than
+         * scanning the DOM, as a lazily loaded Procedure won't have built
+         * the <name> Elements yet. They're already interned, so each appears
+         * once, in order of first appearance.
          */
-        HashSet<String> participants = new HashSet<String>(num_names, 0.1f);
-
-        for (int i = 0; i < num_names; i++) {
-            Element name = (Element) names.item(i);
-            String who = name.getAttribute("who");
-            participants.add(who);
-        }
+        String[] participants = p.getModel().getPeople();
         /*
          * Add a radio button group with the names, so that an active player
          * can be selected. pick_vbox starts out sensitive.
@@ -145,14 +137,11 @@ public class TestControlWindow
         RadioGroup group = new RadioGroup();
         RadioButton rb0 = new RadioButton(group, "None selected");
 
-        Iterator<String> iter = participants.iterator();
-
-        RadioButton[] pickRadioButtons = new RadioButton[participants.size() + 1];
+        RadioButton[] pickRadioButtons = new RadioButton[participants.length + 1];
         pickRadioButtons[0] = rb0;
-        int j = 1;
 
-        while (iter.hasNext()) {
-            String person = iter.next();
+        for (int j = 1; j <= participants.length; j++) {
+            String person = participants[j - 1];
             // the RadioButton API says you give one to add another to its
             // group
             pickRadioButtons[j] = new RadioButton(group, person);
@@ -172,7 +161,6 @@ public class TestControlWindow
                 }
             });
             pick_vbuttonbox.packStart(pickRadioButtons[j], true, true, 0);
-            j++;
         }
 
         /*
@@ -233,13 +221,10 @@ public class TestControlWindow
         _others_vbox = (VBox) _glade.getWidget("others_vbox");
         VButtonBox others_vbuttonbox = (VButtonBox) _glade.getWidget("others_vbuttonbox");
 
-        iter = participants.iterator();
+        Button[] taskButtons = new Button[participants.length];
 
-        Button[] taskButtons = new Button[participants.size()];
-        int k = 0;
-
-        while (iter.hasNext()) {
-            String person = iter.next();
+        for (int k = 0; k < participants.length; k++) {
+            String person = participants[k];
 
             /*
              * If the buttons were just simple automatically labelled ones,
@@ -276,7 +261,6 @@ public class TestControlWindow
             });
 
             others_vbuttonbox.packStart(taskButtons[k], true, true, 0);
-            k++;
         }
 
         _top.move(2, 490);
@@ -294,32 +278,28 @@ public class TestControlWindow
      * event to be propagated.
      * 
      * <P>
-     * So, instead, we cumbersomely fake it. We have a list of tasks IDs; when
-     * "someone" presses an others button, we look to see what the next task
-     * is for that person in whatever the UI thinks is the currentStep, and
-     * when we find one which isn't done, make it so.
+     * So, instead, we cumbersomely fake it. When "someone" presses an others
+     * button, we ask the Procedure for the next task that isn't done for
+     * that person in whatever the UI thinks is the currentStep, and make it
+     * so.
      */
     private void next(String buttonPresser) {
-        Procedure p = ProcedureClient.ui._procedure;
-
-        String taskId = p.getFirstTaskId(ProcedureClient.ui._currentStepId, buttonPresser);
+        ProcedureRun run = ProcedureClient.ui._run;
 
-        if (taskId == null) {
+        int step = run.getCurrentStep();
+        if (step == -1) {
             return;
         }
 
-        while ((taskId != null) && p.isTaskDone(taskId)) {
-            taskId = p.getNextTaskId(taskId);
-        }
+        int task = run.getProcedure().nextPendingTaskFor(step, buttonPresser);
 
-        if (taskId == null) {
+        if (task == -1) {
             return;
         } else {
-            ProcedureClient.ui.setTaskAsDone(taskId);
+            ProcedureClient.ui.setTaskAsDone(task);
         }
 
-        if (p.isProcedureDone(taskId)) {
-            ProcedureClient.ui.stopProcedure();
+        if (run.isFinished()) {
             _others_vbox.setSensitive(false);
         }
     }
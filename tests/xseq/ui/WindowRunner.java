@@ -20,6 +20,7 @@ package xseq.ui;
 
 import generic.util.Debug;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -31,8 +32,8 @@ import org.gnome.gtk.Window;
 
 import xseq.client.ProcedureClient;
 import xseq.domain.Procedure;
+import xseq.domain.ProcedureCache;
 import xseq.domain.State;
-import xseq.services.XmlUtils;
 
 /**
  * Run a debug instance of OverviewWindow and DetailsWindow with some test
@@ -74,13 +75,34 @@ public class WindowRunner
         Debug.print("main", "returned from Gtk main loop");
     }
 
+    /*
+     * Operators reopen the same procedures over and over, so go through the
+     * precompiled cache in ~/.xseq/cache if we can; a hit is memory mapped
+     * rather than parsed and annotated again. If there's no cache to be had,
+     * load lazily as before.
+     */
+    private static Procedure load(File file) throws IOException, FileNotFoundException {
+        ProcedureCache cache;
+
+        try {
+            cache = new ProcedureCache(new File(System.getProperty("user.home"), ".xseq/cache"));
+        } catch (IOException ioe) {
+            Debug.print("main", "no procedure cache: " + ioe.getMessage());
+            return Procedure.loadLazily(file.toPath(), true);
+        }
+
+        Procedure p = cache.load(file.toPath());
+        Debug.print("main", "procedure cache " + (cache.getHits() > 0 ? "hit" : "miss"));
+        return p;
+    }
+
     public static void loadAndRun(String filename, Window parent) throws FileNotFoundException {
         Dialog error;
 
         Debug.print("main", "loading Procedure " + filename);
-        String xml = null;
+        Procedure p = null;
         try {
-            xml = XmlUtils.fileToString(filename);
+            p = load(new File(filename));
         } catch (FileNotFoundException fnfe) {
             /*
              * No big deal.
@@ -98,11 +120,6 @@ public class WindowRunner
             error.run();
             Gtk.mainQuit();
             System.exit(1);
-        }
-
-        Procedure p = null;
-        try {
-            p = new Procedure(xml);
         } catch (IllegalArgumentException iae) {
             // StringBuffer buf = new StringBuffer(iae.getMessage());
 